@@ -0,0 +1,324 @@
+package eu.scape_project.dataconnetor.doms;
+
+import dk.statsbiblioteket.doms.webservices.authentication.Credentials;
+import eu.scape_project.dataconnetor.doms.exceptions.AlreadyExistsException;
+import eu.scape_project.dataconnetor.doms.exceptions.CommunicationException;
+import eu.scape_project.dataconnetor.doms.exceptions.ParsingException;
+import eu.scape_project.model.IntellectualEntity;
+import eu.scape_project.model.LifecycleState;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ingests entities in the background, on a fixed number of workers with a bounded queue of waiting ingests. The state
+ * of each ingest is kept until it is done. Ingests that failed are remembered for a while, so the failure can be
+ * reported, as is a submitted entity that already exists. Ingests that succeeded are forgotten, as the entity in
+ * fedora then tells its own lifecycle state, and so are replayed ingests of entities that already exist, as the entity
+ * may have been ingested just before the restart.
+ * <p/>
+ * The state of an ingest is only told to the credentials that submitted it, as other users may not be allowed to know
+ * of the entity. The journal only holds the username that submitted an entity, so the state of a replayed ingest is
+ * told to that username, whatever the password. An entity is only ingested once at a time, whoever submitted it.
+ * <p/>
+ * With a journal, an entity is only accepted when it is in the journal, and the entities in the journal that were not
+ * ingested before a restart are ingested again by {@link #replay()}. Unless the journal stores the credentials of the
+ * users, the replayed entities are ingested with the replay credentials.
+ */
+public class AsyncIngester {
+
+    public static final int DEFAULT_WORKERS = 4;
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+    public static final long DEFAULT_FAILURE_TTL = 60 * 60 * 1000;
+
+    private final ThreadPoolExecutor executor;
+    /**
+     * The ingests not yet done, by entity id
+     */
+    private final ConcurrentMap<String, Ingest> pending = new ConcurrentHashMap<>();
+    /**
+     * The failed ingests, by the scope of the credentials and the entity id
+     */
+    private final ExpiringCache<String, LifecycleState> failed;
+    private IngestJournal journal;
+    private Credentials replayCredentials;
+
+    /**
+     * @param workers    the number of entities ingested concurrently
+     * @param queueSize  the number of accepted entities that can wait for a worker
+     * @param failureTtl the number of milliseconds a failed ingest is remembered
+     */
+    public AsyncIngester(int workers, int queueSize, long failureTtl) {
+        executor = new ThreadPoolExecutor(
+                workers,
+                workers,
+                60,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "scape-ingest-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        failed = new ExpiringCache<>(queueSize + workers, failureTtl);
+    }
+
+    /**
+     * Accept the entity for ingest. The entity is ingested in the background with the credentials.
+     *
+     * @param credentials the credentials of the user ingesting the entity
+     * @param entity      the entity, with an identifier
+     *
+     * @throws AlreadyExistsException     if an entity with the same identifier is already being ingested
+     * @throws RejectedExecutionException if the queue is full
+     * @throws CommunicationException     if the entity could not be written to the journal
+     */
+    public void submit(Credentials credentials, IntellectualEntity entity) throws
+                                                                        AlreadyExistsException,
+                                                                        ParsingException,
+                                                                        CommunicationException {
+        String entityID = entity.getIdentifier().getValue();
+        String scope = EntityInterfaceFactory.scope(credentials);
+        if (pending.putIfAbsent(entityID, new Ingest(scope)) != null) {
+            throw new AlreadyExistsException("An entity with id '" + entityID + "' is already being ingested");
+        }
+        failed.remove(key(scope, entityID));
+        failed.remove(key(replayScope(credentials.getUsername()), entityID));
+        if (executor.getQueue().remainingCapacity() == 0) {
+            //Do not journal an entity that is sure to be rejected
+            pending.remove(entityID);
+            throw new RejectedExecutionException("The ingest queue is full");
+        }
+        long journalId = 0;
+        try {
+            if (journal != null) {
+                ByteArrayOutputStream mets = new ByteArrayOutputStream();
+                XmlUtils.write(entity, false, mets);
+                journalId = journal.accept(entityID, credentials, mets.toByteArray());
+            }
+            execute(credentials, scope, entity, journalId, false);
+        } catch (IOException e) {
+            pending.remove(entityID);
+            complete(journalId);
+            throw new CommunicationException(e);
+        } catch (ParsingException | RuntimeException e) {
+            pending.remove(entityID);
+            complete(journalId);
+            throw e;
+        }
+    }
+
+    private void execute(
+            final Credentials credentials, final String scope, final IntellectualEntity entity, final long journalId,
+            final boolean replayed) {
+        executor.execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        ingest(credentials, scope, entity, journalId, replayed);
+                    }
+                });
+    }
+
+    private void ingest(
+            Credentials credentials, String scope, IntellectualEntity entity, long journalId, boolean replayed) {
+        String entityID = entity.getIdentifier().getValue();
+        Ingest ingest = pending.get(entityID);
+        if (ingest != null) {
+            ingest.state = new LifecycleState("Ingesting", LifecycleState.State.INGESTING);
+        }
+        try {
+            createNew(credentials, entity);
+        } catch (AlreadyExistsException e) {
+            if (!replayed) {
+                failed.put(
+                        key(scope, entityID),
+                        new LifecycleState(
+                                "An entity with id '" + entityID + "' already exists",
+                                LifecycleState.State.INGEST_FAILED));
+            }
+            //A replayed entity may have been ingested before the restart, and fedora tells its lifecycle state
+        } catch (Exception e) {
+            failed.put(
+                    key(scope, entityID),
+                    new LifecycleState(String.valueOf(e.getMessage()), LifecycleState.State.INGEST_FAILED));
+        } finally {
+            complete(journalId);
+            pending.remove(entityID);
+        }
+    }
+
+    private void complete(long journalId) {
+        if (journal != null && journalId > 0) {
+            try {
+                journal.complete(journalId);
+            } catch (IOException e) {
+                //The entity will be ingested again on replay, and fail as it already exists
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Keep the accepted entities in the journal
+     *
+     * @param journal the journal, or null to keep accepted entities in memory only
+     */
+    public void setJournal(IngestJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @param replayCredentials the credentials to ingest the replayed entities with, when the journal did not store
+     *                          the credentials of the user, or null to fail those ingests
+     */
+    public void setReplayCredentials(Credentials replayCredentials) {
+        this.replayCredentials = replayCredentials;
+    }
+
+    /**
+     * Ingest the entities in the journal that were accepted but not ingested, in the order they were accepted. While
+     * the queue is full, the replay waits for room, so the replay can be larger than the queue.
+     *
+     * @return the number of entities replayed
+     */
+    public int replay() throws IOException {
+        if (journal == null) {
+            return 0;
+        }
+        int replayed = 0;
+        for (long id : journal.getPending()) {
+            IngestJournal.Entry entry = journal.read(id);
+            if (entry == null) {
+                continue;
+            }
+            String scope = replayScope(entry.getUsername());
+            Credentials credentials = entry.getCredentials() != null ? entry.getCredentials() : replayCredentials;
+            if (credentials == null) {
+                failed.put(
+                        key(scope, entry.getEntityID()),
+                        new LifecycleState(
+                                "The ingest was interrupted by a restart, and there are no credentials to resume it",
+                                LifecycleState.State.INGEST_FAILED));
+                complete(entry.getId());
+                continue;
+            }
+            IntellectualEntity entity;
+            try {
+                entity = XmlUtils.toEntity(new ByteArrayInputStream(entry.getMets()));
+            } catch (ParsingException e) {
+                failed.put(
+                        key(scope, entry.getEntityID()),
+                        new LifecycleState(String.valueOf(e.getMessage()), LifecycleState.State.INGEST_FAILED));
+                complete(entry.getId());
+                continue;
+            }
+            pending.put(entry.getEntityID(), new Ingest(scope));
+            while (true) {
+                try {
+                    execute(credentials, scope, entity, entry.getId(), true);
+                    break;
+                } catch (RejectedExecutionException e) {
+                    if (executor.isShutdown()) {
+                        return replayed;
+                    }
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        return replayed;
+                    }
+                }
+            }
+            replayed++;
+        }
+        return replayed;
+    }
+
+    /**
+     * Ingest the entity, on a worker thread
+     */
+    protected void createNew(Credentials credentials, IntellectualEntity entity) throws Exception {
+        EntityInterfaceFactory.getInstance(credentials).createNew(entity);
+    }
+
+    /**
+     * @param credentials the credentials asking for the state
+     * @param entityID    the identifier of the entity
+     *
+     * @return the state of the ingest, or null if the entity is not being ingested and has not recently failed, with
+     * these credentials
+     */
+    public LifecycleState getState(Credentials credentials, String entityID) {
+        String scope = EntityInterfaceFactory.scope(credentials);
+        String replayScope = replayScope(credentials.getUsername());
+        Ingest ingest = pending.get(entityID);
+        if (ingest != null && (ingest.scope.equals(scope) || ingest.scope.equals(replayScope))) {
+            return ingest.state;
+        }
+        LifecycleState state = failed.get(key(scope, entityID));
+        return state != null ? state : failed.get(key(replayScope, entityID));
+    }
+
+    private static String key(String scope, String entityID) {
+        return scope + "\u0000" + entityID;
+    }
+
+    /**
+     * @return the scope of the ingests replayed from the journal, which only knows the username that submitted them
+     */
+    private static String replayScope(String username) {
+        return "replayed\u0000" + username;
+    }
+
+    /**
+     * @return the number of accepted entities not yet ingested
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * An ingest not yet done, and the scope of the credentials that submitted it
+     */
+    private static class Ingest {
+        private final String scope;
+        private volatile LifecycleState state = new LifecycleState(
+                "Waiting for ingest", LifecycleState.State.INGESTING);
+
+        private Ingest(String scope) {
+            this.scope = scope;
+        }
+    }
+
+    /**
+     * Stop the workers, waiting a little while for the running ingests to finish. Waiting ingests are dropped, but
+     * stay in the journal, if any.
+     */
+    public void shutdown() {
+        ExecutorUtils.shutdown(executor);
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
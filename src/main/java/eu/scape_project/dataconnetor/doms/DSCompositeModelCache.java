@@ -0,0 +1,94 @@
+package eu.scape_project.dataconnetor.doms;
+
+import dk.statsbiblioteket.doms.central.connectors.BackendInvalidCredsException;
+import dk.statsbiblioteket.doms.central.connectors.BackendInvalidResourceException;
+import dk.statsbiblioteket.doms.central.connectors.BackendMethodFailedException;
+import dk.statsbiblioteket.doms.central.connectors.EnhancedFedora;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cache of parsed DS-COMPOSITE-MODELs. Both the model of each single content model and the merged model of a set of
+ * content models are cached, keyed by the content model pids. Only the newest version of each model is cached, so that
+ * reads of every version of an entity share the same entries; a changed model is read again when it is invalidated,
+ * or when its entry expires. The cached models are shared, so they must not be changed by the callers.
+ */
+public class DSCompositeModelCache {
+
+    public static final int DEFAULT_SIZE = 100;
+    public static final long DEFAULT_TTL = 5 * 60 * 1000;
+
+    private final ExpiringCache<String, DSCompositeModel> models;
+    private final ExpiringCache<String, DSCompositeModel> merged;
+
+    public DSCompositeModelCache() {
+        this(DEFAULT_SIZE, DEFAULT_TTL);
+    }
+
+    /**
+     * @param maxSize    the maximum number of models to cache
+     * @param timeToLive the number of milliseconds a model is cached before it is read again
+     */
+    public DSCompositeModelCache(int maxSize, long timeToLive) {
+        models = new ExpiringCache<>(maxSize, timeToLive);
+        merged = new ExpiringCache<>(maxSize, timeToLive);
+    }
+
+    /**
+     * Get the merged model of the newest versions of the content models
+     *
+     * @param fedora        the fedora to read the models from, if not cached
+     * @param contentModels the pids of the content models, in long or short form
+     *
+     * @return the merged model
+     */
+    public DSCompositeModel get(EnhancedFedora fedora, List<String> contentModels) throws
+                                                                                                  BackendMethodFailedException,
+                                                                                                  BackendInvalidResourceException,
+                                                                                                  BackendInvalidCredsException {
+        List<String> shortForms = new ArrayList<>();
+        for (String contentModel : contentModels) {
+            shortForms.add(EqualUtils.shortForm(contentModel));
+        }
+        Collections.sort(shortForms);
+        String mergedKey = shortForms.toString();
+        DSCompositeModel model = merged.get(mergedKey);
+        if (model == null) {
+            model = new DSCompositeModel();
+            for (String contentModel : shortForms) {
+                model.merge(getSingle(fedora, contentModel));
+            }
+            merged.put(mergedKey, model);
+        }
+        return model;
+    }
+
+    private DSCompositeModel getSingle(EnhancedFedora fedora, String contentModel) throws
+                                                                                                   BackendMethodFailedException,
+                                                                                                   BackendInvalidResourceException,
+                                                                                                   BackendInvalidCredsException {
+        DSCompositeModel model = models.get(contentModel);
+        if (model == null) {
+            model = new DSCompositeModel(contentModel, fedora, null);
+            models.put(contentModel, model);
+        }
+        return model;
+    }
+
+    /**
+     * Forget the cached model of this content model, and all merged models
+     *
+     * @param contentModel the pid of the content model, in long or short form
+     */
+    public void invalidate(String contentModel) {
+        models.remove(EqualUtils.shortForm(contentModel));
+        merged.clear();
+    }
+
+    public void invalidateAll() {
+        models.clear();
+        merged.clear();
+    }
+}
@@ -1,30 +1,301 @@
 package eu.scape_project.dataconnetor.doms;
 
 import dk.statsbiblioteket.doms.central.connectors.EnhancedFedoraImpl;
+import dk.statsbiblioteket.doms.central.connectors.fedora.pidGenerator.PIDGeneratorClient;
 import dk.statsbiblioteket.doms.central.connectors.fedora.pidGenerator.PIDGeneratorException;
 import dk.statsbiblioteket.doms.webservices.authentication.Credentials;
-import dk.statsbiblioteket.doms.webservices.configuration.ConfigCollection;
+import dk.statsbiblioteket.util.Bytes;
+import dk.statsbiblioteket.util.Checksums;
 import eu.scape_project.dataconnetor.doms.exceptions.ConfigurationException;
 
 import javax.xml.bind.JAXBException;
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
 
 public class EntityInterfaceFactory {
 
+    /**
+     * The maximum number of distinct credentials to keep an entity manipulator for
+     */
+    public static final String POOL_SIZE = "scape.fedoraPool.size";
+    /**
+     * The number of milliseconds a pooled entity manipulator is reused before it is rebuilt
+     */
+    public static final String POOL_TTL = "scape.fedoraPool.ttl";
+    /**
+     * The maximum number of parsed DS-COMPOSITE-MODELs to cache
+     */
+    public static final String DS_COMPOSITE_MODEL_CACHE_SIZE = "scape.dsCompositeModelCache.size";
+    /**
+     * The number of milliseconds a parsed DS-COMPOSITE-MODEL is cached
+     */
+    public static final String DS_COMPOSITE_MODEL_CACHE_TTL = "scape.dsCompositeModelCache.ttl";
+    /**
+     * The maximum number of identifiers and pids to cache the mapping between
+     */
+    public static final String IDENTIFIER_CACHE_SIZE = "scape.identifierCache.size";
+    /**
+     * The number of milliseconds the mapping between an identifier and a pid is cached
+     */
+    public static final String IDENTIFIER_CACHE_TTL = "scape.identifierCache.ttl";
+    /**
+     * The number of milliseconds an identifier that was not found is remembered as missing
+     */
+    public static final String IDENTIFIER_CACHE_NEGATIVE_TTL = "scape.identifierCache.negativeTtl";
+
+    /**
+     * The directory of the persistent identifier index. If not set, identifiers are only looked up in the resource
+     * index
+     */
+    public static final String IDENTIFIER_INDEX_DIRECTORY = "scape.identifierIndex.directory";
+    /**
+     * The initial number of slots of a new persistent identifier index
+     */
+    public static final String IDENTIFIER_INDEX_CAPACITY = "scape.identifierIndex.capacity";
+
+    /**
+     * The maximum number of bytes of entities rendered as METS to cache. Zero disables the cache
+     */
+    public static final String RENDERED_ENTITY_CACHE_SIZE = "scape.renderedEntityCache.maxBytes";
+    /**
+     * The number of milliseconds an entity rendered as METS is cached
+     */
+    public static final String RENDERED_ENTITY_CACHE_TTL = "scape.renderedEntityCache.ttl";
+
+    /**
+     * The maximum number of objects to cache the resolved file uris of
+     */
+    public static final String FILE_URI_CACHE_SIZE = "scape.fileUriCache.size";
+    /**
+     * The number of milliseconds the resolved file uris of an object are cached
+     */
+    public static final String FILE_URI_CACHE_TTL = "scape.fileUriCache.ttl";
+
+    /**
+     * The number of milliseconds to wait for a connection when fedora is called directly through its REST api
+     */
+    public static final String FEDORA_CONNECT_TIMEOUT = "scape.fedoraRest.connectTimeout";
+    /**
+     * The number of milliseconds to wait for data when fedora is called directly through its REST api
+     */
+    public static final String FEDORA_READ_TIMEOUT = "scape.fedoraRest.readTimeout";
+
+    /**
+     * If true, new entities are ingested as single FOXML documents through the fedora REST api
+     */
+    public static final String FOXML_INGEST = "scape.foxmlIngest";
+
+    /**
+     * If true, updates must give the entity tag of the version they are based on in an If-Match header
+     */
+    public static final String REQUIRE_IF_MATCH = "scape.requireIfMatch";
+
+    /**
+     * How entities are read, see {@link ReadMode}
+     */
+    public static final String READ_MODE = "scape.readMode";
+    /**
+     * The number of threads fetching datastreams concurrently, shared by all requests
+     */
+    public static final String READ_THREADS = "scape.readThreads";
+    /**
+     * The number of threads writing datastreams concurrently, shared by all requests
+     */
+    public static final String WRITE_THREADS = "scape.writeThreads";
+    /**
+     * The maximum number of datastreams written concurrently by a single request. 1 writes them one by one
+     */
+    public static final String WRITE_PARALLELISM = "scape.writeParallelism";
+
+    private static ExpiringCache<String, EntityManipulator> pool;
+    private static DSCompositeModelCache dsCompositeModelCache;
+    private static IdentifierCache identifierCache;
+    private static IdentifierIndex identifierIndex;
+    private static RenderedEntityCache renderedEntityCache;
+    private static FileUriCache fileUriCache;
+    private static ReadMode readMode;
+    private static ExecutorService readExecutor;
+    private static ExecutorService writeExecutor;
+    private static int writeParallelism;
+
     public static EntityManipulator getInstance(Credentials credentials) throws
 
                                                 ConfigurationException {
+        EntityManipulator instance = getPool().get(key(credentials));
+        if (instance == null) {
+            instance = newInstance(credentials);
+            setInstance(credentials, instance);
+        }
+        return instance;
+    }
+
+    /**
+     * Pool the entity manipulator for the credentials, sharing the caches of the factory. Tests use this to serve the
+     * services from a mocked fedora.
+     */
+    static void setInstance(Credentials credentials, EntityManipulator instance) throws ConfigurationException {
+        ExpiringCache<String, EntityManipulator> pool = getPool();
+        String scope = scope(credentials);
+        instance.setRenderedEntityCache(renderedEntityCache, scope);
+        instance.setFileUriCache(fileUriCache, scope);
+        pool.put(key(credentials), instance);
+    }
+
+    private static String key(Credentials credentials) {
+        return credentials.getUsername() + "\u0000" + credentials.getPassword();
+    }
+
+    /**
+     * @param credentials the credentials
+     *
+     * @return a name for the credentials, that does not reveal the password, to keep what was read or done with
+     * different credentials apart
+     */
+    public static String scope(Credentials credentials) {
+        return Bytes.toHex(Checksums.md5(credentials.getUsername() + "\u0000" + credentials.getPassword()));
+    }
+
+    private static EntityManipulator newInstance(Credentials credentials) throws ConfigurationException {
         try {
-            return new EntityManipulator(
+            String domsUrl = ConfigUtils.getString("doms.url", null);
+            String pidGeneratorUrl = ConfigUtils.getString("pidgenerator.url", null);
+            EntityManipulator instance = new EntityManipulator(
                     new ArrayList<String>(), new EnhancedFedoraImpl(
                     credentials,
-                    ConfigCollection.getProperties().getProperty("doms.url"),
-                    ConfigCollection.getProperties().getProperty("pidgenerator.url"),
-                    null), ConfigCollection.getProperties().getProperty("scape.contentModel"));
+                    domsUrl,
+                    pidGeneratorUrl,
+                    null), ConfigUtils.getString("scape.contentModel", null), dsCompositeModelCache,
+                    identifierCache);
+            instance.setReadMode(readMode, readExecutor);
+            instance.setWriteExecutor(writeExecutor, writeParallelism);
+            instance.setIdentifierIndex(identifierIndex);
+            instance.setRequireEntityTag(ConfigUtils.getBoolean(REQUIRE_IF_MATCH, false));
+            if (ConfigUtils.getBoolean(FOXML_INGEST, false)) {
+                instance.setIngestClient(
+                        new FedoraIngestClient(
+                                credentials,
+                                domsUrl,
+                                new PIDGeneratorClient(pidGeneratorUrl),
+                                ConfigUtils.getInt(FEDORA_CONNECT_TIMEOUT, FedoraIngestClient.DEFAULT_CONNECT_TIMEOUT),
+                                ConfigUtils.getInt(FEDORA_READ_TIMEOUT, FedoraIngestClient.DEFAULT_READ_TIMEOUT)));
+            }
+            if (readMode == ReadMode.EXPORT) {
+                instance.setExportClient(
+                        new FedoraExportClient(
+                                credentials,
+                                domsUrl,
+                                ConfigUtils.getInt(FEDORA_CONNECT_TIMEOUT, FedoraExportClient.DEFAULT_CONNECT_TIMEOUT),
+                                ConfigUtils.getInt(FEDORA_READ_TIMEOUT, FedoraExportClient.DEFAULT_READ_TIMEOUT)));
+            }
+            return instance;
         } catch (JAXBException | PIDGeneratorException | MalformedURLException e) {
-            throw new ConfigurationException();
+            throw new ConfigurationException(e);
         }
+    }
+
+    private static synchronized ExpiringCache<String, EntityManipulator> getPool() throws ConfigurationException {
+        if (pool == null) {
+            String indexDirectory = ConfigUtils.getString(IDENTIFIER_INDEX_DIRECTORY, null);
+            if (indexDirectory != null && !indexDirectory.trim().isEmpty()) {
+                try {
+                    identifierIndex = new IdentifierIndex(
+                            new File(indexDirectory.trim()),
+                            ConfigUtils.getInt(IDENTIFIER_INDEX_CAPACITY, IdentifierIndex.DEFAULT_CAPACITY));
+                } catch (IOException e) {
+                    throw new ConfigurationException(e);
+                }
+            }
+            pool = new ExpiringCache<>(ConfigUtils.getInt(POOL_SIZE, 100), ConfigUtils.getLong(POOL_TTL, 10 * 60 * 1000));
+            dsCompositeModelCache = new DSCompositeModelCache(
+                    ConfigUtils.getInt(DS_COMPOSITE_MODEL_CACHE_SIZE, DSCompositeModelCache.DEFAULT_SIZE),
+                    ConfigUtils.getLong(DS_COMPOSITE_MODEL_CACHE_TTL, DSCompositeModelCache.DEFAULT_TTL));
+            identifierCache = new IdentifierCache(
+                    ConfigUtils.getInt(IDENTIFIER_CACHE_SIZE, IdentifierCache.DEFAULT_SIZE),
+                    ConfigUtils.getLong(IDENTIFIER_CACHE_TTL, IdentifierCache.DEFAULT_TTL),
+                    ConfigUtils.getLong(IDENTIFIER_CACHE_NEGATIVE_TTL, IdentifierCache.DEFAULT_NEGATIVE_TTL));
+            renderedEntityCache = new RenderedEntityCache(
+                    ConfigUtils.getLong(RENDERED_ENTITY_CACHE_SIZE, RenderedEntityCache.DEFAULT_MAX_BYTES),
+                    ConfigUtils.getLong(RENDERED_ENTITY_CACHE_TTL, RenderedEntityCache.DEFAULT_TTL));
+            fileUriCache = new FileUriCache(
+                    ConfigUtils.getInt(FILE_URI_CACHE_SIZE, FileUriCache.DEFAULT_SIZE),
+                    ConfigUtils.getLong(FILE_URI_CACHE_TTL, FileUriCache.DEFAULT_TTL));
+            readMode = ReadMode.parse(ConfigUtils.getString(READ_MODE, null), ReadMode.SEQUENTIAL);
+            if (readMode == ReadMode.PARALLEL) {
+                readExecutor = ExecutorUtils.newBoundedExecutor(
+                        "scape-read", ConfigUtils.getInt(READ_THREADS, 16), 1000);
+            }
+            writeParallelism = ConfigUtils.getInt(WRITE_PARALLELISM, 1);
+            if (writeParallelism > 1) {
+                writeExecutor = ExecutorUtils.newBoundedExecutor(
+                        "scape-write", ConfigUtils.getInt(WRITE_THREADS, 16), 1000);
+            }
+        }
+        return pool;
+    }
 
+    /**
+     * Stop the threads of the factory and forget all pooled entity manipulators. Called when the webapp is stopped.
+     */
+    public static synchronized void shutdown() {
+        reset();
+        pool = null;
+        ExecutorUtils.shutdown(readExecutor);
+        readExecutor = null;
+        ExecutorUtils.shutdown(writeExecutor);
+        writeExecutor = null;
+        if (identifierIndex != null) {
+            try {
+                identifierIndex.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            identifierIndex = null;
+        }
+    }
+
+    /**
+     * Forget all pooled entity manipulators, so that the next call for any credentials builds a fresh one
+     */
+    public static synchronized void reset() {
+        if (pool != null) {
+            pool.clear();
+            dsCompositeModelCache.invalidateAll();
+            identifierCache.invalidateAll();
+            renderedEntityCache.clear();
+            fileUriCache.invalidateAll();
+        }
+    }
+
+    /**
+     * @return the cache of entities rendered as METS, for its statistics, or null if no entity has been read yet
+     */
+    public static synchronized RenderedEntityCache getRenderedEntityCache() {
+        return renderedEntityCache;
+    }
+
+    /**
+     * Forget the resolved file uris of an object, for all credentials, to be called when the object has been changed
+     * outside of this webapp
+     *
+     * @param pid the pid of the object
+     */
+    public static synchronized void invalidateFileUris(String pid) {
+        if (fileUriCache != null) {
+            fileUriCache.invalidate(pid);
+        }
+    }
+
+    /**
+     * Forget the cached DS-COMPOSITE-MODEL of a content model, to be called when the content model has been changed
+     *
+     * @param contentModel the pid of the content model
+     */
+    public static synchronized void invalidateContentModel(String contentModel) {
+        if (dsCompositeModelCache != null) {
+            dsCompositeModelCache.invalidate(contentModel);
+        }
     }
 }
@@ -26,27 +26,83 @@ import versions.VersionType;
 import versions.VersionsType;
 
 import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URI;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 public class EntityManipulator {
 
 
     public static final String HASMODEL = "info:fedora/fedora-system:def/model#hasModel";
     public static final String SCAPE_VERSIONS = "SCAPE_VERSIONS";
+    /**
+     * Striped locks serializing the updates of each object, shared by all entity manipulators
+     */
+    private static final Object[] UPDATE_LOCKS = new Object[64];
+
+    static {
+        for (int i = 0; i < UPDATE_LOCKS.length; i++) {
+            UPDATE_LOCKS[i] = new Object();
+        }
+    }
     private List<String> collections;
     private EnhancedFedora enhancedFedora;
     private String scape_content_model;
+    private DSCompositeModelCache dsCompositeModelCache;
+    private IdentifierCache identifierCache;
+    private IdentifierIndex identifierIndex;
+    private FileUriCache fileUriCache = new FileUriCache();
+    private String fileUriCacheScope = "";
+    private RenderedEntityCache renderedEntityCache;
+    private boolean requireEntityTag = false;
+    private String renderedEntityCacheScope;
+    private ReadMode readMode = ReadMode.SEQUENTIAL;
+    private ExecutorService executor;
+    private FedoraExportClient exportClient;
+    private FedoraIngestClient ingestClient;
+    private ExecutorService writeExecutor;
+    private int writeParallelism = 1;
 
 
     public EntityManipulator(List<String> collections, EnhancedFedora enhancedFedora, String scape_content_model) throws
                                                                                                                   JAXBException {
+        this(collections, enhancedFedora, scape_content_model, new DSCompositeModelCache());
+    }
+
+    public EntityManipulator(List<String> collections, EnhancedFedora enhancedFedora, String scape_content_model,
+                             DSCompositeModelCache dsCompositeModelCache) throws JAXBException {
+        this(collections, enhancedFedora, scape_content_model, dsCompositeModelCache, new IdentifierCache());
+    }
+
+    public EntityManipulator(List<String> collections, EnhancedFedora enhancedFedora, String scape_content_model,
+                             DSCompositeModelCache dsCompositeModelCache, IdentifierCache identifierCache) throws
+                                                                                                          JAXBException {
         this.collections = collections;
         this.enhancedFedora = enhancedFedora;
         this.scape_content_model = scape_content_model;
+        this.dsCompositeModelCache = dsCompositeModelCache;
+        this.identifierCache = identifierCache;
     }
 
     /**
@@ -72,83 +128,337 @@ public class EntityManipulator {
                                                                               ParsingException {
         EnhancedFedora fedora = getEnhancedFedora();
 
-        List<String> identifiers = null;
         try {
-
-            Long timestamp = null;
-            if (versionID != null) {
+            if (readMode == ReadMode.EXPORT && exportClient != null) {
+                return readExport(pid, versionID, fedora);
+            }
+            if (readMode == ReadMode.PARALLEL && executor != null) {
+                //DC is the same for every version, so it is fetched while SCAPE_VERSIONS and the profile are read
+                Future<List<String>> identifiersFuture = submitDCIdentifiers(pid, fedora);
                 try {
-                    String scapeVersions = fedora.getXMLDatastreamContents(pid, SCAPE_VERSIONS);
-                    timestamp = VersionUtils.findVersionInScapeVersions(scapeVersions, versionID);
-                } catch (BackendInvalidResourceException e) {
-
+                    Long timestamp = findTimestamp(pid, versionID, fedora);
+                    ObjectProfile profile = fedora.getObjectProfile(pid, timestamp);
+                    return readParallel(pid, versionID, timestamp, profile, fedora, identifiersFuture);
+                } finally {
+                    identifiersFuture.cancel(true);
                 }
             }
 
-            identifiers = TypeUtils.getDCIdentifiers(fedora, pid, "scape");
-
+            Long timestamp = findTimestamp(pid, versionID, fedora);
             ObjectProfile profile = fedora.getObjectProfile(pid, timestamp);
-            DSCompositeModel model = getDsCompositeModel(fedora, profile.getContentModels(),timestamp);
+            return read(pid, versionID, timestamp, profile, fedora);
+        } catch (BackendMethodFailedException e) {
+            throw new CommunicationException(e);
+        } catch (BackendInvalidResourceException e) {
+            throw new NotFoundException(e);
+        } catch (BackendInvalidCredsException e) {
+            throw new UnauthorizedException(e);
+        }
+    }
 
-            //Build the entity
-            IntellectualEntity.Builder builder = new IntellectualEntity.Builder();
+    /**
+     * Read the entity from the object profile as of the version
+     *
+     * @param timestamp the timestamp of the version, or null for the newest
+     * @param profile   the object profile as of the timestamp
+     */
+    private IntellectualEntity read(String pid, String versionID, Long timestamp, ObjectProfile profile,
+                                    EnhancedFedora fedora) throws
+                                                           BackendMethodFailedException,
+                                                           BackendInvalidResourceException,
+                                                           BackendInvalidCredsException,
+                                                           ParsingException,
+                                                           CommunicationException {
+        if (readMode == ReadMode.PARALLEL && executor != null) {
+            return readParallel(pid, versionID, timestamp, profile, fedora, submitDCIdentifiers(pid, fedora));
+        }
+
+        List<String> identifiers = getDCIdentifiers(pid, fedora);
+
+        DSCompositeModel model = getDsCompositeModel(fedora, profile.getContentModels());
+
+        Map<String, Object> contents = new HashMap<>();
+        for (String datastream : getMetadataDatastreams(model)) {
+            contents.put(datastream, getIfExists(pid, fedora, profile, datastream, timestamp));
+        }
+        return buildEntity(pid, versionID, identifiers, profile, model, contents);
+    }
 
-            String entityIdentifier = TypeUtils.pickEntityIdentifier(pid,identifiers);
-            builder.identifier(new Identifier(entityIdentifier));
-            builder.descriptive(getIfExists(pid, fedora, profile, model.getDescriptive(),timestamp));
-            builder.lifecycleState((LifecycleState) getIfExists(pid, fedora, profile, model.getLifeCycle(),timestamp));
-            builder.versionNumber(intOrNull(versionID));
+    /**
+     * Read the entity like {@link #read(String, String, boolean)}, but fetch all the metadata datastreams concurrently
+     * on the executor, while the DC is fetched, so the time taken is the slowest fetch rather than the sum of them.
+     *
+     * @param identifiersFuture the identifiers in the DC, as submitted with {@link #submitDCIdentifiers}
+     */
+    private IntellectualEntity readParallel(final String pid, String versionID, final Long timestamp,
+                                            final ObjectProfile profile, final EnhancedFedora fedora,
+                                            Future<List<String>> identifiersFuture) throws
+                                                                                                      BackendMethodFailedException,
+                                                                                                      BackendInvalidResourceException,
+                                                                                                      BackendInvalidCredsException,
+                                                                                                      ParsingException,
+                                                                                                      CommunicationException {
+        List<Future<?>> futures = new ArrayList<>();
+        futures.add(identifiersFuture);
+        try {
 
-            /*
-            Versions will be handled as a separate datastream. It will have hold the
-            version "number" along with the timestamp, so that we can request the fedora object with the correct
-            timestamp. This does require that EVERYTHING on the fedora object is versioned
-             */
+            DSCompositeModel model = getDsCompositeModel(fedora, profile.getContentModels());
 
+            Map<String, Future<Object>> contentFutures = new HashMap<>();
+            for (final String datastream : getMetadataDatastreams(model)) {
+                Future<Object> future = executor.submit(
+                        new Callable<Object>() {
+                            @Override
+                            public Object call() throws Exception {
+                                return getIfExists(pid, fedora, profile, datastream, timestamp);
+                            }
+                        });
+                contentFutures.put(datastream, future);
+                futures.add(future);
+            }
 
-            //Build the representation
-            Representation.Builder rep_builder = new Representation.Builder();
-            String representationIdentifier = TypeUtils.pickRepresentationIdentifier(pid,identifiers);
-            rep_builder.identifier(new Identifier(representationIdentifier));
-            for (String repTechDatastream : model.getRepresentationTechnical()) {
-                rep_builder.technical(repTechDatastream, getIfExists(pid, fedora, profile, repTechDatastream,timestamp));
+            Map<String, Object> contents = new HashMap<>();
+            for (Map.Entry<String, Future<Object>> entry : contentFutures.entrySet()) {
+                contents.put(entry.getKey(), await(entry.getValue()));
             }
+            return buildEntity(pid, versionID, await(identifiersFuture), profile, model, contents);
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Start fetching the identifiers in the DC of the object on the executor
+     */
+    private Future<List<String>> submitDCIdentifiers(final String pid, final EnhancedFedora fedora) {
+        return executor.submit(
+                new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() throws Exception {
+                        return getDCIdentifiers(pid, fedora);
+                    }
+                });
+    }
+
+    /**
+     * Read the entity like {@link #read(String, String, boolean)}, but from a single FOXML export of the object instead
+     * of one request per datastream. Datastreams whose content is not part of the export are fetched separately.
+     */
+    private IntellectualEntity readExport(String pid, String versionID, EnhancedFedora fedora) throws
+                                                                                            BackendMethodFailedException,
+                                                                                            BackendInvalidResourceException,
+                                                                                            BackendInvalidCredsException,
+                                                                                            ParsingException,
+                                                                                            CommunicationException,
+                                                                                            NotFoundException,
+                                                                                            UnauthorizedException {
+        FoxmlObject object = exportClient.export(pid, versionID != null);
+        Long timestamp = findTimestamp(pid, versionID, object);
+        return readExport(pid, versionID, object, timestamp, object.getProfile(timestamp), fedora);
+    }
+
+    /**
+     * Read the entity as of the version from the export of the object
+     *
+     * @param object    the export of the object
+     * @param timestamp the timestamp of the version, or null for the newest
+     * @param profile   the object profile of the export as of the timestamp
+     */
+    private IntellectualEntity readExport(String pid, String versionID, FoxmlObject object, Long timestamp,
+                                          ObjectProfile profile, EnhancedFedora fedora) throws
+                                                                                        BackendMethodFailedException,
+                                                                                        BackendInvalidResourceException,
+                                                                                        BackendInvalidCredsException,
+                                                                                        ParsingException {
+        List<String> identifiers = TypeUtils.getDCIdentifiers(object.getContent("DC", null), "scape");
+        identifierCache.putIdentifiers(pid, identifiers);
 
-            rep_builder.rights(getIfExists(pid, fedora, profile, model.getRights(),timestamp));
-            rep_builder.source(getIfExists(pid, fedora, profile, model.getSource(),timestamp));
-            rep_builder.provenance(getIfExists(pid, fedora, profile, model.getProvenance(),timestamp));
-            rep_builder.title(profile.getLabel());
+        DSCompositeModel model = getDsCompositeModel(fedora, profile.getContentModels());
 
-            //Build the File
-            File.Builder file_builder = new File.Builder();
-            String fileIdentifier = TypeUtils.pickFileIdentifier(pid,identifiers);
-            file_builder.identifier(new Identifier(fileIdentifier));
-            for (String fileTechDatastream : model.getFileTechnical()) {
-                file_builder.technical(fileTechDatastream, getIfExists(pid, fedora, profile, fileTechDatastream,timestamp));
+        Map<String, Object> contents = new HashMap<>();
+        for (String datastream : getMetadataDatastreams(model)) {
+            String content = object.getContent(datastream, timestamp);
+            if (content != null) {
+                contents.put(datastream, XmlUtils.toObject(content));
+            } else {
+                contents.put(datastream, getIfExists(pid, fedora, profile, datastream, timestamp));
             }
+        }
+        return buildEntity(pid, versionID, identifiers, profile, model, contents);
+    }
 
-            String contentDatastreamName = model.getFileContent();
-            for (DatastreamProfile datastreamProfile : profile.getDatastreams()) {
-                if (datastreamProfile.getID().equals(contentDatastreamName)) {
-                    file_builder.filename(datastreamProfile.getLabel());
-                    file_builder.mimetype(datastreamProfile.getMimeType());
-                    file_builder.uri(URI.create(datastreamProfile.getUrl()));
-                    break;
-                }
+    /**
+     * Wait for the future and unwrap the exception it failed with, if any
+     */
+    private static <T> T await(Future<T> future) throws
+                                                 BackendMethodFailedException,
+                                                 BackendInvalidResourceException,
+                                                 BackendInvalidCredsException,
+                                                 ParsingException,
+                                                 CommunicationException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommunicationException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof BackendMethodFailedException) {
+                throw (BackendMethodFailedException) cause;
+            }
+            if (cause instanceof BackendInvalidResourceException) {
+                throw (BackendInvalidResourceException) cause;
+            }
+            if (cause instanceof BackendInvalidCredsException) {
+                throw (BackendInvalidCredsException) cause;
+            }
+            if (cause instanceof ParsingException) {
+                throw (ParsingException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
             }
-            //Build the bitstreams
-            rep_builder.files(Arrays.asList(file_builder.build()));
-            builder.representations(Arrays.asList(rep_builder.build()));
-            return builder.build();
-        } catch (BackendMethodFailedException e) {
             throw new CommunicationException(e);
-        } catch (BackendInvalidResourceException e) {
-            throw new NotFoundException(e);
-        } catch (BackendInvalidCredsException e) {
-            throw new UnauthorizedException(e);
         }
     }
 
+    /**
+     * Get the scape identifiers from the DC of the object, from the identifier cache if possible
+     */
+    private List<String> getDCIdentifiers(String pid, EnhancedFedora fedora) throws
+                                                                          BackendMethodFailedException,
+                                                                          BackendInvalidResourceException,
+                                                                          BackendInvalidCredsException {
+        List<String> identifiers = identifierCache.getIdentifiers(pid);
+        if (identifiers == null) {
+            identifiers = TypeUtils.getDCIdentifiers(fedora, pid, "scape");
+            identifierCache.putIdentifiers(pid, identifiers);
+        }
+        return identifiers;
+    }
+
+    /**
+     * Find the timestamp of the version in the SCAPE_VERSIONS datastream
+     *
+     * @return the timestamp, or null if no version was requested or the version could not be found
+     */
+    private Long findTimestamp(String pid, String versionID, EnhancedFedora fedora) throws
+                                                                                    BackendInvalidCredsException,
+                                                                                    BackendMethodFailedException {
+        Long timestamp = null;
+        if (versionID != null) {
+            try {
+                String scapeVersions = fedora.getXMLDatastreamContents(pid, SCAPE_VERSIONS);
+                timestamp = VersionUtils.findVersionInScapeVersions(pid, scapeVersions, versionID);
+            } catch (BackendInvalidResourceException e) {
+
+            }
+        }
+        return timestamp;
+    }
+
+    /**
+     * @return the timestamp of the version in the SCAPE_VERSIONS of the export, or null for the newest or an unknown
+     * version
+     */
+    private static Long findTimestamp(String pid, String versionID, FoxmlObject object) {
+        if (versionID != null) {
+            String scapeVersions = object.getContent(SCAPE_VERSIONS, null);
+            if (scapeVersions != null) {
+                return VersionUtils.findVersionInScapeVersions(pid, scapeVersions, versionID);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the names of all the xml datastreams the model maps to parts of the entity
+     */
+    private List<String> getMetadataDatastreams(DSCompositeModel model) {
+        List<String> result = new ArrayList<>();
+        for (String datastream : Arrays.asList(
+                model.getDescriptive(),
+                model.getLifeCycle(),
+                model.getRights(),
+                model.getSource(),
+                model.getProvenance())) {
+            if (datastream != null) {
+                result.add(datastream);
+            }
+        }
+        result.addAll(model.getRepresentationTechnical());
+        result.addAll(model.getFileTechnical());
+        return result;
+    }
+
+    /**
+     * Build the entity from the parts read from fedora
+     *
+     * @param contents the parsed contents of the metadata datastreams, by datastream name
+     */
+    private IntellectualEntity buildEntity(String pid, String versionID, List<String> identifiers, ObjectProfile profile,
+                                           DSCompositeModel model, Map<String, Object> contents) {
+        //Build the entity
+        IntellectualEntity.Builder builder = new IntellectualEntity.Builder();
+
+        String entityIdentifier = TypeUtils.pickEntityIdentifier(pid,identifiers);
+        builder.identifier(new Identifier(entityIdentifier));
+        builder.descriptive(get(contents, model.getDescriptive()));
+        builder.lifecycleState((LifecycleState) get(contents, model.getLifeCycle()));
+        builder.versionNumber(intOrNull(versionID));
+
+        /*
+        Versions will be handled as a separate datastream. It will have hold the
+        version "number" along with the timestamp, so that we can request the fedora object with the correct
+        timestamp. This does require that EVERYTHING on the fedora object is versioned
+         */
+
+
+        //Build the representation
+        Representation.Builder rep_builder = new Representation.Builder();
+        String representationIdentifier = TypeUtils.pickRepresentationIdentifier(pid,identifiers);
+        rep_builder.identifier(new Identifier(representationIdentifier));
+        for (String repTechDatastream : model.getRepresentationTechnical()) {
+            rep_builder.technical(repTechDatastream, get(contents, repTechDatastream));
+        }
+
+        rep_builder.rights(get(contents, model.getRights()));
+        rep_builder.source(get(contents, model.getSource()));
+        rep_builder.provenance(get(contents, model.getProvenance()));
+        rep_builder.title(profile.getLabel());
+
+        //Build the File
+        File.Builder file_builder = new File.Builder();
+        String fileIdentifier = TypeUtils.pickFileIdentifier(pid,identifiers);
+        file_builder.identifier(new Identifier(fileIdentifier));
+        for (String fileTechDatastream : model.getFileTechnical()) {
+            file_builder.technical(fileTechDatastream, get(contents, fileTechDatastream));
+        }
+
+        String contentDatastreamName = model.getFileContent();
+        for (DatastreamProfile datastreamProfile : profile.getDatastreams()) {
+            if (datastreamProfile.getID().equals(contentDatastreamName)) {
+                file_builder.filename(datastreamProfile.getLabel());
+                file_builder.mimetype(datastreamProfile.getMimeType());
+                file_builder.uri(URI.create(datastreamProfile.getUrl()));
+                break;
+            }
+        }
+        //Build the bitstreams
+        rep_builder.files(Arrays.asList(file_builder.build()));
+        builder.representations(Arrays.asList(rep_builder.build()));
+        return builder.build();
+    }
+
+    private static Object get(Map<String, Object> contents, String datastream) {
+        if (datastream == null) {
+            return null;
+        }
+        return contents.get(datastream);
+    }
+
     private Integer intOrNull(String versionID) {
         if (versionID != null){
             try {
@@ -210,13 +520,123 @@ public class EntityManipulator {
                         "An entity with id '" + entity.getIdentifier()
                                                       .getValue() + "' already exists");
             } catch (NotFoundException e) {
-                return createOrUpdate(null, entity);
+                if (ingestClient != null) {
+                    return ingest(entity);
+                }
+                return createOrUpdate(null, entity, null);
             }
-        } catch (NotFoundException e) {
+        } catch (NotFoundException | VersioningException e) {
             throw new CommunicationException(e);//This should not be possible, so it means something else is broken
         }
     }
 
+    /**
+     * Create a new entity in doms by ingesting it as a single FOXML document. The initial version is written after the
+     * ingest, as fedora stamps the datastreams with the time of the ingest, and the version must not predate them. If
+     * the version cannot be written, the object is purged again.
+     *
+     * @param entity the entity to persist
+     *
+     * @return the pid of the new entity
+     */
+    private String ingest(IntellectualEntity entity) throws
+                                                     CommunicationException,
+                                                     AlreadyExistsException,
+                                                     ParsingException,
+                                                     UnauthorizedException {
+        EnhancedFedora fedora = getEnhancedFedora();
+
+        try {
+            String logmessage = "logmessage";
+
+            List<String> scapeIdentifiers = TypeUtils.formatIdentifiers(entity);
+            String contentModel = EqualUtils.longForm(scape_content_model);
+            DSCompositeModel model = getDsCompositeModel(fedora, Arrays.asList(contentModel));
+
+            FoxmlBuilder foxml = new FoxmlBuilder(ingestClient.nextPid()).identifiers(scapeIdentifiers)
+                                                                         .contentModel(contentModel)
+                                                                         .collections(getCollections());
+            for (Map.Entry<String, Object> datastream : datastreamContents(entity, model).entrySet()) {
+                if (datastream.getValue() != null) {
+                    foxml.xmlDatastream(datastream.getKey(), XmlUtils.toString(datastream.getValue()));
+                }
+            }
+            for (Representation representation : entity.getRepresentations()) {
+                if (representation.getTitle() != null) {
+                    foxml.label(representation.getTitle());
+                }
+                for (File file : representation.getFiles()) {
+                    if (file.getFilename() != null && file.getUri() != null && file.getMimetype() != null) {
+                        foxml.externalDatastream(
+                                model.getFileContent(),
+                                file.getFilename(),
+                                file.getUri().toString(),
+                                "unknown",
+                                file.getMimetype());
+                    }
+                }
+            }
+
+            String pid = foxml.getPid();
+            pid = ingestClient.ingest(pid, foxml.build(), logmessage);
+
+            //An object without versions would make every retry fail as already existing, so it is purged
+            try {
+                VersionsType versions = new VersionsType();
+                VersionType version = new VersionType();
+                version.setId(1);
+                version.setTimestamp(new Date().getTime());
+                versions.getVersion().add(version);
+                VersionUtils.setVersions(pid, fedora, logmessage, versions);
+            } catch (BackendInvalidCredsException | BackendInvalidResourceException | BackendMethodFailedException |
+                    CommunicationException | RuntimeException e) {
+                try {
+                    ingestClient.purge(pid, "Failed to set the versions of the new object");
+                } catch (UnauthorizedException | CommunicationException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+            identifierCache.invalidate(pid, scapeIdentifiers);
+            index(pid, scapeIdentifiers);
+            return pid;
+        } catch (XMLStreamException e) {
+            throw new ParsingException(e);
+        } catch (BackendInvalidCredsException e) {
+            throw new UnauthorizedException(e);
+        } catch (BackendInvalidResourceException | BackendMethodFailedException e) {
+            throw new CommunicationException(e);
+        }
+    }
+
+    /**
+     * The contents of the xml datastreams of the entity, in the order they are written. When the same datastream is
+     * given by more than one representation or file, the last one is kept, as it would be the last one written.
+     *
+     * @return the contents keyed by datastream id. A null content means the datastream should not exist
+     */
+    private Map<String, Object> datastreamContents(IntellectualEntity entity, DSCompositeModel model) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put(model.getLifeCycle(), entity.getLifecycleState());
+        result.put(model.getDescriptive(), entity.getDescriptive());
+        for (Representation representation : entity.getRepresentations()) {
+            result.put(model.getProvenance(), representation.getProvenance());
+            result.put(model.getRights(), representation.getRights());
+            result.put(model.getSource(), representation.getSource());
+            for (String representationTechnicalDatastream : model.getRepresentationTechnical()) {
+                result.put(
+                        representationTechnicalDatastream,
+                        findContents(representationTechnicalDatastream, representation.getTechnical()));
+            }
+            for (File file : representation.getFiles()) {
+                for (String fileTechnicalMetadata : model.getFileTechnical()) {
+                    result.put(fileTechnicalMetadata, findContents(fileTechnicalMetadata, file.getTechnical()));
+                }
+            }
+        }
+        return result;
+    }
+
     private Object findContents(String representationTechnicalDatastream, TechnicalMetadataList technical) {
         if (technical != null) {
             for (TechnicalMetadata technicalMetadata : technical.getContent()) {
@@ -234,12 +654,14 @@ public class EntityManipulator {
      *
      * @param pid
      * @param entity
+     * @param expectedTag the entity tag the update is based on, or null. Only checked for updates
      */
-    private String createOrUpdate(String pid, IntellectualEntity entity) throws
-                                                                         CommunicationException,
-                                                                         NotFoundException,
-                                                                         ParsingException,
-                                                                         UnauthorizedException {
+    private String createOrUpdate(String pid, IntellectualEntity entity, String expectedTag) throws
+                                                                                             CommunicationException,
+                                                                                             NotFoundException,
+                                                                                             ParsingException,
+                                                                                             UnauthorizedException,
+                                                                                             VersioningException {
         EnhancedFedora fedora = getEnhancedFedora();
 
         try {
@@ -252,63 +674,61 @@ public class EntityManipulator {
             if (pid == null) {
                 //We have a new object here, with the identifiers
                 pid = fedora.newEmptyObject(scapeIdentifiers, getCollections(), logmessage);
+                identifierCache.invalidate(pid, scapeIdentifiers);
+                index(pid, scapeIdentifiers);
                 //add the content models
                 String contentModel = EqualUtils.longForm(scape_content_model);
                 fedora.addRelation(
                         pid, EqualUtils.longForm(pid), HASMODEL, contentModel, false, logmessage);
 
                 profile = null;
-                model = getDsCompositeModel(fedora, Arrays.asList(contentModel), null);
+                model = getDsCompositeModel(fedora, Arrays.asList(contentModel));
 
             } else {
                 profile = fedora.getObjectProfile(pid, null);
+                checkEntityTag(pid, profile, expectedTag, fedora);
                 setIdentifiers(pid, scapeIdentifiers, fedora);
-                model = getDsCompositeModel(fedora, profile.getContentModels(), null);
+                identifierCache.invalidate(pid, scapeIdentifiers);
+                model = getDsCompositeModel(fedora, profile.getContentModels());
 
             }
 
             //TODO version number
 
-            changeIfNeeded(pid, fedora, logmessage, profile, model.getLifeCycle(), entity.getLifecycleState());
-            changeIfNeeded(pid, fedora, logmessage, profile, model.getDescriptive(), entity.getDescriptive());
-
+            //The writes are independent, so they are done concurrently. Only the last write of each datastream and
+            //of the label is kept, so no two writes touch the same thing.
+            List<Callable<Void>> writes = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : datastreamContents(entity, model).entrySet()) {
+                writes.add(changeIfNeededTask(pid, fedora, logmessage, profile, entry.getKey(), entry.getValue()));
+            }
+            String label = null;
+            File fileContent = null;
             for (Representation representation : entity.getRepresentations()) {
-                changeIfNeeded(pid, fedora, logmessage, profile, model.getProvenance(), representation.getProvenance());
-                changeIfNeeded(pid, fedora, logmessage, profile, model.getRights(), representation.getRights());
-                changeIfNeeded(pid, fedora, logmessage, profile, model.getSource(), representation.getSource());
-
-                for (String representationTechnicalDatastream : model.getRepresentationTechnical()) {
-                    Object contents = findContents(representationTechnicalDatastream, representation.getTechnical());
-                    changeIfNeeded(pid, fedora, logmessage, profile, representationTechnicalDatastream, contents);
-
-                }
                 if (representation.getTitle() != null) {
-                    fedora.modifyObjectLabel(pid, representation.getTitle(), logmessage);
+                    label = representation.getTitle();
                 } else {
                     //TODO remove label
                 }
                 for (File file : representation.getFiles()) {
-                    for (String fileTechnicalMetadata : model.getFileTechnical()) {
-                        Object contents = findContents(fileTechnicalMetadata, file.getTechnical());
-                        changeIfNeeded(pid, fedora, logmessage, profile, fileTechnicalMetadata, contents);
-                    }
                     if (file.getFilename() != null && file.getUri() != null && file.getMimetype() != null) {
-                        fedora.addExternalDatastream(
-                                pid,
-                                model.getFileContent(),
-                                file.getFilename(),
-                                file.getUri().toString(),
-                                "unknown",
-                                file.getMimetype(),
-                                null,
-                                logmessage);
+                        fileContent = file;
                     }
-
                 }
-
             }
+            if (label != null) {
+                writes.add(modifyLabelTask(pid, fedora, logmessage, label));
+            }
+            if (fileContent != null) {
+                writes.add(addFileContentTask(pid, fedora, logmessage, model.getFileContent(), fileContent));
+            }
+            write(writes);
 
-            updateVersion(pid,fedora,logmessage);
+            //Only when all the writes have succeeded is the new version recorded
+            updateVersion(pid,fedora,logmessage, getChecksum(profile, SCAPE_VERSIONS));
+            fileUriCache.invalidate(pid);
+            if (renderedEntityCache != null) {
+                renderedEntityCache.invalidate(pid);
+            }
             return pid;
         } catch (BackendInvalidCredsException e) {
             throw new UnauthorizedException(e);
@@ -319,13 +739,112 @@ public class EntityManipulator {
 
     }
 
-    private void updateVersion(String pid, EnhancedFedora fedora, String logMessage) throws
-                                                                                     BackendInvalidCredsException,
-                                                                                     BackendMethodFailedException,
-                                                                                     CommunicationException,
-                                                                                     BackendInvalidResourceException {
+    /**
+     * Do the writes, at most writeParallelism at a time on the write executor, or one by one if there is none. Returns
+     * when all writes are done. If a write fails, the writes not yet done are cancelled.
+     */
+    private void write(List<Callable<Void>> writes) throws
+                                                    BackendMethodFailedException,
+                                                    BackendInvalidResourceException,
+                                                    BackendInvalidCredsException,
+                                                    ParsingException,
+                                                    CommunicationException {
+        if (writeExecutor == null || writeParallelism <= 1) {
+            for (Callable<Void> write : writes) {
+                FutureTask<Void> task = new FutureTask<>(write);
+                task.run();
+                await(task);
+            }
+            return;
+        }
+        Deque<Future<Void>> running = new ArrayDeque<>();
+        try {
+            for (Callable<Void> write : writes) {
+                if (running.size() >= writeParallelism) {
+                    await(running.removeFirst());
+                }
+                running.addLast(writeExecutor.submit(write));
+            }
+            while (!running.isEmpty()) {
+                await(running.removeFirst());
+            }
+        } finally {
+            for (Future<Void> future : running) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private Callable<Void> changeIfNeededTask(final String pid, final EnhancedFedora fedora, final String logmessage,
+                                              final ObjectProfile profile, final String datastream,
+                                              final Object content) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                changeIfNeeded(pid, fedora, logmessage, profile, datastream, content);
+                return null;
+            }
+        };
+    }
 
-        VersionsType versions = VersionUtils.getVersions(pid, fedora);
+    private static Callable<Void> modifyLabelTask(final String pid, final EnhancedFedora fedora,
+                                                  final String logmessage, final String label) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                fedora.modifyObjectLabel(pid, label, logmessage);
+                return null;
+            }
+        };
+    }
+
+    private static Callable<Void> addFileContentTask(final String pid, final EnhancedFedora fedora,
+                                                     final String logmessage, final String datastream,
+                                                     final File file) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                fedora.addExternalDatastream(
+                        pid,
+                        datastream,
+                        file.getFilename(),
+                        file.getUri().toString(),
+                        "unknown",
+                        file.getMimetype(),
+                        null,
+                        logmessage);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Check that the object is still in the state the update is based on
+     */
+    private void checkEntityTag(String pid, ObjectProfile profile, String expectedTag, EnhancedFedora fedora) throws
+                                                                                                              VersioningException,
+                                                                                                              BackendInvalidCredsException,
+                                                                                                              BackendMethodFailedException,
+                                                                                                              CommunicationException {
+        if (expectedTag == null || expectedTag.equals("*")) {
+            if (expectedTag == null && requireEntityTag) {
+                throw new VersioningException("The update of '" + pid + "' does not give the version it is based on",
+                                              true);
+            }
+            return;
+        }
+        if (!expectedTag.equals(entityTag(pid, null, profile, versionsForTag(pid, null, profile, fedora)))) {
+            throw new VersioningException("'" + pid + "' has been changed since version " + expectedTag, false);
+        }
+    }
+
+    private void updateVersion(String pid, EnhancedFedora fedora, String logMessage, String versionsChecksum) throws
+                                                                                                              BackendInvalidCredsException,
+                                                                                                              BackendMethodFailedException,
+                                                                                                              CommunicationException,
+                                                                                                              BackendInvalidResourceException {
+
+        VersionsType versions = VersionUtils.getVersions(pid, fedora, versionsChecksum);
         VersionType version = new VersionType();
         Integer id = getHighestID(versions);
         version.setId(id+1);
@@ -334,6 +853,20 @@ public class EntityManipulator {
         VersionUtils.setVersions(pid, fedora, logMessage, versions);
     }
 
+    /**
+     * @return the checksum of the datastream in the profile, or null if the profile or the datastream is null
+     */
+    private static String getChecksum(ObjectProfile profile, String datastream) {
+        if (profile != null) {
+            for (DatastreamProfile datastreamProfile : profile.getDatastreams()) {
+                if (datastreamProfile.getID().equals(datastream)) {
+                    return datastreamProfile.getChecksum();
+                }
+            }
+        }
+        return null;
+    }
+
     private Integer getHighestID(VersionsType versions) {
         Integer result = Integer.MIN_VALUE;
         for (VersionType versionType : versions.getVersion()) {
@@ -357,25 +890,22 @@ public class EntityManipulator {
                                                                    BackendInvalidCredsException {
 
         if (content != null) {
-
-            String contentString = XmlUtils.toString(content);
-            String md5sum = Bytes.toHex(Checksums.md5(contentString));
-
-            boolean toWrite = true;
-            if (profile != null) {
-                for (DatastreamProfile datastreamProfile : profile.getDatastreams()) {
-                    if (datastreamProfile.getID().equals(datastream)) {
-                        if (md5sum.equalsIgnoreCase(datastreamProfile.getChecksum())) {
-                            toWrite = false;
-                            break;
-                        }
-                    }
-                }
+            //If the datastream exists, only its checksum is computed, without keeping the serialization
+            String checksum = getChecksum(profile, datastream);
+            if (checksum != null && XmlUtils.md5(content).equalsIgnoreCase(checksum)) {
+                return;
             }
-            if (toWrite) {
-                fedora.modifyDatastreamByValue(
-                        pid, datastream, contentString, md5sum, null, logmessage);
+            ByteArrayOutputStream contentBytes = new ByteArrayOutputStream();
+            MessageDigest digest = XmlUtils.newMd5();
+            XmlUtils.serialize(content, new DigestOutputStream(contentBytes, digest));
+            String contentString;
+            try {
+                contentString = contentBytes.toString("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new ParsingException(e);
             }
+            fedora.modifyDatastreamByValue(
+                    pid, datastream, contentString, Bytes.toHex(digest.digest()), null, logmessage);
         } else {
             try {
                 fedora.deleteDatastream(pid, datastream, logmessage);
@@ -385,15 +915,15 @@ public class EntityManipulator {
         }
     }
 
-    private DSCompositeModel getDsCompositeModel(EnhancedFedora fedora, List<String> contentModels, Long timestamp) throws
+    /**
+     * Get the current model of the content models. Every version of the entity is read with the current model, as the
+     * content models change rarely, and the cached models are invalidated when they do.
+     */
+    private DSCompositeModel getDsCompositeModel(EnhancedFedora fedora, List<String> contentModels) throws
                                                                                                     BackendMethodFailedException,
                                                                                                     BackendInvalidResourceException,
                                                                                                     BackendInvalidCredsException {
-        DSCompositeModel model = new DSCompositeModel();
-        for (String contentModel : contentModels) {
-            model.merge(new DSCompositeModel(EqualUtils.shortForm(contentModel), fedora,timestamp));
-        }
-        return model;
+        return dsCompositeModelCache.get(fedora, contentModels);
     }
 
 
@@ -402,6 +932,80 @@ public class EntityManipulator {
     }
 
 
+    /**
+     * Set how entities are read from fedora
+     *
+     * @param readMode the read mode
+     * @param executor the executor to fetch datastreams on in {@link ReadMode#PARALLEL}. Can be null for the other
+     *                 modes
+     */
+    public void setReadMode(ReadMode readMode, ExecutorService executor) {
+        this.readMode = readMode;
+        this.executor = executor;
+    }
+
+    /**
+     * Set the persistent index consulted for the pids of identifiers before the resource index
+     *
+     * @param identifierIndex the index, or null to only use the resource index
+     */
+    public void setIdentifierIndex(IdentifierIndex identifierIndex) {
+        this.identifierIndex = identifierIndex;
+    }
+
+    /**
+     * Set the cache of entities rendered as METS
+     *
+     * @param renderedEntityCache the cache, or null to not cache renderings
+     * @param scope               the scope of the cached renderings of this entity manipulator. Renderings are only
+     *                            shared between entity manipulators with the same scope
+     */
+    public void setRenderedEntityCache(RenderedEntityCache renderedEntityCache, String scope) {
+        this.renderedEntityCache = renderedEntityCache;
+        this.renderedEntityCacheScope = scope;
+    }
+
+    /**
+     * Set the cache of resolved file uris
+     *
+     * @param fileUriCache the cache, shared by all entity manipulators
+     * @param scope        the scope of the credentials of this entity manipulator in the cache
+     */
+    public void setFileUriCache(FileUriCache fileUriCache, String scope) {
+        this.fileUriCache = fileUriCache;
+        this.fileUriCacheScope = scope;
+    }
+
+    /**
+     * Set how the datastreams of an entity are written
+     *
+     * @param executor    the executor to write datastreams on, shared by all requests. Can be null to write the
+     *                    datastreams one by one
+     * @param parallelism the maximum number of datastreams written concurrently by a single request
+     */
+    public void setWriteExecutor(ExecutorService executor, int parallelism) {
+        this.writeExecutor = executor;
+        this.writeParallelism = parallelism;
+    }
+
+    /**
+     * Set the client used to ingest new entities as single FOXML documents
+     *
+     * @param ingestClient the ingest client, or null to create new entities datastream by datastream
+     */
+    public void setIngestClient(FedoraIngestClient ingestClient) {
+        this.ingestClient = ingestClient;
+    }
+
+    /**
+     * Set the client used to export objects in {@link ReadMode#EXPORT}
+     *
+     * @param exportClient the export client
+     */
+    public void setExportClient(FedoraExportClient exportClient) {
+        this.exportClient = exportClient;
+    }
+
     private List<String> getCollections() {
         return collections;
     }
@@ -421,17 +1025,438 @@ public class EntityManipulator {
         return read(pids.get(0), versionID, references);
     }
 
+    /**
+     * Get the cached rendering of the entity as METS. Fedora is not called, unless the pid of the entity is not known.
+     *
+     * @param entityID   the id of the entity
+     * @param versionID  the version of the entity, or null for the newest
+     * @param references whether to reference the metadata rather than wrap it
+     *
+     * @return the rendering or null if it is not cached
+     */
+    public RenderedEntityCache.Rendering getCachedRendering(String entityID, String versionID, boolean references) throws
+                                                                                                                 NotFoundException,
+                                                                                                                 CommunicationException,
+                                                                                                                 UnauthorizedException {
+        if (renderedEntityCache == null || !renderedEntityCache.isEnabled()) {
+            return null;
+        }
+        String pid = getPids(entityID).get(0);
+        return renderedEntityCache.get(
+                RenderedEntityCache.key(renderedEntityCacheScope, pid, versionID, references));
+    }
+
+    /**
+     * Read the state of the entity that conditional requests are evaluated against. Only the object profile and
+     * SCAPE_VERSIONS are read, or in the export read mode the export of the object. The parts of the entity can then be
+     * read from the snapshot without reading the profile or the export again.
+     *
+     * @param entityID  the id of the entity
+     * @param versionID the version of the entity, or null for the newest
+     *
+     * @return the snapshot
+     */
+    public Snapshot readSnapshotFromEntityID(String entityID, String versionID) throws
+                                                                               NotFoundException,
+                                                                               CommunicationException,
+                                                                               UnauthorizedException {
+        String pid = getPids(entityID).get(0);
+        //Read before the profile, so a rendering cached from the snapshot is dropped if the object changes meanwhile
+        long generation = renderedEntityCache != null ? renderedEntityCache.generation(pid) : 0;
+        EnhancedFedora fedora = getEnhancedFedora();
+        try {
+            if (readMode == ReadMode.EXPORT && exportClient != null) {
+                //The entity is read from the same export that the tag is computed from
+                FoxmlObject export = exportClient.export(pid, versionID != null);
+                Long timestamp = findTimestamp(pid, versionID, export);
+                ObjectProfile profile = export.getProfile(timestamp);
+                String tag = entityTag(pid, timestamp, profile, versionsForTag(pid, timestamp, profile, export));
+                return new Snapshot(pid, versionID, timestamp, profile, tag, generation, export);
+            }
+            Long timestamp = findTimestamp(pid, versionID, fedora);
+            ObjectProfile profile = fedora.getObjectProfile(pid, timestamp);
+            String tag = entityTag(pid, timestamp, profile, versionsForTag(pid, timestamp, profile, fedora));
+            return new Snapshot(pid, versionID, timestamp, profile, tag, generation, null);
+        } catch (ParsingException e) {
+            throw new CommunicationException(e);
+        } catch (BackendMethodFailedException e) {
+            throw new CommunicationException(e);
+        } catch (BackendInvalidResourceException e) {
+            throw new NotFoundException(e);
+        } catch (BackendInvalidCredsException e) {
+            throw new UnauthorizedException(e);
+        }
+    }
+
+    /**
+     * Read the entity from the snapshot, like {@link #readFromEntityID(String, String, boolean)}
+     */
+    public IntellectualEntity readFromSnapshot(Snapshot snapshot, boolean references) throws
+                                                                                     NotFoundException,
+                                                                                     CommunicationException,
+                                                                                     UnauthorizedException,
+                                                                                     ParsingException {
+        EnhancedFedora fedora = getEnhancedFedora();
+        try {
+            if (snapshot.export != null) {
+                return readExport(snapshot.pid, snapshot.versionID, snapshot.export, snapshot.timestamp,
+                                  snapshot.profile, fedora);
+            }
+            return read(snapshot.pid, snapshot.versionID, snapshot.timestamp, snapshot.profile, fedora);
+        } catch (BackendMethodFailedException e) {
+            throw new CommunicationException(e);
+        } catch (BackendInvalidResourceException e) {
+            throw new NotFoundException(e);
+        } catch (BackendInvalidCredsException e) {
+            throw new UnauthorizedException(e);
+        }
+    }
+
+    /**
+     * Start caching the rendering of the entity read from the snapshot. The rendering is cached when the fill is
+     * committed, unless it is too large or the entity was changed after the snapshot was read.
+     *
+     * @param snapshot   the snapshot the entity is read from
+     * @param references whether the metadata is referenced rather than wrapped
+     *
+     * @return the fill, or null if renderings are not cached
+     */
+    public RenderedEntityCache.Fill fillRenderingCache(Snapshot snapshot, boolean references) {
+        if (renderedEntityCache == null) {
+            return null;
+        }
+        return renderedEntityCache.fill(
+                RenderedEntityCache.key(renderedEntityCacheScope, snapshot.pid, snapshot.versionID, references),
+                snapshot.pid,
+                snapshot.tag,
+                snapshot.isVersionPinned(),
+                snapshot.generation);
+    }
+
+    /**
+     * Read only the lifecycle state of the entity. Only the object profile and the lifecycle datastream named by the
+     * content model are fetched, rather than the whole entity.
+     *
+     * @param entityID the id of the entity
+     *
+     * @return the lifecycle state, or null if the entity has none
+     */
+    public LifecycleState readLifecycleFromEntityID(String entityID) throws
+                                                                    NotFoundException,
+                                                                    CommunicationException,
+                                                                    UnauthorizedException,
+                                                                    ParsingException {
+        return readLifecycleFromSnapshot(readSnapshotFromEntityID(entityID, null));
+    }
+
+    /**
+     * Read only the lifecycle state of the entity from the snapshot, like {@link #readLifecycleFromEntityID(String)}
+     */
+    public LifecycleState readLifecycleFromSnapshot(Snapshot snapshot) throws
+                                                                      NotFoundException,
+                                                                      CommunicationException,
+                                                                      UnauthorizedException,
+                                                                      ParsingException {
+        String pid = snapshot.pid;
+        ObjectProfile profile = snapshot.profile;
+        Long timestamp = snapshot.timestamp;
+        EnhancedFedora fedora = getEnhancedFedora();
+        try {
+            DSCompositeModel model = getDsCompositeModel(fedora, profile.getContentModels());
+            if (model.getLifeCycle() == null) {
+                return null;
+            }
+            return (LifecycleState) getIfExists(pid, fedora, profile, model.getLifeCycle(), timestamp);
+        } catch (BackendMethodFailedException e) {
+            throw new CommunicationException(e);
+        } catch (BackendInvalidResourceException e) {
+            throw new NotFoundException(e);
+        } catch (BackendInvalidCredsException e) {
+            throw new UnauthorizedException(e);
+        }
+    }
+
+    /**
+     * Read a single metadata record of the entity, fetching only the datastreams the record is stored in, as named by
+     * the content model. The records are found as in the entity read by {@link #readFromEntityID(String, String,
+     * boolean)}.
+     *
+     * @param entityID         the id of the entity
+     * @param versionID        the version of the entity, or null for the newest
+     * @param representationID the id of the representation, or null for the descriptive metadata of the entity
+     * @param fileID           the id of the file, or null for the metadata of the representation
+     * @param bitstreamID      the id of the bitstream, or null for the metadata of the file
+     * @param metadataID       the kind of representation metadata, techMD, rightsMD, sourceMD or digiprovMD
+     *
+     * @return the metadata record
+     */
+    public Object readMetadataFromEntityID(String entityID, String versionID, String representationID, String fileID,
+                                           String bitstreamID, String metadataID) throws
+                                                                                  NotFoundException,
+                                                                                  CommunicationException,
+                                                                                  UnauthorizedException,
+                                                                                  ParsingException {
+        return readMetadataFromSnapshot(
+                readSnapshotFromEntityID(entityID, versionID), representationID, fileID, bitstreamID, metadataID);
+    }
+
+    /**
+     * Read a single metadata record of the entity from the snapshot, like {@link #readMetadataFromEntityID(String,
+     * String, String, String, String, String)}
+     */
+    public Object readMetadataFromSnapshot(Snapshot snapshot, String representationID, String fileID,
+                                           String bitstreamID, String metadataID) throws
+                                                                                  NotFoundException,
+                                                                                  CommunicationException,
+                                                                                  UnauthorizedException,
+                                                                                  ParsingException {
+        String pid = snapshot.pid;
+        ObjectProfile profile = snapshot.profile;
+        Long timestamp = snapshot.timestamp;
+        EnhancedFedora fedora = getEnhancedFedora();
+        try {
+            DSCompositeModel model = getDsCompositeModel(fedora, profile.getContentModels());
+            if (representationID == null) {
+                return getIfExists(pid, fedora, profile, model.getDescriptive(), timestamp);
+            }
+            List<String> identifiers = getDCIdentifiers(pid, fedora);
+            if (!TypeUtils.pickRepresentationIdentifier(pid, identifiers).equals(representationID)) {
+                throw new NotFoundException();
+            }
+            if (fileID == null) {
+                switch (metadataID) {
+                    case "techMD":
+                        Representation.Builder representation = new Representation.Builder();
+                        for (String datastream : model.getRepresentationTechnical()) {
+                            representation.technical(
+                                    datastream, getIfExists(pid, fedora, profile, datastream, timestamp));
+                        }
+                        return representation.build().getTechnical();
+                    case "rightsMD":
+                        return getIfExists(pid, fedora, profile, model.getRights(), timestamp);
+                    case "sourceMD":
+                        return getIfExists(pid, fedora, profile, model.getSource(), timestamp);
+                    case "digiprovMD":
+                        return getIfExists(pid, fedora, profile, model.getProvenance(), timestamp);
+                    default:
+                        throw new NotFoundException();
+                }
+            }
+            //The entities have no bitstreams
+            if (!TypeUtils.pickFileIdentifier(pid, identifiers).equals(fileID) || bitstreamID != null) {
+                throw new NotFoundException();
+            }
+            File.Builder file = new File.Builder();
+            for (String datastream : model.getFileTechnical()) {
+                file.technical(datastream, getIfExists(pid, fedora, profile, datastream, timestamp));
+            }
+            return file.build().getTechnical();
+        } catch (BackendMethodFailedException e) {
+            throw new CommunicationException(e);
+        } catch (BackendInvalidResourceException e) {
+            throw new NotFoundException(e);
+        } catch (BackendInvalidCredsException e) {
+            throw new UnauthorizedException(e);
+        }
+    }
+
+    /**
+     * Resolve the uri of the content of a file. Only the object profile is read, as the uri is the url of the file
+     * content datastream. The resolved uris are cached for a short while.
+     *
+     * @param entityID         the id of the entity
+     * @param versionID        the version of the entity, or null for the newest
+     * @param representationID the id of the representation
+     * @param fileID           the id of the file
+     *
+     * @return the uri of the file content
+     */
+    public URI readFileUriFromEntityID(String entityID, String versionID, String representationID,
+                                       String fileID) throws
+                                                      NotFoundException,
+                                                      CommunicationException,
+                                                      UnauthorizedException {
+        String pid = getPids(entityID).get(0);
+        URI uri = fileUriCache.get(fileUriCacheScope, pid, versionID, representationID, fileID);
+        if (uri != null) {
+            return uri;
+        }
+        //Read before the profile, so a uri resolved before the object is changed is not cached after it
+        long generation = fileUriCache.generation(pid);
+        EnhancedFedora fedora = getEnhancedFedora();
+        try {
+            List<String> identifiers = getDCIdentifiers(pid, fedora);
+            if (!TypeUtils.pickRepresentationIdentifier(pid, identifiers).equals(representationID)
+                || !TypeUtils.pickFileIdentifier(pid, identifiers).equals(fileID)) {
+                throw new NotFoundException();
+            }
+            Long timestamp = findTimestamp(pid, versionID, fedora);
+            ObjectProfile profile = fedora.getObjectProfile(pid, timestamp);
+            DSCompositeModel model = getDsCompositeModel(fedora, profile.getContentModels());
+            for (DatastreamProfile datastreamProfile : profile.getDatastreams()) {
+                if (datastreamProfile.getID().equals(model.getFileContent()) && datastreamProfile.getUrl() != null) {
+                    uri = URI.create(datastreamProfile.getUrl());
+                    fileUriCache.put(fileUriCacheScope, pid, versionID, representationID, fileID, uri, generation);
+                    return uri;
+                }
+            }
+            throw new NotFoundException();
+        } catch (BackendMethodFailedException e) {
+            throw new CommunicationException(e);
+        } catch (BackendInvalidResourceException e) {
+            throw new NotFoundException(e);
+        } catch (BackendInvalidCredsException e) {
+            throw new UnauthorizedException(e);
+        }
+    }
+
+    /**
+     * Compute a strong entity tag for the entity, from the checksums of its datastreams as of the version. The tag of
+     * the newest version also covers the newest entry of SCAPE_VERSIONS, so it changes with every new version.
+     *
+     * @param entityID  the id of the entity
+     * @param versionID the version of the entity, or null for the newest
+     *
+     * @return the tag, or null if a datastream has no checksum, so no tag can be computed
+     */
+    public String readEntityTagFromEntityID(String entityID, String versionID) throws
+                                                                               NotFoundException,
+                                                                               CommunicationException,
+                                                                               UnauthorizedException {
+        return readSnapshotFromEntityID(entityID, versionID).getTag();
+    }
+
+    /**
+     * @return the versions of the object that the tag of the newest version covers, or null if the tag is of a
+     * pinned version or can not be computed
+     */
+    private static VersionsType versionsForTag(String pid, Long timestamp, ObjectProfile profile,
+                                               EnhancedFedora fedora) throws
+                                                                      BackendInvalidCredsException,
+                                                                      BackendMethodFailedException,
+                                                                      CommunicationException {
+        if (timestamp != null || !hasChecksums(profile)) {
+            return null;
+        }
+        return VersionUtils.getVersions(pid, fedora, getChecksum(profile, SCAPE_VERSIONS));
+    }
+
+    /**
+     * Like {@link #versionsForTag(String, Long, ObjectProfile, EnhancedFedora)}, but from the export of the object
+     */
+    private static VersionsType versionsForTag(String pid, Long timestamp, ObjectProfile profile,
+                                               FoxmlObject export) throws CommunicationException {
+        if (timestamp != null || !hasChecksums(profile)) {
+            return null;
+        }
+        String scapeVersions = export.getContent(SCAPE_VERSIONS, null);
+        return scapeVersions != null ? VersionUtils.getVersions(pid, scapeVersions) : new VersionsType();
+    }
+
+    /**
+     * @return true if fedora has computed the checksums of all the datastreams. Fedora reports "none" or "DISABLED"
+     * for the datastreams it does not checksum.
+     */
+    private static boolean hasChecksums(ObjectProfile profile) {
+        for (DatastreamProfile datastream : profile.getDatastreams()) {
+            String checksum = datastream.getChecksum();
+            if (checksum == null || checksum.equalsIgnoreCase("none") || checksum.equalsIgnoreCase("DISABLED")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param versions the versions of the object if the tag is of the newest version, otherwise null
+     *
+     * @return the tag, or null if a datastream has no checksum
+     */
+    private static String entityTag(String pid, Long timestamp, ObjectProfile profile, VersionsType versions) {
+        if (!hasChecksums(profile)) {
+            return null;
+        }
+        StringBuilder state = new StringBuilder();
+        state.append(pid).append('\n').append(timestamp).append('\n').append(profile.getLabel()).append('\n');
+        List<String> contentModels = new ArrayList<>(profile.getContentModels());
+        Collections.sort(contentModels);
+        state.append(contentModels).append('\n');
+        List<DatastreamProfile> datastreams = new ArrayList<>(profile.getDatastreams());
+        Collections.sort(
+                datastreams, new Comparator<DatastreamProfile>() {
+                    @Override
+                    public int compare(DatastreamProfile o1, DatastreamProfile o2) {
+                        return o1.getID().compareTo(o2.getID());
+                    }
+                });
+        for (DatastreamProfile datastream : datastreams) {
+            state.append(datastream.getID()).append(' ')
+                 .append(datastream.getChecksum()).append(' ')
+                 .append(datastream.getLabel()).append(' ')
+                 .append(datastream.getMimeType()).append(' ')
+                 .append(datastream.getUrl()).append('\n');
+        }
+        if (versions != null) {
+            VersionType newest = null;
+            for (VersionType version : versions.getVersion()) {
+                if (newest == null || version.getId().compareTo(newest.getId()) > 0) {
+                    newest = version;
+                }
+            }
+            if (newest != null) {
+                state.append(newest.getId()).append(' ').append(newest.getTimestamp()).append('\n');
+            }
+        }
+        return Bytes.toHex(Checksums.md5(state.toString())).toLowerCase();
+    }
+
     public long updateFromEntityID(String entityID, IntellectualEntity entity) throws
                                                                                NotFoundException,
                                                                                CommunicationException,
                                                                                UnauthorizedException,
                                                                                ParsingException, VersioningException {
-        List<String> pids = null;
-        pids = getPids(entityID);
-        createOrUpdate(pids.get(0), entity);
+        return updateFromEntityID(entityID, entity, null);
+    }
+
+    /**
+     * Update the entity, if it has not been changed since it was read with the expected entity tag. Updates of the
+     * same object are serialized, so the check and the new version in SCAPE_VERSIONS can not be interleaved with
+     * another update through this data connector.
+     *
+     * @param entityID    the id of the entity
+     * @param entity      the new entity
+     * @param expectedTag the entity tag of the newest version the update is based on, "*" for any version or null
+     *                    to not check
+     *
+     * @return the version number of the entity
+     * @throws VersioningException if the entity has been changed, or no tag was given and one is required
+     */
+    public long updateFromEntityID(String entityID, IntellectualEntity entity, String expectedTag) throws
+                                                                                                   NotFoundException,
+                                                                                                   CommunicationException,
+                                                                                                   UnauthorizedException,
+                                                                                                   ParsingException,
+                                                                                                   VersioningException {
+        String pid = getPids(entityID).get(0);
+        synchronized (updateLock(pid)) {
+            createOrUpdate(pid, entity, expectedTag);
+        }
         return entity.getVersionNumber();
     }
 
+    private static Object updateLock(String pid) {
+        return UPDATE_LOCKS[(pid.hashCode() & Integer.MAX_VALUE) % UPDATE_LOCKS.length];
+    }
+
+    /**
+     * Require updates to give the entity tag they are based on
+     *
+     * @param requireEntityTag if true, updates without an expected entity tag fail
+     */
+    public void setRequireEntityTag(boolean requireEntityTag) {
+        this.requireEntityTag = requireEntityTag;
+    }
+
     private List<String> getPids(String entityID) throws
                                                   UnauthorizedException,
                                                   CommunicationException,
@@ -439,21 +1464,105 @@ public class EntityManipulator {
         if (entityID.startsWith("uuid:")){
             return Arrays.asList(entityID);
         }
-        List<String> pids;
+        String identifier = TypeUtils.formatEntityIdentifier(new Identifier(entityID));
+        if (identifierCache.isMissing(identifier)) {
+            throw new NotFoundException();
+        }
+        List<String> pids = identifierCache.getPids(identifier);
+        if (pids != null) {
+            return pids;
+        }
+        String indexed = lookup(identifier);
+        if (indexed != null) {
+            pids = Arrays.asList(indexed);
+            identifierCache.putPids(identifier, pids);
+            return pids;
+        }
         try {
-            pids = getEnhancedFedora().findObjectFromDCIdentifier(
-                    TypeUtils.formatEntityIdentifier(
-                            new Identifier(
-                                    entityID)));
+            pids = getEnhancedFedora().findObjectFromDCIdentifier(identifier);
         } catch (BackendInvalidCredsException e) {
             throw new UnauthorizedException(e);
         } catch (BackendMethodFailedException e) {
             throw new CommunicationException(e);
         }
+        identifierCache.putPids(identifier, pids);
         if (pids.size() == 0) {
             throw new NotFoundException();
         }
         return pids;
     }
 
+    /**
+     * Look the identifier up in the persistent index
+     *
+     * @return the pid, or null if there is no index, the identifier is not indexed or the index could not be read
+     */
+    private String lookup(String identifier) {
+        if (identifierIndex == null) {
+            return null;
+        }
+        try {
+            return identifierIndex.get(identifier);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Add the identifiers written to the object to the persistent index
+     */
+    private void index(String pid, List<String> identifiers) {
+        if (identifierIndex == null) {
+            return;
+        }
+        try {
+            for (String identifier : identifiers) {
+                identifierIndex.put(identifier, pid);
+            }
+        } catch (IOException e) {
+            //The resource index still finds the object
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The object profile of an entity as of a version, and the entity tag computed from it. Reading the parts of the
+     * entity from the snapshot reuses the profile, so a conditional request reads it only once.
+     */
+    public static class Snapshot {
+        private final String pid;
+        private final String versionID;
+        private final Long timestamp;
+        private final ObjectProfile profile;
+        private final String tag;
+        private final long generation;
+        private final FoxmlObject export;
+
+        private Snapshot(String pid, String versionID, Long timestamp, ObjectProfile profile, String tag,
+                         long generation, FoxmlObject export) {
+            this.pid = pid;
+            this.versionID = versionID;
+            this.timestamp = timestamp;
+            this.profile = profile;
+            this.tag = tag;
+            this.generation = generation;
+            this.export = export;
+        }
+
+        /**
+         * @return the entity tag, or null if a datastream has no checksum, so no tag can be computed
+         */
+        public String getTag() {
+            return tag;
+        }
+
+        /**
+         * @return true if the version is pinned to a timestamp in SCAPE_VERSIONS, so it can never change. An unknown
+         * version is read as the newest version, so it is not pinned.
+         */
+        public boolean isVersionPinned() {
+            return timestamp != null;
+        }
+    }
 }
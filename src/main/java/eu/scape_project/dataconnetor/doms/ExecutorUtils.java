@@ -0,0 +1,75 @@
+package eu.scape_project.dataconnetor.doms;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ExecutorUtils {
+
+    /**
+     * Create an executor with a fixed number of daemon threads and a bounded queue. When the queue is full, the task
+     * is run by the thread submitting it, which slows down the submitter instead of failing. Once the executor is shut
+     * down, submitting fails with a {@link RejectedExecutionException}, rather than dropping the task and leaving its
+     * future never done.
+     *
+     * @param name      the prefix of the thread names
+     * @param threads   the number of threads
+     * @param queueSize the number of tasks that can wait for a thread
+     *
+     * @return the executor
+     */
+    public static ExecutorService newBoundedExecutor(final String name, int threads, int queueSize) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                60,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                        if (executor.isShutdown()) {
+                            throw new RejectedExecutionException("The " + name + " executor is shut down");
+                        }
+                        task.run();
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Shut down the executor, waiting a little while for the running tasks to finish
+     *
+     * @param executor the executor, can be null
+     */
+    public static void shutdown(ExecutorService executor) {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
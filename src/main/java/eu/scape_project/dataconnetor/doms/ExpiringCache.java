@@ -0,0 +1,106 @@
+package eu.scape_project.dataconnetor.doms;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small, thread safe, size bounded LRU cache where entries expire a fixed time after they were put.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class ExpiringCache<K, V> {
+
+    private final int maxSize;
+    private final long timeToLive;
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    /**
+     * @param maxSize    the maximum number of entries to hold. When exceeded, the least recently used entry is evicted
+     * @param timeToLive the number of milliseconds an entry is valid after it was put. Zero or less means forever
+     */
+    public ExpiringCache(final int maxSize, long timeToLive) {
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > ExpiringCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the value for the key
+     *
+     * @param key the key
+     *
+     * @return the value or null if the key is not cached or the entry has expired
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired(System.currentTimeMillis())) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        if (maxSize <= 0) {
+            return;
+        }
+        entries.put(key, new Entry<>(value, timeToLive));
+    }
+
+    public synchronized V remove(K key) {
+        Entry<V> entry = entries.remove(key);
+        if (entry == null) {
+            return null;
+        }
+        return entry.value;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Remove all the expired entries
+     */
+    public synchronized void evictExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry<V>> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isExpired(now)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expires;
+
+        private Entry(V value, long timeToLive) {
+            this.value = value;
+            if (timeToLive > 0) {
+                this.expires = System.currentTimeMillis() + timeToLive;
+            } else {
+                this.expires = Long.MAX_VALUE;
+            }
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expires;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package eu.scape_project.dataconnetor.doms;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.filter.HTTPBasicAuthFilter;
+import dk.statsbiblioteket.doms.webservices.authentication.Credentials;
+import eu.scape_project.dataconnetor.doms.exceptions.CommunicationException;
+import eu.scape_project.dataconnetor.doms.exceptions.NotFoundException;
+import eu.scape_project.dataconnetor.doms.exceptions.ParsingException;
+import eu.scape_project.dataconnetor.doms.exceptions.UnauthorizedException;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Reads whole objects from the fedora REST api as FOXML exports, in a single request per object
+ */
+public class FedoraExportClient {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT = 60 * 1000;
+
+    private final WebResource objects;
+
+    /**
+     * @param credentials the credentials to use against fedora
+     * @param fedoraUrl   the url of fedora, such as http://localhost:7880/fedora
+     */
+    public FedoraExportClient(Credentials credentials, String fedoraUrl) {
+        this(credentials, fedoraUrl, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    /**
+     * @param credentials    the credentials to use against fedora
+     * @param fedoraUrl      the url of fedora, such as http://localhost:7880/fedora
+     * @param connectTimeout the number of milliseconds to wait for a connection to fedora, zero waits forever
+     * @param readTimeout    the number of milliseconds to wait for data from fedora, zero waits forever
+     */
+    public FedoraExportClient(Credentials credentials, String fedoraUrl, int connectTimeout, int readTimeout) {
+        Client client = Client.create();
+        client.setConnectTimeout(connectTimeout);
+        client.setReadTimeout(readTimeout);
+        client.addFilter(new HTTPBasicAuthFilter(credentials.getUsername(), credentials.getPassword()));
+        objects = client.resource(fedoraUrl).path("objects");
+    }
+
+    /**
+     * Export the object, in the archive context so that the managed datastream contents are included
+     *
+     * @param pid         the pid of the object
+     * @param allVersions if true, all versions of the datastreams are kept. Otherwise only the newest
+     *
+     * @return the parsed object
+     */
+    public FoxmlObject export(String pid, boolean allVersions) throws
+                                                               NotFoundException,
+                                                               UnauthorizedException,
+                                                               CommunicationException,
+                                                               ParsingException {
+        ClientResponse response;
+        try {
+            response = objects.path(pid)
+                              .path("export")
+                              .queryParam("format", FoxmlObject.FOXML_1_1)
+                              .queryParam("context", "archive")
+                              .get(ClientResponse.class);
+        } catch (ClientHandlerException e) {
+            throw new CommunicationException(e);
+        }
+        try {
+            int status = response.getStatus();
+            if (status == ClientResponse.Status.NOT_FOUND.getStatusCode()) {
+                throw new NotFoundException("Object '" + pid + "' not found");
+            }
+            if (status == ClientResponse.Status.UNAUTHORIZED.getStatusCode()
+                || status == ClientResponse.Status.FORBIDDEN.getStatusCode()) {
+                throw new UnauthorizedException("Not allowed to export object '" + pid + "'");
+            }
+            if (status != ClientResponse.Status.OK.getStatusCode()) {
+                throw new CommunicationException("Failed to export object '" + pid + "', fedora returned " + status);
+            }
+            return FoxmlObject.parse(response.getEntityInputStream(), allVersions);
+        } catch (XMLStreamException e) {
+            throw new ParsingException(e);
+        } catch (ClientHandlerException e) {
+            throw new CommunicationException(e);
+        } finally {
+            response.close();
+        }
+    }
+}
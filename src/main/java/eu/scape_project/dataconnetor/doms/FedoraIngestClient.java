@@ -0,0 +1,134 @@
+package eu.scape_project.dataconnetor.doms;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.filter.HTTPBasicAuthFilter;
+import dk.statsbiblioteket.doms.central.connectors.fedora.pidGenerator.PIDGeneratorClient;
+import dk.statsbiblioteket.doms.central.connectors.fedora.pidGenerator.PIDGeneratorException;
+import dk.statsbiblioteket.doms.webservices.authentication.Credentials;
+import eu.scape_project.dataconnetor.doms.exceptions.AlreadyExistsException;
+import eu.scape_project.dataconnetor.doms.exceptions.CommunicationException;
+import eu.scape_project.dataconnetor.doms.exceptions.UnauthorizedException;
+
+/**
+ * Creates whole objects with the fedora REST api from FOXML documents, in a single request per object. The pids of
+ * the objects are taken from the pid generator, as for objects created through doms central.
+ */
+public class FedoraIngestClient {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT = 60 * 1000;
+
+    private final WebResource objects;
+    private final PIDGeneratorClient pidGenerator;
+
+    /**
+     * @param credentials  the credentials to use against fedora
+     * @param fedoraUrl    the url of fedora, such as http://localhost:7880/fedora
+     * @param pidGenerator the pid generator to take the pids of new objects from
+     */
+    public FedoraIngestClient(Credentials credentials, String fedoraUrl, PIDGeneratorClient pidGenerator) {
+        this(credentials, fedoraUrl, pidGenerator, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    /**
+     * @param credentials    the credentials to use against fedora
+     * @param fedoraUrl      the url of fedora, such as http://localhost:7880/fedora
+     * @param pidGenerator   the pid generator to take the pids of new objects from
+     * @param connectTimeout the number of milliseconds to wait for a connection to fedora, zero waits forever
+     * @param readTimeout    the number of milliseconds to wait for data from fedora, zero waits forever
+     */
+    public FedoraIngestClient(Credentials credentials, String fedoraUrl, PIDGeneratorClient pidGenerator,
+                              int connectTimeout, int readTimeout) {
+        Client client = Client.create();
+        client.setConnectTimeout(connectTimeout);
+        client.setReadTimeout(readTimeout);
+        client.addFilter(new HTTPBasicAuthFilter(credentials.getUsername(), credentials.getPassword()));
+        objects = client.resource(fedoraUrl).path("objects");
+        this.pidGenerator = pidGenerator;
+    }
+
+    /**
+     * @return the pid for a new object, from the pid generator
+     */
+    public String nextPid() throws CommunicationException {
+        try {
+            return pidGenerator.generateNextAvailablePID("");
+        } catch (PIDGeneratorException e) {
+            throw new CommunicationException(e);
+        }
+    }
+
+    /**
+     * Ingest the object
+     *
+     * @param pid        the pid of the object, as given in the FOXML
+     * @param foxml      the FOXML 1.1 document, see {@link FoxmlBuilder}
+     * @param logMessage the log message of the ingest
+     *
+     * @return the pid of the new object
+     */
+    public String ingest(String pid, byte[] foxml, String logMessage) throws
+                                                                      AlreadyExistsException,
+                                                                      UnauthorizedException,
+                                                                      CommunicationException {
+        ClientResponse response;
+        try {
+            response = objects.path(pid)
+                              .queryParam("format", FoxmlObject.FOXML_1_1)
+                              .queryParam("logMessage", logMessage)
+                              .type("text/xml")
+                              .post(ClientResponse.class, foxml);
+        } catch (ClientHandlerException e) {
+            throw new CommunicationException(e);
+        }
+        try {
+            int status = response.getStatus();
+            if (status == ClientResponse.Status.UNAUTHORIZED.getStatusCode()
+                || status == ClientResponse.Status.FORBIDDEN.getStatusCode()) {
+                throw new UnauthorizedException("Not allowed to ingest object '" + pid + "'");
+            }
+            if (status == ClientResponse.Status.CONFLICT.getStatusCode()) {
+                throw new AlreadyExistsException("Object '" + pid + "' already exists");
+            }
+            if (status != ClientResponse.Status.CREATED.getStatusCode()) {
+                throw new CommunicationException("Failed to ingest object '" + pid + "', fedora returned " + status);
+            }
+            return response.getEntity(String.class).trim();
+        } catch (ClientHandlerException e) {
+            throw new CommunicationException(e);
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Purge the object, to undo an ingest that could not be completed
+     *
+     * @param pid        the pid of the object
+     * @param logMessage the log message of the purge
+     */
+    public void purge(String pid, String logMessage) throws UnauthorizedException, CommunicationException {
+        ClientResponse response;
+        try {
+            response = objects.path(pid).queryParam("logMessage", logMessage).delete(ClientResponse.class);
+        } catch (ClientHandlerException e) {
+            throw new CommunicationException(e);
+        }
+        try {
+            int status = response.getStatus();
+            if (status == ClientResponse.Status.UNAUTHORIZED.getStatusCode()
+                || status == ClientResponse.Status.FORBIDDEN.getStatusCode()) {
+                throw new UnauthorizedException("Not allowed to purge object '" + pid + "'");
+            }
+            if (status != ClientResponse.Status.OK.getStatusCode()
+                && status != ClientResponse.Status.NO_CONTENT.getStatusCode()) {
+                throw new CommunicationException("Failed to purge object '" + pid + "', fedora returned " + status);
+            }
+        } finally {
+            response.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package eu.scape_project.dataconnetor.doms;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of the resolved uris of file contents, shared by all entity manipulators. The uris are grouped by the pid of
+ * the object, so all uris of an object are forgotten at once when it is updated. A uri is only resolved for credentials
+ * allowed to read the object, so the uris are kept apart by a scope naming the credentials.
+ * <p/>
+ * As in {@link RenderedEntityCache}, invalidations are counted by generations, striped by pid, and a uri resolved
+ * before the object was invalidated is not cached.
+ */
+public class FileUriCache {
+
+    public static final int DEFAULT_SIZE = 10000;
+    public static final long DEFAULT_TTL = 60 * 1000;
+
+    private final ExpiringCache<String, ConcurrentMap<String, URI>> uris;
+    private final long[] generations = new long[64];
+
+    public FileUriCache() {
+        this(DEFAULT_SIZE, DEFAULT_TTL);
+    }
+
+    /**
+     * @param maxSize    the maximum number of objects to cache the file uris of
+     * @param timeToLive the number of milliseconds the file uris of an object are cached
+     */
+    public FileUriCache(int maxSize, long timeToLive) {
+        uris = new ExpiringCache<>(maxSize, timeToLive);
+    }
+
+    /**
+     * @param scope            the scope of the credentials resolving the uri
+     * @param pid              the pid of the object
+     * @param versionID        the version of the entity, or null for the newest
+     * @param representationID the id of the representation
+     * @param fileID           the id of the file
+     *
+     * @return the uri of the file content, or null if not cached
+     */
+    public URI get(String scope, String pid, String versionID, String representationID, String fileID) {
+        ConcurrentMap<String, URI> objectUris = uris.get(pid);
+        if (objectUris == null) {
+            return null;
+        }
+        return objectUris.get(key(scope, versionID, representationID, fileID));
+    }
+
+    /**
+     * @return the generation of the object, to be read before the uri is resolved and given to {@link #put}
+     */
+    public long generation(String pid) {
+        synchronized (uris) {
+            return generations[stripe(pid)];
+        }
+    }
+
+    /**
+     * Remember the uri of the file content, unless the object has been invalidated since the generation was read
+     *
+     * @param generation the generation of the object from before the uri was resolved
+     *
+     * @see #get(String, String, String, String, String)
+     */
+    public void put(String scope, String pid, String versionID, String representationID, String fileID, URI uri,
+                    long generation) {
+        synchronized (uris) {
+            if (generations[stripe(pid)] != generation) {
+                return;
+            }
+            ConcurrentMap<String, URI> objectUris = uris.get(pid);
+            if (objectUris == null) {
+                objectUris = new ConcurrentHashMap<>();
+                uris.put(pid, objectUris);
+            }
+            objectUris.put(key(scope, versionID, representationID, fileID), uri);
+        }
+    }
+
+    /**
+     * Forget the file uris of the object, for all credentials. To be called when the object is updated.
+     *
+     * @param pid the pid of the object
+     */
+    public void invalidate(String pid) {
+        synchronized (uris) {
+            generations[stripe(pid)]++;
+            uris.remove(pid);
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (uris) {
+            for (int i = 0; i < generations.length; i++) {
+                generations[i]++;
+            }
+            uris.clear();
+        }
+    }
+
+    private int stripe(String pid) {
+        return (pid.hashCode() & Integer.MAX_VALUE) % generations.length;
+    }
+
+    private static String key(String scope, String versionID, String representationID, String fileID) {
+        return scope + "\u0000" + versionID + "/" + representationID + "/" + fileID;
+    }
+}
@@ -0,0 +1,238 @@
+package eu.scape_project.dataconnetor.doms;
+
+import dk.statsbiblioteket.util.Bytes;
+import dk.statsbiblioteket.util.Checksums;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a complete FOXML 1.1 document for a new object, so the object can be ingested in a single call. The xml
+ * datastreams are managed, with their content inline and their md5 checksum given, like the datastreams written with
+ * modifyDatastreamByValue.
+ */
+public class FoxmlBuilder {
+
+    private static final String DC_NAMESPACE = "http://purl.org/dc/elements/1.1/";
+    private static final String OAI_DC_NAMESPACE = "http://www.openarchives.org/OAI/2.0/oai_dc/";
+    private static final String RDF_NAMESPACE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+    private static final String MODEL_NAMESPACE = "info:fedora/fedora-system:def/model#";
+    private static final String DOMS_RELATIONS_NAMESPACE = "http://doms.statsbiblioteket.dk/relations/default/0/1/#";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+    private final String pid;
+    private String label;
+    private final List<String> identifiers = new ArrayList<>();
+    private final List<String> contentModels = new ArrayList<>();
+    private final List<String> collections = new ArrayList<>();
+    private final Map<String, String> xmlDatastreams = new LinkedHashMap<>();
+    private final Map<String, String[]> externalDatastreams = new LinkedHashMap<>();
+
+    /**
+     * @param pid the pid of the new object
+     */
+    public FoxmlBuilder(String pid) {
+        this.pid = pid;
+    }
+
+    public String getPid() {
+        return pid;
+    }
+
+    public FoxmlBuilder label(String label) {
+        this.label = label;
+        return this;
+    }
+
+    /**
+     * @param identifiers identifiers to add to the DC of the object, besides the pid
+     */
+    public FoxmlBuilder identifiers(List<String> identifiers) {
+        this.identifiers.addAll(identifiers);
+        return this;
+    }
+
+    /**
+     * @param contentModel the pid of a content model of the object, in short or long form
+     */
+    public FoxmlBuilder contentModel(String contentModel) {
+        contentModels.add(EqualUtils.longForm(contentModel));
+        return this;
+    }
+
+    /**
+     * @param collections the pids of the collections the object is part of, in short or long form
+     */
+    public FoxmlBuilder collections(List<String> collections) {
+        for (String collection : collections) {
+            this.collections.add(EqualUtils.longForm(collection));
+        }
+        return this;
+    }
+
+    /**
+     * Add a managed xml datastream, replacing a datastream with the same id
+     *
+     * @param datastream the datastream id
+     * @param content    the xml content
+     */
+    public FoxmlBuilder xmlDatastream(String datastream, String content) {
+        xmlDatastreams.put(datastream, content);
+        return this;
+    }
+
+    /**
+     * Add a datastream redirecting to content outside fedora, replacing a datastream with the same id
+     *
+     * @param datastream the datastream id
+     * @param label      the label of the datastream
+     * @param url        the url of the content
+     * @param formatURI  the format uri of the content
+     * @param mimeType   the mimetype of the content
+     */
+    public FoxmlBuilder externalDatastream(String datastream, String label, String url, String formatURI,
+                                           String mimeType) {
+        externalDatastreams.put(datastream, new String[]{label, url, formatURI, mimeType});
+        return this;
+    }
+
+    /**
+     * @return the FOXML document, encoded as UTF-8
+     */
+    public byte[] build() throws XMLStreamException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        XMLStreamWriter writer = outputFactory.createXMLStreamWriter(sink, "UTF-8");
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.setPrefix("foxml", FoxmlObject.FOXML_NAMESPACE);
+        writer.writeStartElement(FoxmlObject.FOXML_NAMESPACE, "digitalObject");
+        writer.writeNamespace("foxml", FoxmlObject.FOXML_NAMESPACE);
+        writer.writeAttribute("VERSION", "1.1");
+        writer.writeAttribute("PID", pid);
+
+        writer.writeStartElement(FoxmlObject.FOXML_NAMESPACE, "objectProperties");
+        property(writer, MODEL_NAMESPACE + "state", "Active");
+        if (label != null) {
+            property(writer, MODEL_NAMESPACE + "label", label);
+        }
+        writer.writeEndElement();
+
+        startXmlContent(writer, "DC", "Dublin Core Record", "text/xml");
+        writer.setPrefix("oai_dc", OAI_DC_NAMESPACE);
+        writer.setPrefix("dc", DC_NAMESPACE);
+        writer.writeStartElement(OAI_DC_NAMESPACE, "dc");
+        writer.writeNamespace("oai_dc", OAI_DC_NAMESPACE);
+        writer.writeNamespace("dc", DC_NAMESPACE);
+        writer.writeStartElement(DC_NAMESPACE, "identifier");
+        writer.writeCharacters(pid);
+        writer.writeEndElement();
+        for (String identifier : identifiers) {
+            writer.writeStartElement(DC_NAMESPACE, "identifier");
+            writer.writeCharacters(identifier);
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+        endXmlContent(writer);
+
+        startXmlContent(writer, "RELS-EXT", "", "application/rdf+xml");
+        writer.setPrefix("rdf", RDF_NAMESPACE);
+        writer.writeStartElement(RDF_NAMESPACE, "RDF");
+        writer.writeNamespace("rdf", RDF_NAMESPACE);
+        writer.writeStartElement(RDF_NAMESPACE, "Description");
+        writer.writeAttribute(RDF_NAMESPACE, "about", EqualUtils.longForm(pid));
+        for (String contentModel : contentModels) {
+            relation(writer, MODEL_NAMESPACE, "hasModel", contentModel);
+        }
+        for (String collection : collections) {
+            relation(writer, DOMS_RELATIONS_NAMESPACE, "isPartOfDOMSCollection", collection);
+        }
+        writer.writeEndElement();
+        writer.writeEndElement();
+        endXmlContent(writer);
+
+        for (Map.Entry<String, String> datastream : xmlDatastreams.entrySet()) {
+            byte[] content = datastream.getValue().getBytes(UTF8);
+            startDatastream(writer, datastream.getKey(), "M", true);
+            startVersion(writer, datastream.getKey(), "", "text/xml", null);
+            writer.writeEmptyElement(FoxmlObject.FOXML_NAMESPACE, "contentDigest");
+            writer.writeAttribute("TYPE", "MD5");
+            writer.writeAttribute("DIGEST", Bytes.toHex(Checksums.md5(datastream.getValue())).toLowerCase());
+            writer.writeStartElement(FoxmlObject.FOXML_NAMESPACE, "binaryContent");
+            writer.writeCharacters(DatatypeConverter.printBase64Binary(content));
+            writer.writeEndElement();
+            writer.writeEndElement();
+            writer.writeEndElement();
+        }
+
+        for (Map.Entry<String, String[]> datastream : externalDatastreams.entrySet()) {
+            String[] properties = datastream.getValue();
+            startDatastream(writer, datastream.getKey(), "R", false);
+            startVersion(writer, datastream.getKey(), properties[0], properties[3], properties[2]);
+            writer.writeEmptyElement(FoxmlObject.FOXML_NAMESPACE, "contentLocation");
+            writer.writeAttribute("TYPE", "URL");
+            writer.writeAttribute("REF", properties[1]);
+            writer.writeEndElement();
+            writer.writeEndElement();
+        }
+
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.close();
+        return sink.toByteArray();
+    }
+
+    private static void property(XMLStreamWriter writer, String name, String value) throws XMLStreamException {
+        writer.writeEmptyElement(FoxmlObject.FOXML_NAMESPACE, "property");
+        writer.writeAttribute("NAME", name);
+        writer.writeAttribute("VALUE", value);
+    }
+
+    private static void relation(XMLStreamWriter writer, String namespace, String predicate, String object) throws
+                                                                                                          XMLStreamException {
+        writer.writeEmptyElement("", predicate, namespace);
+        writer.writeDefaultNamespace(namespace);
+        writer.writeAttribute(RDF_NAMESPACE, "resource", object);
+    }
+
+    private static void startDatastream(XMLStreamWriter writer, String datastream, String controlGroup,
+                                        boolean versionable) throws XMLStreamException {
+        writer.writeStartElement(FoxmlObject.FOXML_NAMESPACE, "datastream");
+        writer.writeAttribute("ID", datastream);
+        writer.writeAttribute("STATE", "A");
+        writer.writeAttribute("CONTROL_GROUP", controlGroup);
+        writer.writeAttribute("VERSIONABLE", Boolean.toString(versionable));
+    }
+
+    private static void startVersion(XMLStreamWriter writer, String datastream, String label, String mimeType,
+                                     String formatURI) throws XMLStreamException {
+        writer.writeStartElement(FoxmlObject.FOXML_NAMESPACE, "datastreamVersion");
+        writer.writeAttribute("ID", datastream + ".0");
+        writer.writeAttribute("LABEL", label);
+        writer.writeAttribute("MIMETYPE", mimeType);
+        if (formatURI != null) {
+            writer.writeAttribute("FORMAT_URI", formatURI);
+        }
+    }
+
+    private static void startXmlContent(XMLStreamWriter writer, String datastream, String label, String mimeType) throws
+                                                                                                               XMLStreamException {
+        startDatastream(writer, datastream, "X", true);
+        startVersion(writer, datastream, label, mimeType, null);
+        writer.writeStartElement(FoxmlObject.FOXML_NAMESPACE, "xmlContent");
+    }
+
+    private static void endXmlContent(XMLStreamWriter writer) throws XMLStreamException {
+        writer.writeEndElement();
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+}
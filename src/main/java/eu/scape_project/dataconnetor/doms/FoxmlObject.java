@@ -0,0 +1,330 @@
+package eu.scape_project.dataconnetor.doms;
+
+import dk.statsbiblioteket.doms.central.connectors.fedora.structures.DatastreamProfile;
+import dk.statsbiblioteket.doms.central.connectors.fedora.structures.ObjectProfile;
+import dk.statsbiblioteket.util.xml.DOM;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A fedora object as parsed from a FOXML 1.1 export. The export is read in a single streaming pass, keeping the
+ * contents of the xml datastreams, and the properties of all datastreams.
+ */
+public class FoxmlObject {
+
+    public static final String FOXML_1_1 = "info:fedora/fedora-system:FOXML-1.1";
+    public static final String FOXML_NAMESPACE = "info:fedora/fedora-system:def/foxml#";
+    private static final String LABEL_PROPERTY = "info:fedora/fedora-system:def/model#label";
+    private static final String MODEL_NAMESPACE = "info:fedora/fedora-system:def/model#";
+    private static final String RDF_NAMESPACE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+    private static final String RELS_EXT = "RELS-EXT";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+    private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+    static {
+        outputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+    }
+
+    private String pid;
+    private String label;
+    private final Map<String, List<Version>> datastreams = new LinkedHashMap<>();
+
+    private FoxmlObject() {
+    }
+
+    /**
+     * Parse a FOXML 1.1 export of an object
+     *
+     * @param foxml       the export, preferably made in the archive context, so managed content is included
+     * @param allVersions if true, all versions of the datastreams are kept. Otherwise only the newest version is kept
+     *
+     * @return the parsed object
+     * @throws XMLStreamException if the export could not be parsed
+     */
+    public static FoxmlObject parse(InputStream foxml, boolean allVersions) throws XMLStreamException {
+        FoxmlObject result = new FoxmlObject();
+        XMLEventReader reader = inputFactory.createXMLEventReader(foxml);
+        try {
+            String datastream = null;
+            String controlGroup = null;
+            Version version = null;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    StartElement element = event.asStartElement();
+                    if (!FOXML_NAMESPACE.equals(element.getName().getNamespaceURI())) {
+                        continue;
+                    }
+                    switch (element.getName().getLocalPart()) {
+                        case "digitalObject":
+                            result.pid = attribute(element, "PID");
+                            break;
+                        case "property":
+                            if (LABEL_PROPERTY.equals(attribute(element, "NAME"))) {
+                                result.label = attribute(element, "VALUE");
+                            }
+                            break;
+                        case "datastream":
+                            if ("D".equals(attribute(element, "STATE"))) {
+                                skip(reader);
+                            } else {
+                                datastream = attribute(element, "ID");
+                                controlGroup = attribute(element, "CONTROL_GROUP");
+                            }
+                            break;
+                        case "datastreamVersion":
+                            version = new Version();
+                            version.label = attribute(element, "LABEL");
+                            version.mimeType = attribute(element, "MIMETYPE");
+                            version.created = parseDate(attribute(element, "CREATED"));
+                            version.internal = !("E".equals(controlGroup) || "R".equals(controlGroup));
+                            break;
+                        case "contentDigest":
+                            if (version != null && !"DISABLED".equals(attribute(element, "TYPE"))) {
+                                version.checksum = attribute(element, "DIGEST");
+                            }
+                            break;
+                        case "contentLocation":
+                            if (version != null && !version.internal) {
+                                version.location = attribute(element, "REF");
+                            }
+                            break;
+                        case "xmlContent":
+                            if (version != null) {
+                                version.content = copy(reader);
+                            }
+                            break;
+                        case "binaryContent":
+                            if (version != null && isXml(version.mimeType)) {
+                                version.content = new String(
+                                        DatatypeConverter.parseBase64Binary(text(reader)), UTF8);
+                            } else {
+                                skip(reader);
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                } else if (event.isEndElement()) {
+                    QName name = event.asEndElement().getName();
+                    if (!FOXML_NAMESPACE.equals(name.getNamespaceURI())) {
+                        continue;
+                    }
+                    if (name.getLocalPart().equals("datastreamVersion") && version != null) {
+                        result.addVersion(datastream, version, allVersions);
+                        version = null;
+                    } else if (name.getLocalPart().equals("datastream")) {
+                        datastream = null;
+                        controlGroup = null;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+
+    private void addVersion(String datastream, Version version, boolean allVersions) {
+        List<Version> versions = datastreams.get(datastream);
+        if (versions == null) {
+            versions = new ArrayList<>();
+            datastreams.put(datastream, versions);
+        }
+        if (!allVersions && !versions.isEmpty()) {
+            if (versions.get(0).created > version.created) {
+                return;
+            }
+            versions.clear();
+        }
+        versions.add(version);
+    }
+
+    /**
+     * Get the object profile as of the timestamp. Only the label, the content models and the datastreams are set.
+     *
+     * @param timestamp the timestamp, or null for the newest version
+     *
+     * @return the object profile
+     */
+    public ObjectProfile getProfile(Long timestamp) {
+        ObjectProfile profile = new ObjectProfile();
+        profile.setPid(pid);
+        profile.setLabel(label);
+        List<DatastreamProfile> datastreamProfiles = new ArrayList<>();
+        for (String datastream : datastreams.keySet()) {
+            Version version = getVersion(datastream, timestamp);
+            if (version != null) {
+                DatastreamProfile datastreamProfile = new DatastreamProfile();
+                datastreamProfile.setID(datastream);
+                datastreamProfile.setLabel(version.label);
+                datastreamProfile.setMimeType(version.mimeType);
+                datastreamProfile.setUrl(version.location);
+                datastreamProfile.setChecksum(version.checksum);
+                datastreamProfile.setInternal(version.internal);
+                datastreamProfiles.add(datastreamProfile);
+            }
+        }
+        profile.setDatastreams(datastreamProfiles);
+        profile.setContentModels(getContentModels(timestamp));
+        return profile;
+    }
+
+    private List<String> getContentModels(Long timestamp) {
+        List<String> result = new ArrayList<>();
+        String relsExt = getContent(RELS_EXT, timestamp);
+        if (relsExt == null) {
+            return result;
+        }
+        Document relsExtDoc = DOM.stringToDOM(relsExt, true);
+        NodeList models = DOM.createXPathSelector("rdf", RDF_NAMESPACE, "model", MODEL_NAMESPACE)
+                             .selectNodeList(relsExtDoc, "/rdf:RDF/rdf:Description/model:hasModel/@rdf:resource");
+        for (int i = 0; i < models.getLength(); i++) {
+            result.add(models.item(i).getNodeValue());
+        }
+        return result;
+    }
+
+    /**
+     * Get the xml content of the datastream as of the timestamp
+     *
+     * @param datastream the datastream id
+     * @param timestamp  the timestamp, or null for the newest version
+     *
+     * @return the content or null if the datastream did not exist or its content was not part of the export
+     */
+    public String getContent(String datastream, Long timestamp) {
+        Version version = getVersion(datastream, timestamp);
+        if (version == null) {
+            return null;
+        }
+        return version.content;
+    }
+
+    private Version getVersion(String datastream, Long timestamp) {
+        List<Version> versions = datastreams.get(datastream);
+        if (versions == null) {
+            return null;
+        }
+        Version result = null;
+        for (Version version : versions) {
+            if (timestamp != null && version.created > timestamp) {
+                continue;
+            }
+            if (result == null || version.created >= result.created) {
+                result = version;
+            }
+        }
+        return result;
+    }
+
+    private static String attribute(StartElement element, String name) {
+        Attribute attribute = element.getAttributeByName(new QName(name));
+        if (attribute == null) {
+            return null;
+        }
+        return attribute.getValue();
+    }
+
+    private static long parseDate(String date) {
+        if (date == null) {
+            return 0;
+        }
+        return DatatypeConverter.parseDateTime(date).getTimeInMillis();
+    }
+
+    private static boolean isXml(String mimeType) {
+        return mimeType != null && (mimeType.endsWith("/xml") || mimeType.endsWith("+xml"));
+    }
+
+    /**
+     * Serialize the children of the current element to a string, leaving the reader at the end of the element
+     */
+    private static String copy(XMLEventReader reader) throws XMLStreamException {
+        StringWriter sink = new StringWriter();
+        XMLEventWriter writer = outputFactory.createXMLEventWriter(sink);
+        int depth = 0;
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isEndElement() && depth == 0) {
+                break;
+            }
+            if (event.isStartElement()) {
+                depth++;
+            }
+            if (depth > 0) {
+                writer.add(event);
+            }
+            if (event.isEndElement()) {
+                depth--;
+            }
+        }
+        writer.close();
+        return sink.toString();
+    }
+
+    /**
+     * Read the text of the current element, leaving the reader at the end of the element
+     */
+    private static String text(XMLEventReader reader) throws XMLStreamException {
+        StringBuilder result = new StringBuilder();
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isEndElement()) {
+                break;
+            }
+            if (event.isCharacters()) {
+                result.append(event.asCharacters().getData());
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Skip the rest of the current element, leaving the reader at the end of the element
+     */
+    private static void skip(XMLEventReader reader) throws XMLStreamException {
+        int depth = 0;
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                depth++;
+            } else if (event.isEndElement()) {
+                if (depth == 0) {
+                    return;
+                }
+                depth--;
+            }
+        }
+    }
+
+    private static class Version {
+        private String label;
+        private String mimeType;
+        private long created;
+        private boolean internal;
+        private String checksum;
+        private String location;
+        private String content;
+    }
+}
@@ -0,0 +1,122 @@
+package eu.scape_project.dataconnetor.doms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cache of the mapping between the scape identifiers and the pids of the objects. The mapping is cached both ways,
+ * from a formatted identifier, such as scape-entity:id, to the pids of the objects carrying it, and from a pid to the
+ * scape identifiers in the DC of the object. Identifiers that were not found are remembered for a shorter time, so
+ * repeated lookups of unknown identifiers do not reach the resource index either.
+ */
+public class IdentifierCache {
+
+    public static final int DEFAULT_SIZE = 10000;
+    public static final long DEFAULT_TTL = 10 * 60 * 1000;
+    public static final long DEFAULT_NEGATIVE_TTL = 10 * 1000;
+
+    private final ExpiringCache<String, List<String>> pids;
+    private final ExpiringCache<String, List<String>> identifiers;
+    private final ExpiringCache<String, Boolean> missing;
+
+    public IdentifierCache() {
+        this(DEFAULT_SIZE, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+    }
+
+    /**
+     * @param maxSize            the maximum number of identifiers, pids and unknown identifiers to cache, each
+     * @param timeToLive         the number of milliseconds a mapping is cached
+     * @param negativeTimeToLive the number of milliseconds an identifier that was not found is remembered
+     */
+    public IdentifierCache(int maxSize, long timeToLive, long negativeTimeToLive) {
+        pids = new ExpiringCache<>(maxSize, timeToLive);
+        identifiers = new ExpiringCache<>(maxSize, timeToLive);
+        missing = new ExpiringCache<>(maxSize, negativeTimeToLive);
+    }
+
+    /**
+     * @param identifier the formatted identifier
+     *
+     * @return the pids of the objects with this identifier, or null if not cached
+     */
+    public List<String> getPids(String identifier) {
+        return pids.get(identifier);
+    }
+
+    /**
+     * @param identifier the formatted identifier
+     *
+     * @return true if the identifier was recently looked up and not found
+     */
+    public boolean isMissing(String identifier) {
+        return missing.get(identifier) != null;
+    }
+
+    /**
+     * Remember the pids found for the identifier. If none were found, the identifier is remembered as missing.
+     *
+     * @param identifier the formatted identifier
+     * @param found      the pids of the objects with this identifier
+     */
+    public void putPids(String identifier, List<String> found) {
+        if (found.isEmpty()) {
+            missing.put(identifier, Boolean.TRUE);
+        } else {
+            missing.remove(identifier);
+            pids.put(identifier, Collections.unmodifiableList(new ArrayList<>(found)));
+        }
+    }
+
+    /**
+     * @param pid the pid of the object
+     *
+     * @return the scape identifiers in the DC of the object, or null if not cached
+     */
+    public List<String> getIdentifiers(String pid) {
+        return identifiers.get(pid);
+    }
+
+    /**
+     * Remember the scape identifiers of the object. Each identifier is also remembered as resolving to the object,
+     * unless it is already cached.
+     *
+     * @param pid   the pid of the object
+     * @param found the scape identifiers in the DC of the object
+     */
+    public void putIdentifiers(String pid, List<String> found) {
+        identifiers.put(pid, Collections.unmodifiableList(new ArrayList<>(found)));
+        for (String identifier : found) {
+            if (pids.get(identifier) == null) {
+                missing.remove(identifier);
+                pids.put(identifier, Collections.singletonList(pid));
+            }
+        }
+    }
+
+    /**
+     * Forget what is known about the object and the identifiers. To be called when the identifiers of the object are
+     * written.
+     *
+     * @param pid     the pid of the object
+     * @param written the identifiers written to the object
+     */
+    public void invalidate(String pid, List<String> written) {
+        List<String> old = identifiers.remove(pid);
+        if (old != null) {
+            for (String identifier : old) {
+                pids.remove(identifier);
+            }
+        }
+        for (String identifier : written) {
+            pids.remove(identifier);
+            missing.remove(identifier);
+        }
+    }
+
+    public void invalidateAll() {
+        pids.clear();
+        identifiers.clear();
+        missing.clear();
+    }
+}
@@ -0,0 +1,414 @@
+package eu.scape_project.dataconnetor.doms;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Persistent index from formatted scape identifiers, such as scape-entity:id, to the pid of the object carrying them.
+ * <p/>
+ * The index is kept in two files in a directory. The records, each an identifier and a pid, are appended to a data
+ * file. The hash table is a memory mapped file of fixed size slots, each holding the hash of an identifier and the
+ * offset of its newest record in the data file. The table is off heap and survives restarts, and is doubled when it
+ * becomes three quarters full. Lookups only take a read lock, so they run concurrently.
+ * <p/>
+ * The index is locked against other processes while it is open. The mapped slots may reach the disk before the records
+ * they point to, so an index that was not closed is checked when it is opened, and the slots are rebuilt from the data
+ * file if they point past its last complete record.
+ */
+public class IdentifierIndex implements Closeable {
+
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    private static final String INDEX_FILE = "identifiers.idx";
+    private static final String DATA_FILE = "identifiers.dat";
+    private static final int MAGIC = 0x53434944;
+    private static final int HEADER_SIZE = 16;
+    private static final int STATE_CLOSED = 0;
+    private static final int STATE_OPEN = 1;
+    private static final int SLOT_SIZE = 16;
+    private static final int MAX_CAPACITY = 1 << 26;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final RandomAccessFile dataFile;
+    private final FileChannel data;
+    private final FileLock fileLock;
+    private long dataEnd;
+
+    private RandomAccessFile indexFile;
+    private MappedByteBuffer slots;
+    private int capacity;
+    private int count;
+
+    /**
+     * Open the index in the directory, creating it if it does not exist
+     *
+     * @param directory       the directory holding the index files
+     * @param initialCapacity the number of slots of a new index. It is rounded up to a power of two
+     */
+    public IdentifierIndex(File directory, int initialCapacity) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create the index directory " + directory);
+        }
+        dataFile = new RandomAccessFile(new File(directory, DATA_FILE), "rw");
+        data = dataFile.getChannel();
+        try {
+            fileLock = lockExclusively(data);
+            dataEnd = data.size();
+
+            File file = new File(directory, INDEX_FILE);
+            if (file.length() > HEADER_SIZE) {
+                open(file);
+                if (slots.getInt(12) != STATE_CLOSED) {
+                    recover();
+                }
+            } else {
+                create(file, powerOfTwo(initialCapacity));
+            }
+            slots.putInt(12, STATE_OPEN);
+            slots.force();
+        } catch (IOException | RuntimeException e) {
+            dataFile.close();
+            if (indexFile != null) {
+                indexFile.close();
+            }
+            throw e;
+        }
+    }
+
+    private FileLock lockExclusively(FileChannel channel) throws IOException {
+        FileLock result;
+        try {
+            result = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            result = null;
+        }
+        if (result == null) {
+            throw new IOException("The identifier index in " + directory + " is already open");
+        }
+        return result;
+    }
+
+    private void open(File file) throws IOException {
+        indexFile = new RandomAccessFile(file, "rw");
+        slots = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexFile.length());
+        if (slots.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not an identifier index");
+        }
+        capacity = (int) ((indexFile.length() - HEADER_SIZE) / SLOT_SIZE);
+        count = slots.getInt(8);
+    }
+
+    private void create(File file, int capacity) throws IOException {
+        indexFile = new RandomAccessFile(file, "rw");
+        slots = map(indexFile, capacity);
+        this.capacity = capacity;
+        this.count = 0;
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile file, int capacity) throws IOException {
+        long size = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+        file.setLength(size);
+        MappedByteBuffer result = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        result.putInt(0, MAGIC);
+        result.putInt(4, 1);
+        result.putInt(8, 0);
+        return result;
+    }
+
+    /**
+     * @param identifier the formatted identifier
+     *
+     * @return the pid of the object with the identifier, or null if the identifier is not indexed
+     */
+    public String get(String identifier) throws IOException {
+        long hash = hash(identifier);
+        lock.readLock().lock();
+        try {
+            int slot = find(identifier, hash);
+            if (slot < 0) {
+                return null;
+            }
+            return readRecord(slots.getLong(position(slot) + 8))[1];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Index the identifier as belonging to the object, replacing what it was indexed as before
+     *
+     * @param identifier the formatted identifier
+     * @param pid        the pid of the object
+     */
+    public void put(String identifier, String pid) throws IOException {
+        long hash = hash(identifier);
+        lock.writeLock().lock();
+        try {
+            int slot = find(identifier, hash);
+            if (slot >= 0 && pid.equals(readRecord(slots.getLong(position(slot) + 8))[1])) {
+                return;
+            }
+            if (slot < 0 && count + 1 >= capacity) {
+                throw new IOException("The identifier index is full");
+            }
+            setSlot(slot, hash, appendRecord(identifier.getBytes(UTF8), pid.getBytes(UTF8)));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Point the slot found for an identifier at its newest record
+     *
+     * @param slot   the slot as returned by find
+     * @param hash   the hash of the identifier
+     * @param offset the offset of the record in the data file
+     */
+    private void setSlot(int slot, long hash, long offset) throws IOException {
+        if (slot < 0) {
+            slot = -slot - 1;
+            slots.putLong(position(slot), hash);
+            count++;
+            slots.putInt(8, count);
+        }
+        slots.putLong(position(slot) + 8, offset);
+        if (count > capacity / 4 * 3) {
+            grow();
+        }
+    }
+
+    /**
+     * Check an index that was not closed. The data file is cut after its last complete record, and if a slot points
+     * past it, or the number of used slots is wrong, the slots are rebuilt from the records.
+     */
+    private void recover() throws IOException {
+        long end = readRecords(false);
+        if (end < dataEnd) {
+            data.truncate(end);
+            dataEnd = end;
+        }
+        int used = 0;
+        boolean valid = true;
+        for (int i = 0; i < capacity && valid; i++) {
+            if (slots.getLong(position(i)) != 0) {
+                used++;
+                valid = slots.getLong(position(i) + 8) < dataEnd;
+            }
+        }
+        if (valid && used == count) {
+            return;
+        }
+        for (int i = 0; i < capacity; i++) {
+            slots.putLong(position(i), 0);
+            slots.putLong(position(i) + 8, 0);
+        }
+        count = 0;
+        slots.putInt(8, count);
+        readRecords(true);
+        data.force(false);
+        slots.force();
+    }
+
+    /**
+     * Read the records of the data file in the order they were written
+     *
+     * @param index true to point the slots at the records, so the newest record of each identifier wins
+     *
+     * @return the end of the last complete record
+     */
+    private long readRecords(boolean index) throws IOException {
+        long offset = 0;
+        ByteBuffer length = ByteBuffer.allocate(4);
+        while (offset + 8 <= dataEnd) {
+            length.clear();
+            readFully(length, offset);
+            int keyLength = length.getInt(0);
+            if (keyLength < 0 || offset + 8 + keyLength > dataEnd) {
+                break;
+            }
+            length.clear();
+            readFully(length, offset + 4 + keyLength);
+            int pidLength = length.getInt(0);
+            if (pidLength < 0 || offset + 8 + keyLength + pidLength > dataEnd) {
+                break;
+            }
+            if (index) {
+                ByteBuffer key = ByteBuffer.allocate(keyLength);
+                readFully(key, offset + 4);
+                String identifier = new String(key.array(), UTF8);
+                long hash = hash(identifier);
+                setSlot(find(identifier, hash), hash, offset);
+            }
+            offset += 8 + keyLength + pidLength;
+        }
+        return offset;
+    }
+
+    /**
+     * @return the number of indexed identifiers
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Write the index to disk
+     */
+    public void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            data.force(false);
+            slots.force();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            data.force(false);
+            slots.force();
+            slots.putInt(12, STATE_CLOSED);
+            slots.force();
+            fileLock.release();
+            data.close();
+            dataFile.close();
+            indexFile.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Find the slot of the identifier
+     *
+     * @return the slot, or -(the empty slot where it belongs) - 1 if it is not indexed
+     */
+    private int find(String identifier, long hash) throws IOException {
+        int mask = capacity - 1;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        while (true) {
+            long slotHash = slots.getLong(position(slot));
+            if (slotHash == 0) {
+                return -slot - 1;
+            }
+            if (slotHash == hash && identifier.equals(readRecord(slots.getLong(position(slot) + 8))[0])) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Double the number of slots. The records are not read, as the slots hold the hashes.
+     */
+    private void grow() throws IOException {
+        if (capacity >= MAX_CAPACITY) {
+            return;
+        }
+        int newCapacity = capacity * 2;
+        File tempFile = new File(directory, INDEX_FILE + ".tmp");
+        RandomAccessFile newIndexFile = new RandomAccessFile(tempFile, "rw");
+        MappedByteBuffer newSlots = map(newIndexFile, newCapacity);
+        int mask = newCapacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            long hash = slots.getLong(position(i));
+            if (hash == 0) {
+                continue;
+            }
+            int slot = (int) (hash ^ (hash >>> 32)) & mask;
+            while (newSlots.getLong(position(slot)) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newSlots.putLong(position(slot), hash);
+            newSlots.putLong(position(slot) + 8, slots.getLong(position(i) + 8));
+        }
+        newSlots.putInt(8, count);
+        newSlots.putInt(12, STATE_OPEN);
+        newSlots.force();
+        indexFile.close();
+        if (!tempFile.renameTo(new File(directory, INDEX_FILE))) {
+            newIndexFile.close();
+            throw new IOException("Failed to replace the index file in " + directory);
+        }
+        indexFile = newIndexFile;
+        slots = newSlots;
+        capacity = newCapacity;
+    }
+
+    private long appendRecord(byte[] key, byte[] pid) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(8 + key.length + pid.length);
+        record.putInt(key.length).put(key).putInt(pid.length).put(pid);
+        record.flip();
+        long offset = dataEnd;
+        while (record.hasRemaining()) {
+            dataEnd += data.write(record, dataEnd);
+        }
+        return offset;
+    }
+
+    /**
+     * @return the identifier and the pid of the record
+     */
+    private String[] readRecord(long offset) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(length, offset);
+        ByteBuffer key = ByteBuffer.allocate(length.getInt(0) + 4);
+        readFully(key, offset + 4);
+        ByteBuffer pid = ByteBuffer.allocate(key.getInt(key.capacity() - 4));
+        readFully(pid, offset + 4 + key.capacity());
+        return new String[]{new String(key.array(), 0, key.capacity() - 4, UTF8), new String(pid.array(), UTF8)};
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (data.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("The identifier index data file is truncated");
+            }
+        }
+    }
+
+    private static int position(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * 64 bit FNV-1a of the identifier, never 0 as that marks an empty slot
+     */
+    private static long hash(String identifier) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : identifier.getBytes(UTF8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static int powerOfTwo(int capacity) {
+        int result = 16;
+        while (result < capacity && result < MAX_CAPACITY) {
+            result *= 2;
+        }
+        return result;
+    }
+}
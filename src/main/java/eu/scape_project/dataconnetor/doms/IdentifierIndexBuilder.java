@@ -0,0 +1,191 @@
+package eu.scape_project.dataconnetor.doms;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.filter.HTTPBasicAuthFilter;
+import dk.statsbiblioteket.doms.webservices.authentication.Credentials;
+import eu.scape_project.dataconnetor.doms.exceptions.CommunicationException;
+import eu.scape_project.dataconnetor.doms.exceptions.ParsingException;
+import eu.scape_project.dataconnetor.doms.exceptions.UnauthorizedException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the {@link IdentifierIndex} from a scan of fedora. The objects with scape identifiers are listed with the
+ * findObjects method of the fedora REST api, a page at a time, and the scape identifiers in their DC are indexed.
+ * <p/>
+ * The index is locked while it is open, so the builder fails rather than write to an index the webapp has open.
+ * Stop the webapp, or build into a new directory and point scape.identifierIndex.directory at it.
+ */
+public class IdentifierIndexBuilder {
+
+    private static final int PAGE_SIZE = 1000;
+    private static final String[] PREFIXES = {
+            TypeUtils.ENTITY, TypeUtils.REPRESENTATION, TypeUtils.FILE, TypeUtils.BITSTREAM};
+
+    private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+    private final WebResource objects;
+
+    /**
+     * @param credentials the credentials to use against fedora
+     * @param fedoraUrl   the url of fedora, such as http://localhost:7880/fedora
+     */
+    public IdentifierIndexBuilder(Credentials credentials, String fedoraUrl) {
+        Client client = Client.create();
+        client.addFilter(new HTTPBasicAuthFilter(credentials.getUsername(), credentials.getPassword()));
+        objects = client.resource(fedoraUrl).path("objects");
+    }
+
+    /**
+     * Index the scape identifiers of all objects in fedora
+     *
+     * @param index the index to add the identifiers to
+     *
+     * @return the number of identifiers indexed
+     */
+    public long build(IdentifierIndex index) throws
+                                             CommunicationException,
+                                             UnauthorizedException,
+                                             ParsingException,
+                                             IOException {
+        long indexed = 0;
+        String sessionToken = null;
+        do {
+            Page page = findObjects(sessionToken);
+            for (String[] identifierAndPid : page.identifiers) {
+                index.put(identifierAndPid[0], identifierAndPid[1]);
+                indexed++;
+            }
+            sessionToken = page.sessionToken;
+        } while (sessionToken != null);
+        index.flush();
+        return indexed;
+    }
+
+    private Page findObjects(String sessionToken) throws
+                                                  CommunicationException,
+                                                  UnauthorizedException,
+                                                  ParsingException {
+        WebResource resource = objects.queryParam("query", "identifier~scape-*")
+                                      .queryParam("pid", "true")
+                                      .queryParam("identifier", "true")
+                                      .queryParam("resultFormat", "xml")
+                                      .queryParam("maxResults", "" + PAGE_SIZE);
+        if (sessionToken != null) {
+            resource = resource.queryParam("sessionToken", sessionToken);
+        }
+        ClientResponse response;
+        try {
+            response = resource.get(ClientResponse.class);
+        } catch (ClientHandlerException e) {
+            throw new CommunicationException(e);
+        }
+        try {
+            int status = response.getStatus();
+            if (status == ClientResponse.Status.UNAUTHORIZED.getStatusCode()
+                || status == ClientResponse.Status.FORBIDDEN.getStatusCode()) {
+                throw new UnauthorizedException("Not allowed to search fedora");
+            }
+            if (status != ClientResponse.Status.OK.getStatusCode()) {
+                throw new CommunicationException("Failed to search fedora, fedora returned " + status);
+            }
+            return parse(response.getEntityInputStream());
+        } catch (XMLStreamException e) {
+            throw new ParsingException(e);
+        } catch (ClientHandlerException e) {
+            throw new CommunicationException(e);
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Parse a page of findObjects results, keeping the scape identifiers of each object and the session token
+     */
+    private static Page parse(InputStream result) throws XMLStreamException {
+        Page page = new Page();
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(result);
+        try {
+            String pid = null;
+            List<String> identifiers = new ArrayList<>();
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "objectFields":
+                            pid = null;
+                            identifiers.clear();
+                            break;
+                        case "pid":
+                            pid = reader.getElementText().trim();
+                            break;
+                        case "identifier":
+                            String identifier = reader.getElementText().trim();
+                            if (isScapeIdentifier(identifier)) {
+                                identifiers.add(identifier);
+                            }
+                            break;
+                        case "token":
+                            page.sessionToken = reader.getElementText().trim();
+                            break;
+                        default:
+                            break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("objectFields")) {
+                    if (pid != null) {
+                        for (String identifier : identifiers) {
+                            page.identifiers.add(new String[]{identifier, pid});
+                        }
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return page;
+    }
+
+    private static boolean isScapeIdentifier(String identifier) {
+        for (String prefix : PREFIXES) {
+            if (identifier.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Page {
+        private final List<String[]> identifiers = new ArrayList<>();
+        private String sessionToken;
+    }
+
+    /**
+     * Build the index from the command line
+     *
+     * @param args the index directory, the fedora url, the fedora username and the fedora password
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 4) {
+            System.err.println("Usage: IdentifierIndexBuilder <indexDirectory> <fedoraUrl> <username> <password>");
+            System.exit(1);
+        }
+        IdentifierIndex index = new IdentifierIndex(new File(args[0]), IdentifierIndex.DEFAULT_CAPACITY);
+        try {
+            long indexed = new IdentifierIndexBuilder(new Credentials(args[2], args[3]), args[1]).build(index);
+            System.out.println("Indexed " + indexed + " identifiers, the index now holds " + index.size());
+        } finally {
+            index.close();
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package eu.scape_project.dataconnetor.doms;
+
+import dk.statsbiblioteket.doms.webservices.authentication.Credentials;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the entities accepted for asynchronous ingest, so that accepted entities are not lost when the
+ * webapp is restarted before they are ingested.
+ * <p/>
+ * An accepted entity is appended as a record holding the METS of the entity and the username that submitted it, and a
+ * completed ingest as a record naming the accepted record. Only if the journal is opened to store credentials does the
+ * record also hold the password to ingest the entity with, in plain text. Otherwise nothing derived from the password
+ * is stored, and the entities must be ingested with some other credentials on replay.
+ * <p/>
+ * Only accepting waits for the journal to be on disk. Concurrent accepts share the fsync: while one fsync is running
+ * the following records are appended, and the next fsync makes all of them durable at once. A lost completion only
+ * means the entity is ingested again on replay, which finds that the entity already exists.
+ * <p/>
+ * Each record is checked with a CRC32, and a torn record at the end of the journal, from a crash while appending, is
+ * cut off when the journal is opened. When the journal has grown past the compaction threshold and most of it is
+ * completed, the pending records are copied to a new journal, which replaces the old.
+ * <p/>
+ * The journal may hold passwords, so it is made readable by its owner only, where the file system allows it.
+ */
+public class IngestJournal implements Closeable {
+
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 64 * 1024 * 1024;
+
+    private static final String JOURNAL_FILE = "ingest.journal";
+    private static final byte ACCEPTED = 1;
+    private static final byte COMPLETED = 2;
+    /**
+     * The length, the type and the id before the payload, and the checksum after it
+     */
+    private static final int RECORD_OVERHEAD = 4 + 1 + 8 + 4;
+
+    private final File directory;
+    private final long compactionThreshold;
+    private final boolean storeCredentials;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition synced = lock.newCondition();
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long end;
+    /**
+     * The position and length of the pending accepted records, by id, in the order they were accepted
+     */
+    private final Map<Long, long[]> pending = new LinkedHashMap<>();
+    private long pendingBytes;
+    private long nextId = 1;
+    private long appended;
+    private long durable;
+    private boolean syncing;
+
+    /**
+     * Open the journal in the directory, creating it if it does not exist. The journal does not store credentials.
+     *
+     * @param directory           the directory holding the journal
+     * @param compactionThreshold the journal is compacted when it is larger than this number of bytes, and less than
+     *                            half of it is pending
+     */
+    public IngestJournal(File directory, long compactionThreshold) throws IOException {
+        this(directory, compactionThreshold, false);
+    }
+
+    /**
+     * Open the journal in the directory, creating it if it does not exist
+     *
+     * @param directory           the directory holding the journal
+     * @param compactionThreshold the journal is compacted when it is larger than this number of bytes, and less than
+     *                            half of it is pending
+     * @param storeCredentials    store the username and password of each accepted entity in the journal, in plain
+     *                            text
+     */
+    public IngestJournal(File directory, long compactionThreshold, boolean storeCredentials) throws IOException {
+        this.directory = directory;
+        this.compactionThreshold = compactionThreshold;
+        this.storeCredentials = storeCredentials;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create the journal directory " + directory);
+        }
+        File journal = new File(directory, JOURNAL_FILE);
+        boolean created = !journal.exists();
+        file = new RandomAccessFile(journal, "rw");
+        channel = file.getChannel();
+        if (created) {
+            restrict(journal);
+            syncDirectory();
+        }
+        recover();
+    }
+
+    /**
+     * Read through the journal, finding the pending records, and cut off a torn record at the end
+     */
+    private void recover() throws IOException {
+        long position = 0;
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(4);
+        while (position + RECORD_OVERHEAD <= size) {
+            header.clear();
+            readFully(header, position);
+            int length = header.getInt(0);
+            if (length < RECORD_OVERHEAD || position + length > size) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.allocate(length);
+            readFully(record, position);
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 4, length - 8);
+            if ((int) crc.getValue() != record.getInt(length - 4)) {
+                break;
+            }
+            byte type = record.get(4);
+            long id = record.getLong(5);
+            if (type == ACCEPTED) {
+                pending.put(id, new long[]{position, length});
+                pendingBytes += length;
+            } else if (type == COMPLETED) {
+                long[] accepted = pending.remove(id);
+                if (accepted != null) {
+                    pendingBytes -= accepted[1];
+                }
+            }
+            nextId = Math.max(nextId, id + 1);
+            position += length;
+        }
+        if (position < size) {
+            channel.truncate(position);
+            channel.force(true);
+        }
+        end = position;
+    }
+
+    /**
+     * @return the ids of the accepted records that have not been completed, in the order they were accepted. The
+     * records are read one at a time with {@link #read(long)}, so the METS of all of them are never in memory at once.
+     */
+    public List<Long> getPending() {
+        lock.lock();
+        try {
+            return new ArrayList<>(pending.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param id the id of the accepted record
+     *
+     * @return the accepted entity, or null if the record has been completed
+     */
+    public Entry read(long id) throws IOException {
+        lock.lock();
+        try {
+            long[] accepted = pending.get(id);
+            if (accepted == null) {
+                return null;
+            }
+            ByteBuffer record = ByteBuffer.allocate((int) accepted[1]);
+            readFully(record, accepted[0]);
+            return Entry.parse(record);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record the entity as accepted for ingest. Returns when the record is on disk.
+     *
+     * If the record could not be made durable, it is completed again, so it is not ingested on replay.
+     *
+     * @param entityID    the id of the entity
+     * @param credentials the credentials that submitted the entity. The password is only stored if the journal stores
+     *                    credentials.
+     * @param mets        the METS of the entity
+     *
+     * @return the id of the record, to complete it with
+     */
+    public long accept(String entityID, Credentials credentials, byte[] mets) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(mets.length + 256);
+        DataOutputStream data = new DataOutputStream(payload);
+        data.writeUTF(entityID);
+        data.writeUTF(credentials.getUsername());
+        data.writeBoolean(storeCredentials);
+        if (storeCredentials) {
+            data.writeUTF(credentials.getPassword());
+        }
+        data.writeInt(mets.length);
+        data.write(mets);
+        data.flush();
+
+        long id;
+        long sequence;
+        lock.lock();
+        try {
+            id = nextId++;
+            long position = end;
+            int length = append(ACCEPTED, id, payload.toByteArray());
+            pending.put(id, new long[]{position, length});
+            pendingBytes += length;
+            sequence = appended;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            sync(sequence);
+        } catch (IOException e) {
+            //The caller does not get the id, so it cannot complete the record itself
+            try {
+                complete(id);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        return id;
+    }
+
+    /**
+     * Record the ingest of the entity as done, whether it succeeded or not. The record is written to disk with the
+     * next accepted record.
+     *
+     * @param id the id of the accepted record
+     */
+    public void complete(long id) throws IOException {
+        lock.lock();
+        try {
+            long[] accepted = pending.remove(id);
+            if (accepted == null) {
+                return;
+            }
+            pendingBytes -= accepted[1];
+            append(COMPLETED, id, new byte[0]);
+            if (end > compactionThreshold && pendingBytes < end / 2) {
+                compact();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of bytes in the journal
+     */
+    public long size() {
+        lock.lock();
+        try {
+            return end;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Append the record at the end of the journal. Must be called with the lock held.
+     *
+     * @return the length of the record
+     */
+    private int append(byte type, long id, byte[] payload) throws IOException {
+        int length = RECORD_OVERHEAD + payload.length;
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(length).put(type).putLong(id).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, length - 8);
+        record.putInt((int) crc.getValue());
+        record.flip();
+        long position = end;
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+        end = position;
+        appended++;
+        return length;
+    }
+
+    /**
+     * Wait until the records up to the sequence number are on disk. The first thread to find the records not on disk
+     * forces the journal for all the records appended so far, while the others wait for it.
+     */
+    private void sync(long sequence) throws IOException {
+        lock.lock();
+        try {
+            while (durable < sequence) {
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                long target = appended;
+                FileChannel toForce = channel;
+                lock.unlock();
+                try {
+                    toForce.force(false);
+                } finally {
+                    lock.lock();
+                    syncing = false;
+                    synced.signalAll();
+                }
+                durable = Math.max(durable, target);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copy the pending records to a new journal and replace the old journal with it. Must be called with the lock
+     * held.
+     */
+    private void compact() throws IOException {
+        while (syncing) {
+            synced.awaitUninterruptibly();
+        }
+        File compacted = new File(directory, JOURNAL_FILE + ".tmp");
+        RandomAccessFile newFile = new RandomAccessFile(compacted, "rw");
+        FileChannel newChannel = newFile.getChannel();
+        try {
+            restrict(compacted);
+            newChannel.truncate(0);
+            long position = 0;
+            for (long[] accepted : pending.values()) {
+                long copied = 0;
+                while (copied < accepted[1]) {
+                    copied += channel.transferTo(accepted[0] + copied, accepted[1] - copied, newChannel);
+                }
+                accepted[0] = position;
+                position += accepted[1];
+            }
+            newChannel.force(true);
+            if (!compacted.renameTo(new File(directory, JOURNAL_FILE))) {
+                throw new IOException("Failed to replace the journal in " + directory);
+            }
+            //The rename is only durable when the directory is
+            syncDirectory();
+            channel.close();
+            file.close();
+            file = newFile;
+            channel = newChannel;
+            end = position;
+            durable = appended;
+        } catch (IOException e) {
+            newChannel.close();
+            newFile.close();
+            throw e;
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("The ingest journal is truncated");
+            }
+        }
+    }
+
+    /**
+     * Force the entries of the directory to disk, so a created or renamed journal is found after a crash
+     */
+    private void syncDirectory() {
+        try (FileChannel entries = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            entries.force(true);
+        } catch (IOException e) {
+            //Not all platforms can open a directory, and there the rename is durable by itself
+        }
+    }
+
+    private static void restrict(File journal) {
+        try {
+            Files.setPosixFilePermissions(journal.toPath(), PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException | IOException e) {
+            //The file system has no posix permissions
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            while (syncing) {
+                synced.awaitUninterruptibly();
+            }
+            channel.force(true);
+            channel.close();
+            file.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * An accepted entity, as read back from the journal
+     */
+    public static class Entry {
+        private final long id;
+        private final String entityID;
+        private final String username;
+        private final Credentials credentials;
+        private final byte[] mets;
+
+        private Entry(long id, String entityID, String username, Credentials credentials, byte[] mets) {
+            this.id = id;
+            this.entityID = entityID;
+            this.username = username;
+            this.credentials = credentials;
+            this.mets = mets;
+        }
+
+        private static Entry parse(ByteBuffer record) throws IOException {
+            long id = record.getLong(5);
+            DataInputStream data = new DataInputStream(
+                    new ByteArrayInputStream(record.array(), 4 + 1 + 8, record.capacity() - RECORD_OVERHEAD));
+            String entityID = data.readUTF();
+            String username = data.readUTF();
+            Credentials credentials = data.readBoolean() ? new Credentials(username, data.readUTF()) : null;
+            byte[] mets = new byte[data.readInt()];
+            data.readFully(mets);
+            return new Entry(id, entityID, username, credentials, mets);
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getEntityID() {
+            return entityID;
+        }
+
+        /**
+         * @return the username that submitted the entity
+         */
+        public String getUsername() {
+            return username;
+        }
+
+        /**
+         * @return the credentials to ingest the entity with, or null if the journal did not store them
+         */
+        public Credentials getCredentials() {
+            return credentials;
+        }
+
+        public byte[] getMets() {
+            return mets;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package eu.scape_project.dataconnetor.doms;
+
+import eu.scape_project.dataconnetor.doms.exceptions.ParsingException;
+import eu.scape_project.dataconnetor.doms.exceptions.TooLargeException;
+import eu.scape_project.model.IntellectualEntity;
+import eu.scape_project.model.Representation;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reads METS documents from requests, enforcing the size limits of the document and of each metadata section.
+ * <p/>
+ * The size of the document is counted as it is unmarshalled, so without a section limit the document is read in a
+ * single pass straight from the request. A single metadata record is also read in one pass, as its text is counted
+ * by the StAX reader the unmarshaller reads from. The scape marshaller only unmarshals entities and representations
+ * from streams, so with a section limit these are first read through in a StAX pass, which checks the limits and
+ * spools the bytes, in memory for small documents and to a temporary file for large ones. Only a document within the
+ * limits is handed on to be unmarshalled, so an oversized request is rejected without ever being held in memory.
+ */
+public class MetsReader {
+
+    /**
+     * The maximum number of bytes in a METS document
+     */
+    public static final String MAX_SIZE = "scape.mets.maxSize";
+    /**
+     * The maximum number of characters of text in a single metadata section
+     */
+    public static final String MAX_SECTION_SIZE = "scape.mets.maxSectionSize";
+    /**
+     * Documents larger than this number of bytes are spooled to a temporary file rather than kept in memory, both when
+     * read from requests and when written to responses
+     */
+    public static final String MEMORY_THRESHOLD = "scape.mets.memoryThreshold";
+
+    public static final int DEFAULT_MEMORY_THRESHOLD = 1024 * 1024;
+
+    public static final String METS_NAMESPACE = "http://www.loc.gov/METS/";
+
+    private static final Set<String> SECTIONS = new HashSet<>(
+            Arrays.asList("dmdSec", "techMD", "rightsMD", "sourceMD", "digiprovMD"));
+
+    private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+    static {
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final long maxSize;
+    private final long maxSectionSize;
+    private final int memoryThreshold;
+
+    /**
+     * @param maxSize         the maximum number of bytes in a document, zero or less means unlimited
+     * @param maxSectionSize  the maximum number of characters of text in a metadata section, zero or less means
+     *                        unlimited
+     * @param memoryThreshold documents larger than this number of bytes are spooled to a temporary file
+     */
+    public MetsReader(long maxSize, long maxSectionSize, int memoryThreshold) {
+        this.maxSize = maxSize;
+        this.maxSectionSize = maxSectionSize;
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    /**
+     * Create a reader with the limits from the configuration
+     */
+    public static MetsReader fromConfig() {
+        return new MetsReader(
+                ConfigUtils.getLong(MAX_SIZE, 0),
+                ConfigUtils.getLong(MAX_SECTION_SIZE, 0),
+                ConfigUtils.getInt(MEMORY_THRESHOLD, DEFAULT_MEMORY_THRESHOLD));
+    }
+
+    /**
+     * Read an intellectual entity from a METS document
+     */
+    public IntellectualEntity readEntity(InputStream mets) throws ParsingException, TooLargeException {
+        if (maxSectionSize <= 0) {
+            LimitedInputStream limited = new LimitedInputStream(mets);
+            try {
+                return XmlUtils.toEntity(limited);
+            } catch (ParsingException e) {
+                throw limited.tooLarge(e);
+            }
+        }
+        Spool spool = spool(mets);
+        try {
+            InputStream contents = open(spool);
+            try {
+                return XmlUtils.toEntity(contents);
+            } finally {
+                close(contents);
+            }
+        } finally {
+            spool.delete();
+        }
+    }
+
+    /**
+     * Read a representation from its xml
+     */
+    public Representation readRepresentation(InputStream xml) throws ParsingException, TooLargeException {
+        if (maxSectionSize <= 0) {
+            LimitedInputStream limited = new LimitedInputStream(xml);
+            try {
+                return XmlUtils.toRepresentation(limited);
+            } catch (ParsingException e) {
+                throw limited.tooLarge(e);
+            }
+        }
+        Spool spool = spool(xml);
+        try {
+            InputStream contents = open(spool);
+            try {
+                return XmlUtils.toRepresentation(contents);
+            } finally {
+                close(contents);
+            }
+        } finally {
+            spool.delete();
+        }
+    }
+
+    /**
+     * Read a single metadata record. The whole record counts as one metadata section.
+     */
+    public <T> T readMetadata(InputStream xml) throws ParsingException, TooLargeException {
+        LimitedInputStream limited = new LimitedInputStream(xml);
+        SectionLimitedReader reader;
+        try {
+            reader = new SectionLimitedReader(inputFactory.createXMLStreamReader(limited));
+        } catch (XMLStreamException e) {
+            throw limited.tooLarge(new ParsingException(e));
+        }
+        try {
+            return XmlUtils.toObject(reader);
+        } catch (ParsingException e) {
+            if (reader.exceeded) {
+                throw new TooLargeException("The metadata is larger than " + maxSectionSize + " characters");
+            }
+            throw limited.tooLarge(e);
+        } finally {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                //ignore, we only read from it
+            }
+        }
+    }
+
+    /**
+     * Read the document through, checking the limits and spooling the bytes
+     *
+     */
+    private Spool spool(InputStream input) throws ParsingException, TooLargeException {
+        Spool spool = new Spool(memoryThreshold);
+        boolean success = false;
+        try {
+            SpoolingInputStream spooling = new SpoolingInputStream(input, spool);
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(spooling);
+            try {
+                int depth = 0;
+                int sectionDepth = -1;
+                long sectionSize = 0;
+                String sectionName = null;
+                while (reader.hasNext()) {
+                    switch (reader.next()) {
+                        case XMLStreamConstants.START_ELEMENT:
+                            depth++;
+                            if (sectionDepth < 0 && isSection(reader)) {
+                                sectionDepth = depth;
+                                sectionSize = 0;
+                                sectionName = reader.getLocalName();
+                            }
+                            break;
+                        case XMLStreamConstants.END_ELEMENT:
+                            if (depth == sectionDepth) {
+                                sectionDepth = -1;
+                            }
+                            depth--;
+                            break;
+                        case XMLStreamConstants.CHARACTERS:
+                        case XMLStreamConstants.CDATA:
+                            if (sectionDepth >= 0) {
+                                sectionSize += reader.getTextLength();
+                                if (maxSectionSize > 0 && sectionSize > maxSectionSize) {
+                                    throw new TooLargeException(
+                                            "The " + sectionName + " section is larger than " + maxSectionSize
+                                            + " characters");
+                                }
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            spooling.drain();
+            success = true;
+            return spool;
+        } catch (XMLStreamException e) {
+            if (e.getNestedException() instanceof TooLargeIOException) {
+                throw ((TooLargeIOException) e.getNestedException()).toTooLargeException();
+            }
+            throw new ParsingException(e);
+        } catch (TooLargeIOException e) {
+            throw e.toTooLargeException();
+        } catch (IOException e) {
+            throw new ParsingException(e);
+        } finally {
+            if (!success) {
+                spool.delete();
+            }
+        }
+    }
+
+    private boolean isSection(XMLStreamReader reader) {
+        return METS_NAMESPACE.equals(reader.getNamespaceURI()) && SECTIONS.contains(reader.getLocalName());
+    }
+
+    private static InputStream open(Spool spool) throws ParsingException {
+        try {
+            return spool.open();
+        } catch (IOException e) {
+            throw new ParsingException(e);
+        }
+    }
+
+    private static void close(InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            //ignore, we only read from it
+        }
+    }
+
+    /**
+     * Input stream that fails when the document becomes too large, and leaves the request stream open
+     */
+    private class LimitedInputStream extends FilterInputStream {
+        private long count = 0;
+        private boolean exceeded = false;
+
+        private LimitedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result >= 0) {
+                count(1);
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int result = super.read(buffer, offset, length);
+            if (result > 0) {
+                count(result);
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int result = read(buffer, 0, buffer.length);
+            return Math.max(result, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            //The request stream is closed by the container
+        }
+
+        private void count(int read) throws TooLargeIOException {
+            count += read;
+            if (maxSize > 0 && count > maxSize) {
+                exceeded = true;
+                throw new TooLargeIOException("The document is larger than " + maxSize + " bytes");
+            }
+        }
+
+        /**
+         * @return the exception to report a failed unmarshalling with. The unmarshaller wraps the failure of the
+         * stream, so the stream remembers if it was too large
+         */
+        private ParsingException tooLarge(ParsingException e) throws TooLargeException {
+            if (exceeded) {
+                throw new TooLargeException("The document is larger than " + maxSize + " bytes");
+            }
+            return e;
+        }
+    }
+
+    /**
+     * Input stream that copies every byte read to the spool, and fails when the document becomes too large
+     */
+    private class SpoolingInputStream extends LimitedInputStream {
+        private final Spool spool;
+
+        private SpoolingInputStream(InputStream in, Spool spool) {
+            super(in);
+            this.spool = spool;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result >= 0) {
+                spool.write(result);
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int result = super.read(buffer, offset, length);
+            if (result > 0) {
+                spool.write(buffer, offset, result);
+            }
+            return result;
+        }
+
+        /**
+         * Spool what the xml parser did not read, such as trailing whitespace
+         */
+        private void drain() throws IOException {
+            byte[] buffer = new byte[8192];
+            while (read(buffer, 0, buffer.length) >= 0) {
+            }
+        }
+    }
+
+    /**
+     * StAX reader that counts the text of the document as the unmarshaller reads it, and fails when there is more
+     * than the section limit
+     */
+    private class SectionLimitedReader extends StreamReaderDelegate {
+        private long size = 0;
+        private boolean exceeded = false;
+
+        private SectionLimitedReader(XMLStreamReader reader) {
+            super(reader);
+        }
+
+        @Override
+        public int next() throws XMLStreamException {
+            int event = super.next();
+            if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                size += getTextLength();
+                if (maxSectionSize > 0 && size > maxSectionSize) {
+                    exceeded = true;
+                    throw new XMLStreamException("The metadata is larger than " + maxSectionSize + " characters");
+                }
+            }
+            return event;
+        }
+    }
+
+    private static class TooLargeIOException extends IOException {
+        private TooLargeIOException(String message) {
+            super(message);
+        }
+
+        private TooLargeException toTooLargeException() {
+            return new TooLargeException(getMessage());
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package eu.scape_project.dataconnetor.doms;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads the parts of a multipart body (RFC 2046) one at a time, as the body is read. Only a fixed size buffer is held,
+ * so a body of any size can be read in constant memory. A part must be read before the next part is read; whatever
+ * is left of a part is skipped when the next part is requested.
+ */
+public class MultipartReader {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_HEADER_LINE = 8192;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final InputStream input;
+    private final byte[] delimiter;
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+    private PartInputStream current;
+    private boolean finished;
+
+    /**
+     * @param input    the multipart body
+     * @param boundary the boundary, from the Content-Type of the body
+     */
+    public MultipartReader(InputStream input, String boundary) {
+        this.input = input;
+        delimiter = ("\r\n--" + boundary).getBytes(ASCII);
+        buffer = new byte[Math.max(BUFFER_SIZE, delimiter.length * 2)];
+        //The first delimiter may start the body, without the line break before it
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        limit = 2;
+    }
+
+    /**
+     * @return the next part, or null if the closing delimiter has been read
+     *
+     * @throws IOException if the body could not be read or ends without the closing delimiter
+     */
+    public Part nextPart() throws IOException {
+        if (finished) {
+            return null;
+        }
+        //Skip the rest of the current part, or the preamble before the first part
+        PartInputStream skipped = current != null ? current : new PartInputStream();
+        current = null;
+        skipped.drain();
+        if (!fill(2)) {
+            throw new IOException("The multipart body ends without a closing delimiter");
+        }
+        if (buffer[position] == '-' && buffer[position + 1] == '-') {
+            finished = true;
+            return null;
+        }
+        //The rest of the delimiter line is transport padding
+        readLine();
+        Map<String, String> headers = new LinkedHashMap<>();
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(
+                        line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH), line.substring(colon + 1).trim());
+            }
+        }
+        current = new PartInputStream();
+        return new Part(headers, current);
+    }
+
+    /**
+     * Make sure the buffer holds at least the number of unread bytes, unless the body ends before
+     *
+     * @return false if the body ended before
+     */
+    private boolean fill(int needed) throws IOException {
+        if (limit - position >= needed) {
+            return true;
+        }
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        while (limit < needed) {
+            int read = input.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                return false;
+            }
+            limit += read;
+        }
+        return true;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            if (!fill(1)) {
+                throw new IOException("The multipart body ends in the headers of a part");
+            }
+            byte b = buffer[position++];
+            if (b == '\n') {
+                if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+                    line.setLength(line.length() - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() >= MAX_HEADER_LINE) {
+                throw new IOException("A header line of the multipart body is longer than " + MAX_HEADER_LINE);
+            }
+            line.append((char) (b & 0xff));
+        }
+    }
+
+    /**
+     * @return the index of the first full delimiter in the unread bytes of the buffer, or -1
+     */
+    private int indexOfDelimiter() {
+        int last = limit - delimiter.length;
+        outer:
+        for (int i = position; i <= last; i++) {
+            for (int j = 0; j < delimiter.length; j++) {
+                if (buffer[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * A part of the body
+     */
+    public static class Part {
+        private final Map<String, String> headers;
+        private final InputStream inputStream;
+
+        private Part(Map<String, String> headers, InputStream inputStream) {
+            this.headers = Collections.unmodifiableMap(headers);
+            this.inputStream = inputStream;
+        }
+
+        /**
+         * @param name the name of the header, in any case
+         *
+         * @return the value of the header, or null if the part does not have it
+         */
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.ENGLISH));
+        }
+
+        /**
+         * @return the contents of the part. The stream ends at the delimiter after the part.
+         */
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+    }
+
+    /**
+     * Reads from the buffer up to the next delimiter, and consumes the delimiter
+     */
+    private class PartInputStream extends InputStream {
+        private boolean done;
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (length == 0) {
+                return 0;
+            }
+            boolean full = fill(delimiter.length);
+            int found = indexOfDelimiter();
+            if (found == position) {
+                position += delimiter.length;
+                done = true;
+                return -1;
+            }
+            int available;
+            if (found >= 0) {
+                available = found - position;
+            } else if (full) {
+                //Bytes that could be the start of a delimiter stay in the buffer until more is read
+                available = limit - position - delimiter.length + 1;
+            } else {
+                throw new IOException("The multipart body ends without a closing delimiter");
+            }
+            int count = Math.min(length, available);
+            System.arraycopy(buffer, position, bytes, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            //The body is closed by whoever opened it
+        }
+
+        private void drain() throws IOException {
+            byte[] skip = new byte[BUFFER_SIZE];
+            while (read(skip, 0, skip.length) >= 0) {
+            }
+        }
+    }
+}
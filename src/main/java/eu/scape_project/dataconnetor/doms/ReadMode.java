@@ -0,0 +1,38 @@
+package eu.scape_project.dataconnetor.doms;
+
+/**
+ * The ways an entity can be read from fedora
+ */
+public enum ReadMode {
+    /**
+     * Fetch the datastreams one after the other
+     */
+    SEQUENTIAL,
+    /**
+     * Fetch the independent datastreams concurrently
+     */
+    PARALLEL,
+    /**
+     * Fetch the whole object in one FOXML export
+     */
+    EXPORT;
+
+    /**
+     * Parse the read mode from the configuration value
+     *
+     * @param value        the configured value, case insensitive
+     * @param defaultValue the mode to use if the value is null or unknown
+     *
+     * @return the read mode
+     */
+    public static ReadMode parse(String value, ReadMode defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package eu.scape_project.dataconnetor.doms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of entities rendered as METS, bounded by the total number of bytes held. When the bound is exceeded, the least
+ * recently used renderings are evicted. Counts hits, misses and evictions.
+ * <p/>
+ * Renderings of the newest version expire and are invalidated when the object changes. Renderings of an explicit
+ * version can never change, so they are immutable and only leave the cache when evicted.
+ * <p/>
+ * A rendering is filled while it is written to a client. If the object is invalidated after the rendering was read,
+ * the fill is dropped, so a rendering read before an update is never cached after it. Invalidations are counted by
+ * generations, striped by pid.
+ */
+public class RenderedEntityCache {
+
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    public static final long DEFAULT_TTL = 60 * 1000;
+
+    private final long maxBytes;
+    private final long timeToLive;
+    private final LinkedHashMap<String, Rendering> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private final long[] generations = new long[64];
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes   the maximum number of bytes of renderings to hold. Zero or less disables the cache
+     * @param timeToLive the number of milliseconds a rendering is valid after it was put. Zero or less means forever
+     */
+    public RenderedEntityCache(long maxBytes, long timeToLive) {
+        this.maxBytes = maxBytes;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * The key of the rendering of a version of an object
+     *
+     * @param scope         the scope of the key, such as the credentials the rendering was read with
+     * @param pid           the pid of the object
+     * @param versionID     the version, or null for the newest
+     * @param useReferences whether the metadata was referenced rather than wrapped
+     */
+    public static String key(String scope, String pid, String versionID, boolean useReferences) {
+        return scope + "/" + pid + "@" + versionID + "/" + useReferences;
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * @return the rendering or null if it is not cached or has expired
+     */
+    public synchronized Rendering get(String key) {
+        Rendering rendering = entries.get(key);
+        if (rendering != null && rendering.expires <= System.currentTimeMillis()) {
+            remove(key);
+            rendering = null;
+        }
+        if (rendering == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return rendering;
+    }
+
+    /**
+     * @return the generation of the object, to be read before the object is read and given to {@link #fill(String,
+     * String, String, boolean, long)}
+     */
+    public synchronized long generation(String pid) {
+        return generations[stripe(pid)];
+    }
+
+    /**
+     * Start filling the cache with a rendering, as it is written
+     *
+     * @param key        the key of the rendering
+     * @param pid        the pid of the object
+     * @param tag        the entity tag of the state the rendering is read from, or null
+     * @param immutable  true if the rendering is of an explicit version, which can never change
+     * @param generation the generation of the object from before it was read
+     *
+     * @return the fill, or null if the cache is disabled
+     */
+    public Fill fill(String key, String pid, String tag, boolean immutable, long generation) {
+        if (!isEnabled()) {
+            return null;
+        }
+        return new Fill(key, pid, tag, immutable, generation);
+    }
+
+    private synchronized void put(String key, Rendering rendering, long generation) {
+        if (generations[stripe(rendering.pid)] != generation) {
+            return;
+        }
+        put(key, rendering);
+    }
+
+    /**
+     * Cache the rendering. Renderings larger than a quarter of the cache are not cached.
+     */
+    public synchronized void put(String key, Rendering rendering) {
+        if (rendering.bytes.length > maxBytes / 4) {
+            return;
+        }
+        remove(key);
+        if (rendering.immutable || timeToLive <= 0) {
+            rendering.expires = Long.MAX_VALUE;
+        } else {
+            rendering.expires = System.currentTimeMillis() + timeToLive;
+        }
+        entries.put(key, rendering);
+        bytes += rendering.bytes.length;
+        Iterator<Rendering> iterator = entries.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            bytes -= iterator.next().bytes.length;
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Forget the mutable renderings of the object, to be called when the object is changed
+     *
+     * @param pid the pid of the object
+     */
+    public synchronized void invalidate(String pid) {
+        generations[stripe(pid)]++;
+        Iterator<Rendering> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Rendering rendering = iterator.next();
+            if (!rendering.immutable && rendering.pid.equals(pid)) {
+                bytes -= rendering.bytes.length;
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < generations.length; i++) {
+            generations[i]++;
+        }
+        entries.clear();
+        bytes = 0;
+    }
+
+    private int stripe(String pid) {
+        return (pid.hashCode() & Integer.MAX_VALUE) % generations.length;
+    }
+
+    private void remove(String key) {
+        Rendering old = entries.remove(key);
+        if (old != null) {
+            bytes -= old.bytes.length;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "RenderedEntityCache{" +
+               "entries=" + size() +
+               ", bytes=" + getBytes() +
+               ", hits=" + getHits() +
+               ", misses=" + getMisses() +
+               ", evictions=" + getEvictions() +
+               '}';
+    }
+
+    /**
+     * Collects a rendering as it is written to a client. Once more than a quarter of the cache has been written, the
+     * collected bytes are dropped, as the rendering would not be cached.
+     */
+    public class Fill extends OutputStream {
+        private final String key;
+        private final String pid;
+        private final String tag;
+        private final boolean immutable;
+        private final long generation;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        private Fill(String key, String pid, String tag, boolean immutable, long generation) {
+            this.key = key;
+            this.pid = pid;
+            this.tag = tag;
+            this.immutable = immutable;
+            this.generation = generation;
+        }
+
+        @Override
+        public void write(int b) {
+            if (buffer != null) {
+                buffer.write(b);
+                checkSize();
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            if (buffer != null) {
+                buffer.write(bytes, offset, length);
+                checkSize();
+            }
+        }
+
+        private void checkSize() {
+            if (buffer.size() > maxBytes / 4) {
+                buffer = null;
+            }
+        }
+
+        /**
+         * Cache the rendering, once it has been written completely
+         */
+        public void commit() {
+            if (buffer != null) {
+                put(key, new Rendering(pid, buffer.toByteArray(), tag, immutable), generation);
+                buffer = null;
+            }
+        }
+    }
+
+    /**
+     * An entity rendered as METS, with the entity tag of the state it was rendered from
+     */
+    public static class Rendering {
+        private final String pid;
+        private final byte[] bytes;
+        private final String tag;
+        private final boolean immutable;
+        private long expires;
+
+        public Rendering(String pid, byte[] bytes, String tag) {
+            this(pid, bytes, tag, false);
+        }
+
+        /**
+         * @param immutable true if the rendering is of an explicit version, which can never change
+         */
+        public Rendering(String pid, byte[] bytes, String tag, boolean immutable) {
+            this.pid = pid;
+            this.bytes = bytes;
+            this.tag = tag;
+            this.immutable = immutable;
+        }
+
+        /**
+         * @return the rendered METS. This is shared, so it must not be changed
+         */
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the entity tag, or null if the state had none
+         */
+        public String getTag() {
+            return tag;
+        }
+
+        public boolean isImmutable() {
+            return immutable;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package eu.scape_project.dataconnetor.doms;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Output stream which keeps the bytes in memory until there are more than the threshold, and then moves them to a
+ * temporary file. The bytes are read back with {@link #open()}, and the spool must be deleted when done with.
+ */
+public class Spool extends OutputStream {
+    private final int threshold;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private File file;
+    private OutputStream fileStream;
+
+    /**
+     * @param threshold the number of bytes kept in memory before they are moved to a temporary file
+     */
+    public Spool(int threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (fileStream == null && memory.size() + length > threshold) {
+            file = File.createTempFile("spool", ".xml");
+            fileStream = new FileOutputStream(file);
+            memory.writeTo(fileStream);
+            memory = null;
+        }
+        if (fileStream != null) {
+            fileStream.write(buffer, offset, length);
+        } else {
+            memory.write(buffer, offset, length);
+        }
+    }
+
+    /**
+     * @return the bytes written so far. No more bytes can be written to a spooled file after this.
+     */
+    public InputStream open() throws IOException {
+        if (fileStream == null) {
+            return new ByteArrayInputStream(memory.toByteArray());
+        }
+        fileStream.close();
+        return new BufferedInputStream(new FileInputStream(file));
+    }
+
+    /**
+     * Delete the temporary file, if any, and forget the bytes
+     */
+    public void delete() {
+        if (fileStream != null) {
+            try {
+                fileStream.close();
+            } catch (IOException e) {
+                //ignore, the file is deleted anyway
+            }
+        }
+        if (file != null && !file.delete()) {
+            file.deleteOnExit();
+        }
+        memory = null;
+    }
+}
@@ -111,10 +111,17 @@ public class TypeUtils {
                                                                                            BackendMethodFailedException,
                                                                                            BackendInvalidResourceException,
                                                                                            BackendInvalidCredsException {
-        Document DCdoc = DOM.stringToDOM(fedora.getXMLDatastreamContents(pid, "DC"), true);
+        return getDCIdentifiers(fedora.getXMLDatastreamContents(pid, "DC"), prefix);
+    }
+
+    static List<String> getDCIdentifiers(String dcXml, String prefix) {
+        List<String> result = new ArrayList<>();
+        if (dcXml == null) {
+            return result;
+        }
+        Document DCdoc = DOM.stringToDOM(dcXml, true);
         NodeList dcIdentifiers = DOM.createXPathSelector("oai", NAMESPACE_OAIDC, "dc", NAMESPACE_DC)
                                     .selectNodeList(DCdoc, "/oai:dc/dc:identifier");
-        List<String> result = new ArrayList<>();
         for (int i = 0; i < dcIdentifiers.getLength(); i++) {
             Node dcIdentifier = dcIdentifiers.item(i);
             String textContent = dcIdentifier.getTextContent();
@@ -4,6 +4,8 @@ import dk.statsbiblioteket.doms.central.connectors.BackendInvalidCredsException;
 import dk.statsbiblioteket.doms.central.connectors.BackendInvalidResourceException;
 import dk.statsbiblioteket.doms.central.connectors.BackendMethodFailedException;
 import dk.statsbiblioteket.doms.central.connectors.EnhancedFedora;
+import dk.statsbiblioteket.util.Bytes;
+import dk.statsbiblioteket.util.Checksums;
 import eu.scape_project.dataconnetor.doms.exceptions.CommunicationException;
 import versions.ObjectFactory;
 import versions.VersionType;
@@ -17,12 +19,23 @@ import java.io.StringWriter;
 
 public class VersionUtils {
 
+    /**
+     * The context is thread safe and expensive to create, so it is shared. The marshallers and unmarshallers are not
+     * thread safe, but cheap to create from the context, so one is created for each call.
+     */
+    private static final JAXBContext jaxbContext = createJaxbContext();
 
-    public static Long findVersionInScapeVersions(String scapeVersions, String versionID) {
+    /**
+     * The parsed SCAPE_VERSIONS, keyed by pid and the md5 checksum of the xml. As the checksum changes whenever the
+     * versions change, the entries never become stale.
+     */
+    private static final ExpiringCache<String, VersionsType> versionsCache = new ExpiringCache<>(1000, 10 * 60 * 1000);
+
+
+    public static Long findVersionInScapeVersions(String pid, String scapeVersions, String versionID) {
         //TODO make this better
         try {
-            VersionsType versions = getJaxbContext().createUnmarshaller().unmarshal(
-                    new StreamSource(new StringReader(scapeVersions)), VersionsType.class).getValue();
+            VersionsType versions = parse(pid, scapeVersions);
             for (VersionType version : versions.getVersion()) {
                 if (version.getId().toString().equals(versionID)){
                     return version.getTimestamp();
@@ -34,8 +47,12 @@ public class VersionUtils {
         return null;
     }
 
-    private static JAXBContext getJaxbContext() throws JAXBException {
-        return JAXBContext.newInstance(ObjectFactory.class);
+    private static JAXBContext createJaxbContext() {
+        try {
+            return JAXBContext.newInstance(ObjectFactory.class);
+        } catch (JAXBException e) {
+            throw new IllegalStateException("Failed to create the jaxb context for the versions", e);
+        }
     }
 
     static void setVersions(String pid, EnhancedFedora fedora, String logMessage, VersionsType versions) throws
@@ -46,30 +63,46 @@ public class VersionUtils {
         String xml = toXml(versions);
 
         fedora.modifyDatastreamByValue(pid, EntityManipulator.SCAPE_VERSIONS,xml,null,logMessage);
+        versionsCache.put(key(pid, checksum(xml)), copy(versions));
     }
 
     public static String toXml(VersionsType versions) throws CommunicationException {
         StringWriter sink = new StringWriter();
         try {
-            getJaxbContext().createMarshaller().marshal(new ObjectFactory().createVersions(versions),sink);
+            jaxbContext.createMarshaller().marshal(new ObjectFactory().createVersions(versions),sink);
         } catch (JAXBException e) {
             throw new CommunicationException(e);
         }
         return sink.toString();
     }
 
-    static VersionsType getVersions(String pid, EnhancedFedora fedora) throws
-                                                                        BackendInvalidCredsException,
-                                                                        BackendMethodFailedException,
-                                                                        CommunicationException {
+    /**
+     * Get the versions of the object
+     *
+     * @param pid      the pid of the object
+     * @param fedora   the fedora to read the versions from
+     * @param checksum the md5 checksum of the SCAPE_VERSIONS datastream, if known. If the versions with this checksum
+     *                 are cached, fedora is not called.
+     *
+     * @return the versions, which the caller is free to change
+     */
+    static VersionsType getVersions(String pid, EnhancedFedora fedora, String checksum) throws
+                                                                                        BackendInvalidCredsException,
+                                                                                        BackendMethodFailedException,
+                                                                                        CommunicationException {
+        if (checksum != null) {
+            VersionsType cached = versionsCache.get(key(pid, checksum.toLowerCase()));
+            if (cached != null) {
+                return copy(cached);
+            }
+        }
         VersionsType versions = null;
         try {
             String versionsXml = fedora.getXMLDatastreamContents(pid, EntityManipulator.SCAPE_VERSIONS, null);
             if (versionsXml == null){
                 return new VersionsType();
             }
-            versions = getJaxbContext().createUnmarshaller().unmarshal(
-                    new StreamSource(new StringReader(versionsXml)), VersionsType.class).getValue();
+            versions = copy(parse(pid, versionsXml));
 
         } catch (BackendInvalidResourceException e){
             versions = new VersionsType();
@@ -78,4 +111,55 @@ public class VersionUtils {
         }
         return versions;
     }
+
+    /**
+     * Get the versions of the object from the content of its SCAPE_VERSIONS datastream
+     *
+     * @param pid         the pid of the object
+     * @param versionsXml the content of the SCAPE_VERSIONS datastream
+     *
+     * @return the versions, which the caller is free to change
+     */
+    static VersionsType getVersions(String pid, String versionsXml) throws CommunicationException {
+        try {
+            return copy(parse(pid, versionsXml));
+        } catch (JAXBException e) {
+            throw new CommunicationException(e);
+        }
+    }
+
+    /**
+     * Parse the SCAPE_VERSIONS xml of the object, or get it from the cache if it has been parsed before
+     *
+     * @return the parsed versions. This is shared, so it must not be changed
+     */
+    private static VersionsType parse(String pid, String versionsXml) throws JAXBException {
+        String key = key(pid, checksum(versionsXml));
+        VersionsType versions = versionsCache.get(key);
+        if (versions == null) {
+            versions = jaxbContext.createUnmarshaller().unmarshal(
+                    new StreamSource(new StringReader(versionsXml)), VersionsType.class).getValue();
+            versionsCache.put(key, versions);
+        }
+        return versions;
+    }
+
+    private static VersionsType copy(VersionsType versions) {
+        VersionsType result = new VersionsType();
+        for (VersionType version : versions.getVersion()) {
+            VersionType versionCopy = new VersionType();
+            versionCopy.setId(version.getId());
+            versionCopy.setTimestamp(version.getTimestamp());
+            result.getVersion().add(versionCopy);
+        }
+        return result;
+    }
+
+    private static String checksum(String xml) {
+        return Bytes.toHex(Checksums.md5(xml)).toLowerCase();
+    }
+
+    private static String key(String pid, String checksum) {
+        return pid + "/" + checksum;
+    }
 }
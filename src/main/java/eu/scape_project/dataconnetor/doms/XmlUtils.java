@@ -1,24 +1,72 @@
 package eu.scape_project.dataconnetor.doms;
 
+import dk.statsbiblioteket.util.Bytes;
 import eu.scape_project.dataconnetor.doms.exceptions.ParsingException;
 import eu.scape_project.model.IntellectualEntity;
 import eu.scape_project.model.Representation;
 import eu.scape_project.util.ScapeMarshaller;
 
 import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class XmlUtils {
-    private static ScapeMarshaller scapeMarshaller;
+    /**
+     * The jaxb marshallers and unmarshallers are not thread safe, so each call borrows a scape marshaller from the
+     * pool. A scape marshaller builds its own jaxb context, so the pool is capped at twice the number of processors
+     * rather than growing with the number of threads, and a call waits for a marshaller when all are in use. A call
+     * that waits longer than the timeout is rejected, so a stuck marshaller cannot hang the webapp.
+     */
+    private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+    private static final long BORROW_TIMEOUT = 30 * 1000;
+    private static final BlockingQueue<ScapeMarshaller> idle = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final AtomicInteger created = new AtomicInteger();
+
+    static {
+        //Build the first marshaller eagerly, so the first request does not pay for the jaxb context
+        try {
+            idle.add(ScapeMarshaller.newInstance());
+            created.incrementAndGet();
+        } catch (JAXBException e) {
+            throw new IllegalStateException("Failed to create the scape marshaller", e);
+        }
+    }
+
+    /**
+     * Stream that drops everything written to it
+     */
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
 
 
 
     public static IntellectualEntity toEntity(InputStream contents) throws ParsingException {
         try {
-            return getScapeMarshaller().deserialize(IntellectualEntity.class, contents);
+            ScapeMarshaller marshaller = borrow();
+            try {
+                return marshaller.deserialize(IntellectualEntity.class, contents);
+            } finally {
+                release(marshaller);
+            }
         } catch (JAXBException e) {
             throw new ParsingException(e);
         }
@@ -26,7 +74,12 @@ public class XmlUtils {
 
     public static Representation toRepresentation(InputStream contents) throws ParsingException {
         try {
-            return getScapeMarshaller().deserialize(Representation.class, contents);
+            ScapeMarshaller marshaller = borrow();
+            try {
+                return marshaller.deserialize(Representation.class, contents);
+            } finally {
+                release(marshaller);
+            }
         } catch (JAXBException e) {
             throw new ParsingException(e);
         }
@@ -45,27 +98,73 @@ public class XmlUtils {
             return null;
         }
         try {
-            return (T) getScapeMarshaller().getJaxbUnmarshaller().unmarshal(contents);
+            ScapeMarshaller marshaller = borrow();
+            try {
+                return (T) marshaller.getJaxbUnmarshaller().unmarshal(contents);
+            } finally {
+                release(marshaller);
+            }
         } catch (JAXBException e) {
             throw new ParsingException(e);
         }
     }
 
-    private static ScapeMarshaller getScapeMarshaller() throws JAXBException {
-        if (scapeMarshaller == null) {
-            scapeMarshaller = ScapeMarshaller.newInstance();
+    /**
+     * Unmarshal the object the reader is positioned at
+     *
+     * @param contents the reader, at the start of the document or of the element. It is not closed
+     */
+    public static <T> T toObject(XMLStreamReader contents) throws ParsingException {
+        try {
+            ScapeMarshaller marshaller = borrow();
+            try {
+                return (T) marshaller.getJaxbUnmarshaller().unmarshal(contents);
+            } finally {
+                release(marshaller);
+            }
+        } catch (JAXBException e) {
+            throw new ParsingException(e);
         }
-        return scapeMarshaller;
+    }
 
+    /**
+     * Take an idle scape marshaller from the pool, create one if the pool is not full, or wait for one to be returned
+     *
+     * @throws RejectedExecutionException if no marshaller was returned within the timeout
+     */
+    private static ScapeMarshaller borrow() throws JAXBException {
+        ScapeMarshaller marshaller = idle.poll();
+        if (marshaller != null) {
+            return marshaller;
+        }
+        if (created.incrementAndGet() <= POOL_SIZE) {
+            try {
+                return ScapeMarshaller.newInstance();
+            } catch (JAXBException | RuntimeException e) {
+                created.decrementAndGet();
+                throw e;
+            }
+        }
+        created.decrementAndGet();
+        try {
+            marshaller = idle.poll(BORROW_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JAXBException(e);
+        }
+        if (marshaller == null) {
+            throw new RejectedExecutionException("All the xml marshallers are busy");
+        }
+        return marshaller;
+    }
+
+    private static void release(ScapeMarshaller marshaller) {
+        idle.offer(marshaller);
     }
 
     public static InputStream toBytes(Object datastream) throws ParsingException {
         ByteArrayOutputStream sink = new ByteArrayOutputStream();
-        try {
-            getScapeMarshaller().getJaxbMarshaller().marshal(datastream, sink);
-        } catch (JAXBException e) {
-            throw new ParsingException(e);
-        }
+        write(datastream, sink);
         try {
             sink.close();
         } catch (IOException e) {
@@ -76,28 +175,100 @@ public class XmlUtils {
 
     public static InputStream toBytes(IntellectualEntity entity, boolean useReferences) throws ParsingException {
         ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        write(entity, useReferences, sink);
         try {
+            sink.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return new ByteArrayInputStream(sink.toByteArray());
+    }
 
-            getScapeMarshaller().serialize(entity, sink, useReferences);
+    /**
+     * Marshal the xml object directly to the stream
+     *
+     * @param datastream the jaxb object
+     * @param sink       the stream to write to. It is not closed
+     */
+    public static void write(Object datastream, OutputStream sink) throws ParsingException {
+        try {
+            ScapeMarshaller marshaller = borrow();
+            try {
+                marshaller.getJaxbMarshaller().marshal(datastream, sink);
+            } finally {
+                release(marshaller);
+            }
         } catch (JAXBException e) {
             throw new ParsingException(e);
         }
+    }
+
+    /**
+     * Serialize the entity as METS directly to the stream
+     *
+     * @param entity        the entity
+     * @param useReferences whether to reference the metadata rather than wrap it
+     * @param sink          the stream to write to. It is not closed
+     */
+    public static void write(IntellectualEntity entity, boolean useReferences, OutputStream sink) throws
+                                                                                                ParsingException {
         try {
-            sink.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            ScapeMarshaller marshaller = borrow();
+            try {
+                marshaller.serialize(entity, sink, useReferences);
+            } finally {
+                release(marshaller);
+            }
+        } catch (JAXBException e) {
+            throw new ParsingException(e);
         }
-        return new ByteArrayInputStream(sink.toByteArray());
     }
 
     public static String toString(Object xml) throws ParsingException {
         ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        serialize(xml, sink);
+        return sink.toString();
+    }
+
+    /**
+     * The md5 checksum of the object as serialized by {@link #serialize(Object, OutputStream)}. The checksum is
+     * computed while serializing, so the serialization is never held in memory.
+     *
+     * @param xml the object to serialize
+     *
+     * @return the checksum as hex
+     */
+    public static String md5(Object xml) throws ParsingException {
+        MessageDigest digest = newMd5();
+        serialize(xml, new DigestOutputStream(DISCARD, digest));
+        return Bytes.toHex(digest.digest());
+    }
+
+    public static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported", e);
+        }
+    }
+
+    /**
+     * Serialize the object with the scape marshaller directly to the stream, as {@link #toString(Object)} does
+     *
+     * @param xml  the object to serialize
+     * @param sink the stream to write to. It is not closed
+     */
+    public static void serialize(Object xml, OutputStream sink) throws ParsingException {
         try {
-            getScapeMarshaller().serialize(xml, sink);
+            ScapeMarshaller marshaller = borrow();
+            try {
+                marshaller.serialize(xml, sink);
+            } finally {
+                release(marshaller);
+            }
         } catch (JAXBException e) {
             throw new ParsingException(e);
         }
-        return sink.toString();
     }
 
 
@@ -4,4 +4,8 @@ public class CommunicationException extends MyException {
     public CommunicationException(Exception e) {
         super(e);
     }
+
+    public CommunicationException(String message) {
+        super(message);
+    }
 }
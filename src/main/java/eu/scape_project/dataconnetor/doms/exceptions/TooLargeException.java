@@ -0,0 +1,7 @@
+package eu.scape_project.dataconnetor.doms.exceptions;
+
+public class TooLargeException extends MyException {
+    public TooLargeException(String message) {
+        super(message);
+    }
+}
@@ -4,4 +4,8 @@ public class UnauthorizedException extends MyException {
     public UnauthorizedException(Exception e) {
         super(e);
     }
+
+    public UnauthorizedException(String message) {
+        super(message);
+    }
 }
@@ -1,4 +1,24 @@
 package eu.scape_project.dataconnetor.doms.exceptions;
 
 public class VersioningException extends Exception {
+
+    private final boolean preconditionMissing;
+
+    public VersioningException() {
+        this.preconditionMissing = false;
+    }
+
+    /**
+     * @param message             the message
+     * @param preconditionMissing true if the update failed because it did not say which version it was based on,
+     *                            false if it was based on an old version
+     */
+    public VersioningException(String message, boolean preconditionMissing) {
+        super(message);
+        this.preconditionMissing = preconditionMissing;
+    }
+
+    public boolean isPreconditionMissing() {
+        return preconditionMissing;
+    }
 }
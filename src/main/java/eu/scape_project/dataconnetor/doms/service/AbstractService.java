@@ -1,15 +1,107 @@
 package eu.scape_project.dataconnetor.doms.service;
 
 import dk.statsbiblioteket.doms.webservices.authentication.Credentials;
+import eu.scape_project.dataconnetor.doms.MetsReader;
+import eu.scape_project.dataconnetor.doms.exceptions.VersioningException;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 
 public class AbstractService {
 
+    private static MetsReader metsReader;
+
     @Context
     private HttpServletRequest request;
 
+    @Context
+    private Request jaxrsRequest;
+
+    /**
+     * @return the reader for METS documents in requests, with the configured size limits
+     */
+    protected static synchronized MetsReader getMetsReader() {
+        if (metsReader == null) {
+            metsReader = MetsReader.fromConfig();
+        }
+        return metsReader;
+    }
+
+
+    /**
+     * Evaluate the conditional headers of the request, such as If-None-Match, against the entity tag
+     *
+     * @param tag the tag of the current state of the resource, or null if it has none
+     *
+     * @return the response to give instead of the resource, such as 304 Not Modified, or null if the resource should
+     * be served
+     */
+    protected Response evaluatePreconditions(EntityTag tag) {
+        return evaluatePreconditions(tag, null);
+    }
+
+    /**
+     * Evaluate the conditional headers of the request like {@link #evaluatePreconditions(EntityTag)}
+     *
+     * @param cacheControl the Cache-Control header to send with the response, or null
+     */
+    protected Response evaluatePreconditions(EntityTag tag, String cacheControl) {
+        if (tag == null) {
+            return null;
+        }
+        Response.ResponseBuilder builder = jaxrsRequest.evaluatePreconditions(tag);
+        if (builder == null) {
+            return null;
+        }
+        if (cacheControl != null) {
+            builder.header(HttpHeaders.CACHE_CONTROL, cacheControl);
+        }
+        return builder.tag(tag).build();
+    }
+
+    /**
+     * @return the strong entity tag with the value, or null if the value is null
+     */
+    protected static EntityTag entityTag(String value) {
+        if (value == null) {
+            return null;
+        }
+        return new EntityTag(value);
+    }
+
+    /**
+     * The entity tag an update is based on, from the If-Match header of the request. Only the first tag of the header
+     * is used, and weak tags are compared as strong ones.
+     *
+     * @param ifMatch the If-Match header, or null
+     *
+     * @return the value of the tag, "*" for any tag, or null if there was no header
+     */
+    protected static String expectedEntityTag(String ifMatch) {
+        if (ifMatch == null || ifMatch.trim().isEmpty()) {
+            return null;
+        }
+        String tag = ifMatch.split(",")[0].trim();
+        if (tag.startsWith("W/")) {
+            tag = tag.substring(2);
+        }
+        if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+            tag = tag.substring(1, tag.length() - 1);
+        }
+        return tag;
+    }
+
+    /**
+     * @return 428 Precondition Required if the update did not say which version it was based on, otherwise 412
+     * Precondition Failed
+     */
+    protected static Response versionConflict(VersioningException e) {
+        return Response.status(e.isPreconditionMissing() ? 428 : 412).entity(e.getMessage()).build();
+    }
 
     public Credentials getCredentials() {
         Credentials creds = (Credentials) request.getAttribute("Credentials");
@@ -0,0 +1,31 @@
+package eu.scape_project.dataconnetor.doms.service;
+
+import eu.scape_project.dataconnetor.doms.EntityInterfaceFactory;
+import eu.scape_project.dataconnetor.doms.exceptions.ConfigurationException;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Starts the asynchronous ingest when the webapp is started, so entities left in its journal are ingested, and
+ * releases the threads and pooled connections of the data connector when the webapp is stopped
+ */
+public class DataConnectorContextListener implements ServletContextListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent servletContextEvent) {
+        try {
+            Entity_AsyncService.start();
+        } catch (ConfigurationException e) {
+            servletContextEvent.getServletContext().log("Failed to start the asynchronous ingest", e);
+        }
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent servletContextEvent) {
+        EntityListService.shutdown();
+        EntityBulkService.shutdown();
+        Entity_AsyncService.shutdown();
+        EntityInterfaceFactory.shutdown();
+    }
+}
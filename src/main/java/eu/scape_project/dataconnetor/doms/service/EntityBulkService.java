@@ -0,0 +1,448 @@
+package eu.scape_project.dataconnetor.doms.service;
+
+import eu.scape_project.dataconnetor.doms.ConfigUtils;
+import eu.scape_project.dataconnetor.doms.EntityInterfaceFactory;
+import eu.scape_project.dataconnetor.doms.EntityManipulator;
+import eu.scape_project.dataconnetor.doms.ExecutorUtils;
+import eu.scape_project.dataconnetor.doms.MetsReader;
+import eu.scape_project.dataconnetor.doms.MultipartReader;
+import eu.scape_project.dataconnetor.doms.Spool;
+import eu.scape_project.dataconnetor.doms.exceptions.ConfigurationException;
+import eu.scape_project.dataconnetor.doms.exceptions.MyException;
+import eu.scape_project.dataconnetor.doms.exceptions.ParsingException;
+import eu.scape_project.model.Identifier;
+import eu.scape_project.model.IntellectualEntity;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+@Path("/entity-bulk")
+public class EntityBulkService extends AbstractService {
+
+    /**
+     * The maximum number of entities ingested concurrently for one request, and the number of threads ingesting
+     * entities for all requests
+     */
+    public static final String PARALLELISM = "scape.entityBulk.parallelism";
+
+    private static final Pattern FILENAME = Pattern.compile("filename\\s*=\\s*\"?([^\";]*)\"?");
+
+    private static ExecutorService executor;
+    private static int maxParallelism;
+
+    /*
+    Ingest a batch of Intellectual Entities
+    The METS documents of the entities are sent as the parts of a multipart body. The documents are read one at a
+    time as the body arrives, and each entity is ingested as by POST /entity. The entities are ingested
+    concurrently, but the response reports them in the order of the body, one line per entity as it is done:
+    the name of the part (its filename, or its number), a tab, the status POST /entity would have given, a tab,
+    and the identifier of the entity, or the reason it failed. The report ends with a line "END", a tab, the number
+    of ingested entities, a tab and the number of failed entities. A report without the END line was cut short by
+    an error in the body itself.
+    The lines done while the body is read are held back until the whole body has been read, as most clients only
+    read the response once they have sent the body. From then on each line is sent as its entity is done.
+    Path:
+    /entity-bulk
+    Method:
+    HTTP/1.1 POST
+    Consumes:
+    multipart/mixed or multipart/form-data of METS documents
+    Produces:
+    The report
+    Content-Type:
+    text/plain
+
+    The optional parameter parallelism lowers the number of entities ingested concurrently for this request.
+     */
+    @POST
+    @Consumes({"multipart/mixed", MediaType.MULTIPART_FORM_DATA})
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response ingestMultipart(
+            @HeaderParam(HttpHeaders.CONTENT_TYPE)
+            MediaType contentType,
+            @QueryParam("parallelism")
+            Integer parallelism, InputStream body) throws ConfigurationException, ParsingException {
+        String boundary = contentType == null ? null : contentType.getParameters().get("boundary");
+        if (boundary == null || boundary.isEmpty()) {
+            throw new ParsingException("The multipart body has no boundary");
+        }
+        return ingest(new MultipartBatch(new MultipartReader(body, boundary)), parallelism);
+    }
+
+    /*
+    Ingest a batch of Intellectual Entities from a zip archive
+    As the multipart ingest, with a METS document in each file of the archive. The parts are named by the paths of
+    the files.
+    Path:
+    /entity-bulk
+    Method:
+    HTTP/1.1 POST
+    Consumes:
+    application/zip of METS documents
+    Produces:
+    The report
+    Content-Type:
+    text/plain
+     */
+    @POST
+    @Consumes("application/zip")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response ingestZip(
+            @QueryParam("parallelism")
+            Integer parallelism, InputStream body) throws ConfigurationException, ParsingException {
+        return ingest(new ZipBatch(new ZipInputStream(body)), parallelism);
+    }
+
+    private Response ingest(Batch batch, Integer parallelism) throws ConfigurationException, ParsingException {
+        EntityManipulator entities = EntityInterfaceFactory.getInstance(getCredentials());
+        final BulkIngester ingester = new BulkIngester(entities, batch, getParallelism(parallelism));
+        //Find the first document before the response is committed, so a body that is not a batch is reported by status
+        ingester.start();
+
+        StreamingOutput output = new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException, WebApplicationException {
+                ingester.write(output);
+            }
+        };
+        return Response.ok().entity(output).type(MediaType.TEXT_PLAIN_TYPE).build();
+    }
+
+    /**
+     * Reads the documents of the batch and ingests their entities, with at most parallelism entities in progress at
+     * any time. Only the entities in progress are held in memory. Two entities with the same identifier are never in
+     * progress at once, so the second is reported as already existing rather than racing the first.
+     */
+    private class BulkIngester {
+        private final EntityManipulator entities;
+        private final Batch batch;
+        private final int parallelism;
+        private final LinkedList<Ingest> inProgress = new LinkedList<>();
+        private Document first;
+        private int number;
+        private int ingested;
+        private int failed;
+
+        private BulkIngester(EntityManipulator entities, Batch batch, int parallelism) {
+            this.entities = entities;
+            this.batch = batch;
+            this.parallelism = parallelism;
+        }
+
+        private void start() throws ParsingException {
+            try {
+                first = batch.next();
+            } catch (IOException e) {
+                throw new ParsingException(e);
+            }
+        }
+
+        /**
+         * Write the report. The lines done while the body is read are spooled, and written when the body has been
+         * read or has failed. The remaining lines are flushed one by one.
+         */
+        private void write(OutputStream output) throws IOException {
+            Spool spool = new Spool(
+                    ConfigUtils.getInt(MetsReader.MEMORY_THRESHOLD, MetsReader.DEFAULT_MEMORY_THRESHOLD));
+            OutputStream report = spool;
+            try {
+                Document document = first;
+                first = null;
+                while (document != null) {
+                    number++;
+                    Ingest ingest = read(document);
+                    while (!inProgress.isEmpty() && (inProgress.size() >= parallelism || isInProgress(ingest))) {
+                        report(inProgress.removeFirst(), report);
+                    }
+                    ingest.submit();
+                    inProgress.add(ingest);
+                    document = batch.next();
+                }
+                report = output;
+                copy(spool, output);
+                while (!inProgress.isEmpty()) {
+                    report(inProgress.removeFirst(), output);
+                }
+                output.write(("END\t" + ingested + "\t" + failed + "\n").getBytes("UTF-8"));
+                output.flush();
+            } catch (IOException | RuntimeException e) {
+                if (report == spool) {
+                    //The body failed, but the client is still told of the entities done before
+                    try {
+                        copy(spool, output);
+                    } catch (IOException suppressed) {
+                        e.addSuppressed(suppressed);
+                    }
+                }
+                throw e;
+            } finally {
+                spool.delete();
+                //Entities not started are dropped, but entities being ingested are left to finish
+                for (Ingest ingest : inProgress) {
+                    ingest.cancel();
+                }
+                inProgress.clear();
+            }
+        }
+
+        private void copy(Spool spool, OutputStream output) throws IOException {
+            try (InputStream lines = spool.open()) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = lines.read(buffer)) >= 0) {
+                    output.write(buffer, 0, read);
+                }
+            }
+            output.flush();
+        }
+
+        /**
+         * Parse the entity of the document. A document that cannot be parsed becomes a failed ingest.
+         */
+        private Ingest read(Document document) {
+            String name = document.getName() != null ? document.getName() : String.valueOf(number);
+            try {
+                IntellectualEntity entity = getMetsReader().readEntity(document.getInputStream());
+                if (entity.getIdentifier() == null) {
+                    entity = new IntellectualEntity.Builder(entity).identifier(
+                            new Identifier(UUID.randomUUID().toString())).build();
+                }
+                return new Ingest(name, entities, entity);
+            } catch (MyException e) {
+                return new Ingest(name, e);
+            }
+        }
+
+        private boolean isInProgress(Ingest ingest) {
+            if (ingest.entityID == null) {
+                return false;
+            }
+            for (Ingest other : inProgress) {
+                if (ingest.entityID.equals(other.entityID)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void report(Ingest ingest, OutputStream output) throws IOException {
+            String line = ingest.await();
+            if (ingest.succeeded) {
+                ingested++;
+            } else {
+                failed++;
+            }
+            output.write(line.getBytes("UTF-8"));
+            output.flush();
+        }
+    }
+
+    /**
+     * The ingest of a single entity, and the line reporting it
+     */
+    private static class Ingest implements Callable<Void> {
+        private final String name;
+        private final EntityManipulator entities;
+        private final IntellectualEntity entity;
+        private final String entityID;
+        private Future<Void> future;
+        private Exception failure;
+        private boolean succeeded;
+
+        private Ingest(String name, EntityManipulator entities, IntellectualEntity entity) {
+            this.name = name;
+            this.entities = entities;
+            this.entity = entity;
+            this.entityID = entity.getIdentifier().getValue();
+        }
+
+        private Ingest(String name, Exception failure) {
+            this.name = name;
+            this.entities = null;
+            this.entity = null;
+            this.entityID = null;
+            this.failure = failure;
+        }
+
+        private void submit() {
+            if (failure == null) {
+                future = getExecutor().submit(this);
+            }
+        }
+
+        @Override
+        public Void call() throws Exception {
+            entities.createNew(entity);
+            return null;
+        }
+
+        private void cancel() {
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        private String await() throws IOException {
+            if (future != null) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+            if (failure == null) {
+                succeeded = true;
+                return line(Response.Status.OK.getStatusCode(), entityID);
+            }
+            int status = failure instanceof MyException
+                         ? MyExceptionMapper.toStatus((MyException) failure)
+                         : Response.Status.INTERNAL_SERVER_ERROR.getStatusCode();
+            return line(status, String.valueOf(failure.getMessage()));
+        }
+
+        private String line(int status, String text) {
+            return clean(name) + "\t" + status + "\t" + clean(text) + "\n";
+        }
+
+        /**
+         * Keep a value on one line and in one column of the report
+         */
+        private static String clean(String value) {
+            return value.replaceAll("[\\t\\r\\n]+", " ");
+        }
+    }
+
+    /**
+     * A METS document of the batch
+     */
+    private static class Document {
+        private final String name;
+        private final InputStream inputStream;
+
+        private Document(String name, InputStream inputStream) {
+            this.name = name;
+            this.inputStream = inputStream;
+        }
+
+        /**
+         * @return the name of the document in the batch, or null if it has none
+         */
+        private String getName() {
+            return name;
+        }
+
+        /**
+         * @return the document, valid until the next document is read
+         */
+        private InputStream getInputStream() {
+            return inputStream;
+        }
+    }
+
+    /**
+     * The documents of a request body, read one at a time
+     */
+    private interface Batch {
+        /**
+         * @return the next document, or null if there are no more
+         */
+        Document next() throws IOException;
+    }
+
+    private static class MultipartBatch implements Batch {
+        private final MultipartReader reader;
+
+        private MultipartBatch(MultipartReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public Document next() throws IOException {
+            MultipartReader.Part part = reader.nextPart();
+            if (part == null) {
+                return null;
+            }
+            String name = null;
+            String disposition = part.getHeader("Content-Disposition");
+            if (disposition != null) {
+                Matcher matcher = FILENAME.matcher(disposition);
+                if (matcher.find()) {
+                    name = matcher.group(1);
+                }
+            }
+            if (name == null) {
+                name = part.getHeader("Content-ID");
+            }
+            return new Document(name, part.getInputStream());
+        }
+    }
+
+    private static class ZipBatch implements Batch {
+        private final ZipInputStream zip;
+
+        private ZipBatch(ZipInputStream zip) {
+            this.zip = zip;
+        }
+
+        @Override
+        public Document next() throws IOException {
+            ZipEntry entry;
+            do {
+                entry = zip.getNextEntry();
+            } while (entry != null && entry.isDirectory());
+            if (entry == null) {
+                return null;
+            }
+            return new Document(entry.getName(), zip);
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            maxParallelism = Math.max(1, ConfigUtils.getInt(PARALLELISM, 8));
+            executor = ExecutorUtils.newBoundedExecutor("scape-entity-bulk", maxParallelism, 1000);
+        }
+        return executor;
+    }
+
+    private static int getParallelism(Integer requested) {
+        getExecutor();
+        if (requested == null || requested < 1) {
+            return maxParallelism;
+        }
+        return Math.min(requested, maxParallelism);
+    }
+
+    /**
+     * Stop the threads ingesting entities. Called when the webapp is stopped.
+     */
+    public static synchronized void shutdown() {
+        ExecutorUtils.shutdown(executor);
+        executor = null;
+    }
+}
@@ -1,12 +1,13 @@
 package eu.scape_project.dataconnetor.doms.service;
 
-import com.sun.jersey.multipart.BodyPart;
-import com.sun.jersey.multipart.MultiPart;
+import eu.scape_project.dataconnetor.doms.ConfigUtils;
 import eu.scape_project.dataconnetor.doms.EntityInterfaceFactory;
 import eu.scape_project.dataconnetor.doms.EntityManipulator;
+import eu.scape_project.dataconnetor.doms.ExecutorUtils;
 import eu.scape_project.dataconnetor.doms.XmlUtils;
 import eu.scape_project.dataconnetor.doms.exceptions.CommunicationException;
 import eu.scape_project.dataconnetor.doms.exceptions.ConfigurationException;
+import eu.scape_project.dataconnetor.doms.exceptions.MyException;
 import eu.scape_project.dataconnetor.doms.exceptions.NotFoundException;
 import eu.scape_project.dataconnetor.doms.exceptions.ParsingException;
 import eu.scape_project.dataconnetor.doms.exceptions.UnauthorizedException;
@@ -16,16 +17,45 @@ import javax.ws.rs.Consumes;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Path("/entity-list")
 public class EntityListService extends AbstractService{
 
+    /**
+     * The maximum number of entities resolved concurrently for one request, and the number of threads resolving
+     * entities for all requests
+     */
+    public static final String PARALLELISM = "scape.entityList.parallelism";
+    /**
+     * The number of bytes of serialized entities a request may hold while they wait to be written
+     */
+    public static final String MEMORY_BUDGET = "scape.entityList.memoryBudget";
+
+    private static ExecutorService executor;
+    private static int maxParallelism;
+
     /*
     5.4.3 Retrieve a set of Intellectual Entities
     In order to make fetching a whole set of entities feasible this GET method
@@ -43,30 +73,216 @@ public class EntityListService extends AbstractService{
     METS representations of the requested entities.
     Content-Type:
     multipart
+
+    The optional parameter parallelism lowers the number of entities resolved concurrently for this request.
      */
     @POST
     @Consumes("text/uri-list")
     @Produces(com.sun.jersey.multipart.MultiPartMediaTypes.MULTIPART_MIXED)
-    public Response retrieve(InputStream entityUriList) throws
-                                                        ConfigurationException,
-                                                        UnauthorizedException,
-                                                        ParsingException,
-                                                        CommunicationException,
-                                                        NotFoundException {
+    public Response retrieve(
+            @QueryParam("parallelism")
+            Integer parallelism, InputStream entityUriList) throws
+                                                            ConfigurationException,
+                                                            UnauthorizedException,
+                                                            ParsingException,
+                                                            CommunicationException,
+                                                            NotFoundException {
         BufferedReader reader = new BufferedReader(new InputStreamReader(entityUriList));
-        String line;
         EntityManipulator entities = EntityInterfaceFactory.getInstance(getCredentials());
 
-        MultiPart multiPartEntity = new MultiPart();
+        final String boundary = "Boundary_" + UUID.randomUUID().toString();
+        final EntityListWriter writer = new EntityListWriter(
+                entities, readUriList(reader).iterator(), getParallelism(parallelism), getMemoryBudget());
+        //Resolve the first entity before the response is committed, so failures can still be reported by status
+        final byte[] first = writer.next();
+
+        StreamingOutput output = new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException, WebApplicationException {
+                writer.write(first, boundary, output);
+            }
+        };
+        return Response.ok()
+                       .entity(output)
+                       .type(new MediaType("multipart", "mixed", Collections.singletonMap("boundary", boundary)))
+                       .build();
+    }
+
+    /**
+     * Reads and serializes the entities of the list, with at most parallelism entities in progress at any time. New
+     * entities are not started while the serialized entities waiting to be written exceed the memory budget.
+     */
+    private class EntityListWriter {
+        private final EntityManipulator entities;
+        private final Iterator<String> entityIDs;
+        private final int parallelism;
+        private final long memoryBudget;
+        private final LinkedList<Future<byte[]>> inProgress = new LinkedList<>();
+        private final AtomicLong buffered = new AtomicLong();
+
+        private EntityListWriter(EntityManipulator entities, Iterator<String> entityIDs, int parallelism,
+                                 long memoryBudget) {
+            this.entities = entities;
+            this.entityIDs = entityIDs;
+            this.parallelism = parallelism;
+            this.memoryBudget = memoryBudget;
+        }
+
+        /**
+         * @return the next serialized entity, in the order of the list, or null if there are no more
+         */
+        private byte[] next() throws UnauthorizedException, ParsingException, CommunicationException, NotFoundException {
+            boolean success = false;
+            try {
+                while (entityIDs.hasNext() && inProgress.size() < parallelism && (buffered.get() < memoryBudget
+                                                                                  || inProgress.isEmpty())) {
+                    inProgress.add(getExecutor().submit(new Resolver(entities, entityIDs.next(), buffered)));
+                }
+                if (inProgress.isEmpty()) {
+                    success = true;
+                    return null;
+                }
+                byte[] result = await(inProgress.removeFirst());
+                buffered.addAndGet(-result.length);
+                success = true;
+                return result;
+            } finally {
+                if (!success) {
+                    cancel();
+                }
+            }
+        }
+
+        /**
+         * Write the entities as a multipart/mixed body, flushing after each part. If an entity fails after the
+         * response has been committed, the body is left without its closing boundary, so the client can tell that
+         * the list is incomplete.
+         */
+        private void write(byte[] first, String boundary, OutputStream output) throws IOException {
+            try {
+                byte[] entity = first;
+                while (entity != null) {
+                    output.write(("--" + boundary + "\r\nContent-Type: " + MediaType.APPLICATION_XML + "\r\n\r\n")
+                                         .getBytes("US-ASCII"));
+                    output.write(entity);
+                    output.write("\r\n".getBytes("US-ASCII"));
+                    output.flush();
+                    entity = next();
+                }
+                output.write(("--" + boundary + "--\r\n").getBytes("US-ASCII"));
+            } catch (MyException e) {
+                throw new WebApplicationException(e);
+            } finally {
+                cancel();
+            }
+        }
+
+        private void cancel() {
+            for (Future<byte[]> future : inProgress) {
+                future.cancel(true);
+            }
+            inProgress.clear();
+        }
+    }
+
+    private byte[] await(Future<byte[]> future) throws
+                                                UnauthorizedException,
+                                                ParsingException,
+                                                CommunicationException,
+                                                NotFoundException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommunicationException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NotFoundException) {
+                throw (NotFoundException) cause;
+            }
+            if (cause instanceof UnauthorizedException) {
+                throw (UnauthorizedException) cause;
+            }
+            if (cause instanceof ParsingException) {
+                throw (ParsingException) cause;
+            }
+            if (cause instanceof CommunicationException) {
+                throw (CommunicationException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new CommunicationException(e);
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            maxParallelism = Math.max(1, ConfigUtils.getInt(PARALLELISM, 8));
+            executor = ExecutorUtils.newBoundedExecutor("scape-entity-list", maxParallelism, 1000);
+        }
+        return executor;
+    }
+
+    private static int getParallelism(Integer requested) {
+        getExecutor();
+        if (requested == null || requested < 1) {
+            return maxParallelism;
+        }
+        return Math.min(requested, maxParallelism);
+    }
+
+    /**
+     * Stop the threads resolving entities. Called when the webapp is stopped.
+     */
+    public static synchronized void shutdown() {
+        ExecutorUtils.shutdown(executor);
+        executor = null;
+    }
+
+    private static long getMemoryBudget() {
+        return ConfigUtils.getLong(MEMORY_BUDGET, 64 * 1024 * 1024);
+    }
+
+    private static class Resolver implements Callable<byte[]> {
+        private final EntityManipulator entities;
+        private final String entityID;
+        private final AtomicLong buffered;
+
+        private Resolver(EntityManipulator entities, String entityID, AtomicLong buffered) {
+            this.entities = entities;
+            this.entityID = entityID;
+            this.buffered = buffered;
+        }
+
+        @Override
+        public byte[] call() throws Exception {
+            IntellectualEntity entity = entities.readFromEntityID(entityID, null, true);
+            ByteArrayOutputStream sink = new ByteArrayOutputStream();
+            XmlUtils.serialize(entity, sink);
+            byte[] result = sink.toByteArray();
+            buffered.addAndGet(result.length);
+            return result;
+        }
+    }
+
+    /**
+     * Read the entity ids of a text/uri-list, skipping blank lines. The whole list is read before any entity is
+     * written, so the response never waits on a request body the client only finishes after reading the response.
+     */
+    private static List<String> readUriList(BufferedReader reader) throws ParsingException {
+        List<String> entityIDs = new ArrayList<>();
         try {
+            String line;
             while ((line = reader.readLine()) != null) {
                 line = line.trim();
-                IntellectualEntity entity = entities.readFromEntityID(line, null, true);
-                multiPartEntity.bodyPart(new BodyPart(XmlUtils.toString(entity),MediaType.APPLICATION_XML_TYPE));
+                if (!line.isEmpty()) {
+                    entityIDs.add(line);
+                }
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new ParsingException(e);
         }
-        return Response.ok().entity(multiPartEntity.getEntity()).build();
+        return entityIDs;
     }
 }
@@ -1,12 +1,15 @@
 package eu.scape_project.dataconnetor.doms.service;
 
+import eu.scape_project.dataconnetor.doms.ConfigUtils;
 import eu.scape_project.dataconnetor.doms.EntityInterfaceFactory;
-import eu.scape_project.dataconnetor.doms.XmlUtils;
+import eu.scape_project.dataconnetor.doms.EntityManipulator;
+import eu.scape_project.dataconnetor.doms.RenderedEntityCache;
 import eu.scape_project.dataconnetor.doms.exceptions.AlreadyExistsException;
 import eu.scape_project.dataconnetor.doms.exceptions.CommunicationException;
 import eu.scape_project.dataconnetor.doms.exceptions.ConfigurationException;
 import eu.scape_project.dataconnetor.doms.exceptions.NotFoundException;
 import eu.scape_project.dataconnetor.doms.exceptions.ParsingException;
+import eu.scape_project.dataconnetor.doms.exceptions.TooLargeException;
 import eu.scape_project.dataconnetor.doms.exceptions.UnauthorizedException;
 import eu.scape_project.dataconnetor.doms.exceptions.VersioningException;
 import eu.scape_project.model.IntellectualEntity;
@@ -14,12 +17,15 @@ import eu.scape_project.model.IntellectualEntity;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.io.InputStream;
@@ -27,6 +33,25 @@ import java.io.InputStream;
 @Path("/entity")
 public class EntityService extends AbstractService{
 
+    /**
+     * If true, explicit versions of entities may be cached by shared caches, such as proxies. The responses are only
+     * authorized for the credentials of the request, so this is only safe if all users may read all entities.
+     */
+    public static final String PUBLIC_CACHE_CONTROL = "scape.cacheControl.public";
+
+    /**
+     * An explicit version of an entity can never change, so the client can cache it for as long as it likes
+     */
+    static final String IMMUTABLE = "private, max-age=31536000, immutable";
+    /**
+     * As {@link #IMMUTABLE}, but shared caches may also cache it
+     */
+    static final String IMMUTABLE_PUBLIC = "public, max-age=31536000, immutable";
+    /**
+     * The newest version of an entity can change at any time, so caches must revalidate it with the entity tag
+     */
+    static final String REVALIDATE = "no-cache";
+
     /**
      * 5.4.1 Retrieve an Intellectual Entity
      * Retrieval of entities is done via a GET request. Since Intellectual Entities can have
@@ -50,6 +75,7 @@ public class EntityService extends AbstractService{
      * Content-Type:
      * text/xml
      */
+    @GET
     @Path("/{entity-id}/{version-id}")
     @Produces(MediaType.APPLICATION_XML)
     public Response retrieve(
@@ -65,14 +91,42 @@ public class EntityService extends AbstractService{
                                   CommunicationException,
                                   UnauthorizedException {
 
-        IntellectualEntity entity = null;
-
         boolean references = toBoolean(useReferences);
 
-        entity = EntityInterfaceFactory.getInstance(getCredentials()).readFromEntityID(entityID, versionID, references);
-
-        InputStream bytes = XmlUtils.toBytes(entity, references);
-        return Response.ok(bytes, MediaType.TEXT_XML_TYPE).build();
+        EntityManipulator instance = EntityInterfaceFactory.getInstance(getCredentials());
+        //A cached rendering is served without calling fedora at all
+        RenderedEntityCache.Rendering rendering = instance.getCachedRendering(entityID, versionID, references);
+        EntityManipulator.Snapshot snapshot = null;
+        EntityTag tag;
+        boolean immutable;
+        if (rendering != null) {
+            tag = entityTag(rendering.getTag());
+            immutable = rendering.isImmutable();
+        } else {
+            snapshot = instance.readSnapshotFromEntityID(entityID, versionID);
+            tag = entityTag(snapshot.getTag());
+            immutable = snapshot.isVersionPinned();
+        }
+        String cacheControl = REVALIDATE;
+        if (immutable) {
+            cacheControl = ConfigUtils.getBoolean(PUBLIC_CACHE_CONTROL, false) ? IMMUTABLE_PUBLIC : IMMUTABLE;
+        }
+        Response notModified = evaluatePreconditions(tag, cacheControl);
+        if (notModified != null) {
+            return notModified;
+        }
+        if (rendering != null) {
+            return Response.ok(rendering.getBytes(), MediaType.TEXT_XML_TYPE)
+                           .tag(tag)
+                           .header(HttpHeaders.CACHE_CONTROL, cacheControl)
+                           .build();
+        }
+        //Read before the response is committed, so failures are reported by status, then stream the METS while
+        //filling the cache, unless it is too large to be cached
+        IntellectualEntity entity = instance.readFromSnapshot(snapshot, references);
+        return Response.ok(
+                XmlOutput.entity(entity, references, instance.fillRenderingCache(snapshot, references)),
+                MediaType.TEXT_XML_TYPE).tag(tag).header(HttpHeaders.CACHE_CONTROL, cacheControl).build();
     }
 
     private boolean toBoolean(String useReferences) {
@@ -110,8 +164,9 @@ public class EntityService extends AbstractService{
                                                   ParsingException,
                                                   CommunicationException,
                                                   UnauthorizedException,
-                                                  AlreadyExistsException {
-        IntellectualEntity intellectualEntity = XmlUtils.toEntity(ingestXml);
+                                                  AlreadyExistsException,
+                                                  TooLargeException {
+        IntellectualEntity intellectualEntity = getMetsReader().readEntity(ingestXml);
         EntityInterfaceFactory.getInstance(getCredentials()).createNew(intellectualEntity);
         return Response.ok().entity(intellectualEntity.getIdentifier().getValue()).build();
     }
@@ -127,6 +182,7 @@ public class EntityService extends AbstractService{
      * /entity/<id>
      *
      * @param entityID  the id of the Intellectual Entity to update
+     * @param ifMatch   the entity tag of the version the update is based on
      * @param entityXml A digital object's XML representation.
      *
      * @return
@@ -136,18 +192,22 @@ public class EntityService extends AbstractService{
     @Consumes(MediaType.APPLICATION_XML)
     public Response update(
             @PathParam("entity-id")
-            String entityID, InputStream entityXml) throws
+            String entityID,
+            @HeaderParam(HttpHeaders.IF_MATCH)
+            String ifMatch, InputStream entityXml) throws
                                                     ConfigurationException,
                                                     ParsingException,
                                                     UnauthorizedException,
                                                     NotFoundException,
-                                                    CommunicationException {
+                                                    CommunicationException,
+                                                    TooLargeException {
         try {
-            IntellectualEntity entity = XmlUtils.toEntity(entityXml);
-            EntityInterfaceFactory.getInstance(getCredentials()).updateFromEntityID(entityID, entity);
+            IntellectualEntity entity = getMetsReader().readEntity(entityXml);
+            EntityInterfaceFactory.getInstance(getCredentials())
+                                  .updateFromEntityID(entityID, entity, expectedEntityTag(ifMatch));
             return Response.ok().entity(string(entity.getVersionNumber())).build();
         } catch (VersioningException e) {
-           return Response.status(428).build();
+            return versionConflict(e);
         }
 
     }
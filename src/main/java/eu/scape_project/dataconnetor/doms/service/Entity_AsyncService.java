@@ -1,10 +1,73 @@
 package eu.scape_project.dataconnetor.doms.service;
 
+import dk.statsbiblioteket.doms.webservices.authentication.Credentials;
+import eu.scape_project.dataconnetor.doms.AsyncIngester;
+import eu.scape_project.dataconnetor.doms.ConfigUtils;
+import eu.scape_project.dataconnetor.doms.IngestJournal;
+import eu.scape_project.dataconnetor.doms.exceptions.AlreadyExistsException;
+import eu.scape_project.dataconnetor.doms.exceptions.CommunicationException;
+import eu.scape_project.dataconnetor.doms.exceptions.ConfigurationException;
+import eu.scape_project.dataconnetor.doms.exceptions.ParsingException;
+import eu.scape_project.dataconnetor.doms.exceptions.TooLargeException;
+import eu.scape_project.model.Identifier;
+import eu.scape_project.model.IntellectualEntity;
+import eu.scape_project.model.LifecycleState;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 
 @Path("/entity-async")
 public class Entity_AsyncService extends AbstractService {
 
+    /**
+     * The number of entities ingested concurrently in the background
+     */
+    public static final String WORKERS = "scape.asyncIngest.workers";
+    /**
+     * The number of accepted entities that can wait for ingest. When full, ingests are rejected with 503
+     */
+    public static final String QUEUE_SIZE = "scape.asyncIngest.queueSize";
+    /**
+     * The number of seconds a rejected client is asked to wait before retrying
+     */
+    public static final String RETRY_AFTER = "scape.asyncIngest.retryAfter";
+    /**
+     * The number of milliseconds a failed ingest is reported by the lifecycle service
+     */
+    public static final String FAILURE_TTL = "scape.asyncIngest.failureTtl";
+    /**
+     * The directory of the journal of accepted entities. If not set, accepted entities are lost on restart
+     */
+    public static final String JOURNAL_DIRECTORY = "scape.asyncIngest.journal";
+    /**
+     * The journal is compacted when it grows past this number of bytes
+     */
+    public static final String JOURNAL_COMPACTION_THRESHOLD = "scape.asyncIngest.journalCompactionThreshold";
+    /**
+     * If true, the journal stores the username and password of each accepted entity in plain text, so the entities are
+     * ingested with the credentials of their users after a restart
+     */
+    public static final String JOURNAL_CREDENTIALS = "scape.asyncIngest.journalCredentials";
+    /**
+     * The username to ingest the journaled entities with after a restart, when the journal does not store credentials
+     */
+    public static final String REPLAY_USERNAME = "scape.asyncIngest.replayUsername";
+    /**
+     * The password to ingest the journaled entities with after a restart
+     */
+    public static final String REPLAY_PASSWORD = "scape.asyncIngest.replayPassword";
+
+    private static AsyncIngester ingester;
+
     /**
      * 5.4.5 Ingest an Intellectual Entity asynchronously
      Ingestion is done by sending a SIP to this endpoint. The method returns instantly
@@ -22,6 +85,113 @@ public class Entity_AsyncService extends AbstractService {
      ingested.
      Content-Type
      text/plain
+     *
+     * @param ingestXml A XML representation of the entity
+     *
+     * @return The Intellectual Entity identifier, or 503 Service Unavailable if too many entities are waiting for
+     * ingest
+     */
+    @POST
+    @Consumes(MediaType.APPLICATION_XML)
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response ingest(InputStream ingestXml) throws
+                                                  ParsingException,
+                                                  AlreadyExistsException,
+                                                  TooLargeException,
+                                                  CommunicationException,
+                                                  ConfigurationException {
+        IntellectualEntity entity = getMetsReader().readEntity(ingestXml);
+        if (entity.getIdentifier() == null) {
+            entity = new IntellectualEntity.Builder(entity).identifier(new Identifier(UUID.randomUUID().toString()))
+                                                           .build();
+        }
+        try {
+            getIngester().submit(getCredentials(), entity);
+        } catch (RejectedExecutionException e) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                           .header("Retry-After", ConfigUtils.getInt(RETRY_AFTER, 30))
+                           .build();
+        }
+        return Response.ok().entity(entity.getIdentifier().getValue()).build();
+    }
+
+    private static synchronized AsyncIngester getIngester() throws ConfigurationException {
+        if (ingester == null) {
+            IngestJournal journal = null;
+            Credentials replayCredentials = null;
+            String journalDirectory = ConfigUtils.getString(JOURNAL_DIRECTORY, null);
+            if (journalDirectory != null && !journalDirectory.trim().isEmpty()) {
+                boolean journalCredentials = ConfigUtils.getBoolean(JOURNAL_CREDENTIALS, false);
+                String replayUsername = ConfigUtils.getString(REPLAY_USERNAME, null);
+                if (replayUsername != null && !replayUsername.trim().isEmpty()) {
+                    replayCredentials = new Credentials(
+                            replayUsername.trim(), ConfigUtils.getString(REPLAY_PASSWORD, ""));
+                } else if (!journalCredentials) {
+                    throw new ConfigurationException(
+                            "The ingest journal needs either " + REPLAY_USERNAME + " or " + JOURNAL_CREDENTIALS);
+                }
+                try {
+                    journal = new IngestJournal(
+                            new File(journalDirectory.trim()),
+                            ConfigUtils.getLong(
+                                    JOURNAL_COMPACTION_THRESHOLD, IngestJournal.DEFAULT_COMPACTION_THRESHOLD),
+                            journalCredentials);
+                } catch (IOException e) {
+                    throw new ConfigurationException(e);
+                }
+            }
+            final AsyncIngester newIngester = new AsyncIngester(
+                    Math.max(1, ConfigUtils.getInt(WORKERS, AsyncIngester.DEFAULT_WORKERS)),
+                    Math.max(1, ConfigUtils.getInt(QUEUE_SIZE, AsyncIngester.DEFAULT_QUEUE_SIZE)),
+                    ConfigUtils.getLong(FAILURE_TTL, AsyncIngester.DEFAULT_FAILURE_TTL));
+            newIngester.setJournal(journal);
+            newIngester.setReplayCredentials(replayCredentials);
+            Thread replay = new Thread(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                newIngester.replay();
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    }, "scape-ingest-replay");
+            replay.setDaemon(true);
+            replay.start();
+            ingester = newIngester;
+        }
+        return ingester;
+    }
+
+    /**
+     * Start the ingest workers and ingest the entities left in the journal. Called when the webapp is started.
+     */
+    public static void start() throws ConfigurationException {
+        getIngester();
+    }
+
+    /**
+     * @param credentials the credentials asking for the state
+     * @param entityID    the id of the entity
+     *
+     * @return the state of the asynchronous ingest of the entity, or null if it is not being ingested and has not
+     * recently failed, with these credentials
+     */
+    static synchronized LifecycleState getIngestState(Credentials credentials, String entityID) {
+        if (ingester == null) {
+            return null;
+        }
+        return ingester.getState(credentials, entityID);
+    }
+
+    /**
+     * Stop the ingest workers. Called when the webapp is stopped.
      */
-    //TODO
+    public static synchronized void shutdown() {
+        if (ingester != null) {
+            ingester.shutdown();
+            ingester = null;
+        }
+    }
 }
@@ -7,13 +7,11 @@ import eu.scape_project.dataconnetor.doms.exceptions.ConfigurationException;
 import eu.scape_project.dataconnetor.doms.exceptions.NotFoundException;
 import eu.scape_project.dataconnetor.doms.exceptions.ParsingException;
 import eu.scape_project.dataconnetor.doms.exceptions.UnauthorizedException;
-import eu.scape_project.model.File;
-import eu.scape_project.model.IntellectualEntity;
-import eu.scape_project.model.Representation;
 
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.core.Response;
+import java.net.URI;
 
 @Path("/file")
 public class FileService extends AbstractService {
@@ -57,19 +55,7 @@ public class FileService extends AbstractService {
                               UnauthorizedException,
                               CommunicationException {
         EntityManipulator instance = EntityInterfaceFactory.getInstance(getCredentials());
-        IntellectualEntity entity = instance.readFromEntityID(entityID, versionID, false);
-        for (Representation representation : entity.getRepresentations()) {
-            if (representation.getIdentifier().getValue().equals(representationID)) {
-                for (File file : representation.getFiles()) {
-                    if (file.getIdentifier().getValue().equals(fileID)) {
-                        return Response.temporaryRedirect(file.getUri()).build();
-                    }
-                }
-                break;
-            }
-        }
-        throw new NotFoundException();
-
-
+        URI uri = instance.readFileUriFromEntityID(entityID, versionID, representationID, fileID);
+        return Response.temporaryRedirect(uri).build();
     }
 }
@@ -8,11 +8,12 @@ import eu.scape_project.dataconnetor.doms.exceptions.ConfigurationException;
 import eu.scape_project.dataconnetor.doms.exceptions.NotFoundException;
 import eu.scape_project.dataconnetor.doms.exceptions.ParsingException;
 import eu.scape_project.dataconnetor.doms.exceptions.UnauthorizedException;
-import eu.scape_project.model.IntellectualEntity;
+import eu.scape_project.model.LifecycleState;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.Response;
 
 @Path("/lifecycle/")
@@ -31,7 +32,8 @@ public class LifeCycleService extends AbstractService {
      * Parameters
      * entity-id: the id of the Intellectual Entity to update
      * Produces
-     * A XML representation of the lifecycle status
+     * A XML representation of the lifecycle status. While the entity is ingested asynchronously, or if the ingest
+     * failed, the state of the ingest
      * Content-Type
      * text/xml
      */
@@ -45,10 +47,20 @@ public class LifeCycleService extends AbstractService {
                              CommunicationException,
                              NotFoundException,
                              ConfigurationException {
+        LifecycleState ingestState = Entity_AsyncService.getIngestState(getCredentials(), entityID);
+        if (ingestState != null) {
+            return Response.ok().entity(XmlUtils.toString(ingestState)).build();
+        }
         EntityManipulator instance = EntityInterfaceFactory.getInstance(getCredentials());
-        IntellectualEntity entity = instance.readFromEntityID(entityID, null, false);
+        EntityManipulator.Snapshot snapshot = instance.readSnapshotFromEntityID(entityID, null);
+        EntityTag tag = entityTag(snapshot.getTag());
+        Response notModified = evaluatePreconditions(tag);
+        if (notModified != null) {
+            return notModified;
+        }
+        LifecycleState lifecycleState = instance.readLifecycleFromSnapshot(snapshot);
 
-        return Response.ok().entity(XmlUtils.toString(entity.getLifecycleState())).build();
+        return Response.ok().entity(XmlUtils.toString(lifecycleState)).tag(tag).build();
     }
 
 }
\ No newline at end of file
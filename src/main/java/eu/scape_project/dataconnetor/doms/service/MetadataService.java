@@ -2,21 +2,21 @@ package eu.scape_project.dataconnetor.doms.service;
 
 import eu.scape_project.dataconnetor.doms.EntityInterfaceFactory;
 import eu.scape_project.dataconnetor.doms.EntityManipulator;
-import eu.scape_project.dataconnetor.doms.XmlUtils;
 import eu.scape_project.dataconnetor.doms.exceptions.CommunicationException;
 import eu.scape_project.dataconnetor.doms.exceptions.ConfigurationException;
 import eu.scape_project.dataconnetor.doms.exceptions.NotFoundException;
 import eu.scape_project.dataconnetor.doms.exceptions.ParsingException;
+import eu.scape_project.dataconnetor.doms.exceptions.TooLargeException;
 import eu.scape_project.dataconnetor.doms.exceptions.UnauthorizedException;
 import eu.scape_project.dataconnetor.doms.exceptions.VersioningException;
-import eu.scape_project.model.BitStream;
-import eu.scape_project.model.File;
 import eu.scape_project.model.IntellectualEntity;
-import eu.scape_project.model.Representation;
 
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import java.io.InputStream;
 
@@ -31,44 +31,16 @@ public class MetadataService extends AbstractService {
                                                                           NotFoundException,
                                                                           CommunicationException {
 
-        IntellectualEntity entity = EntityInterfaceFactory.getInstance(getCredentials()).readFromEntityID(entityID, versionID, false);
-
-        if (representationID == null) {
-            return Response.ok().entity(XmlUtils.toBytes(entity.getDescriptive())).build();
-        }
-        for (Representation representation : entity.getRepresentations()) {
-            if (representation.getIdentifier().getValue().equals(representationID)) {
-                if (fileID == null) {
-                    switch (metadataID) {
-                        case "techMD":
-                            return Response.ok().entity(XmlUtils.toBytes(representation.getTechnical())).build();
-                        case "rightsMD":
-                            return Response.ok().entity(XmlUtils.toBytes(representation.getRights())).build();
-                        case "sourceMD":
-                            return Response.ok().entity(XmlUtils.toBytes(representation.getSource())).build();
-                        case "digiprovMD":
-                            return Response.ok().entity(XmlUtils.toBytes(representation.getProvenance())).build();
-                        default:
-                            throw new NotFoundException();
-                    }
-                }
-                for (File file : representation.getFiles()) {
-                    if (file.getIdentifier().getValue().equals(fileID)) {
-                        if (bitstreamID == null) {
-                            return Response.ok().entity(XmlUtils.toBytes(file.getTechnical())).build();
-                        }
-                        for (BitStream bitStream : file.getBitStreams()) {
-                            if (bitStream.getIdentifier().getValue().equals(bitstreamID)) {
-                                return Response.ok().entity(XmlUtils.toBytes(file.getTechnical())).build();
-                            }
-                        }
-                    }
-                }
-                break;
-            }
+        EntityManipulator instance = EntityInterfaceFactory.getInstance(getCredentials());
+        EntityManipulator.Snapshot snapshot = instance.readSnapshotFromEntityID(entityID, versionID);
+        EntityTag tag = entityTag(snapshot.getTag());
+        Response notModified = evaluatePreconditions(tag);
+        if (notModified != null) {
+            return notModified;
         }
-        throw new NotFoundException();
-
+        Object metadata = instance.readMetadataFromSnapshot(
+                snapshot, representationID, fileID, bitstreamID, metadataID);
+        return Response.ok().entity(XmlOutput.object(metadata)).tag(tag).build();
     }
 
 
@@ -190,6 +162,7 @@ public class MetadataService extends AbstractService {
      *
      * @param entityID   the id of the Intellectual Entity to update
      * @param metadataID the Id of the metadata set to update
+     * @param ifMatch    the entity tag of the version of the Intellectual Entity the update is based on
      * @param contents   A metadata set's XML representation.
      *
      * @return
@@ -200,17 +173,24 @@ public class MetadataService extends AbstractService {
             @PathParam("entity-id")
             String entityID,
             @PathParam("md-id")
-            String metadataID, InputStream contents) throws
+            String metadataID,
+            @HeaderParam(HttpHeaders.IF_MATCH)
+            String ifMatch, InputStream contents) throws
                                                      ConfigurationException,
                                                      UnauthorizedException,
                                                      ParsingException,
                                                      CommunicationException,
-                                                     NotFoundException, VersioningException {
+                                                     NotFoundException,
+                                                     TooLargeException {
         EntityManipulator instance = EntityInterfaceFactory.getInstance(getCredentials());
         IntellectualEntity entity = instance.readFromEntityID(entityID, null, false);
-        IntellectualEntity newEntity = new IntellectualEntity.Builder(entity).descriptive(XmlUtils.toObject(contents))
+        IntellectualEntity newEntity = new IntellectualEntity.Builder(entity).descriptive(getMetsReader().readMetadata(contents))
                                                                              .build();
-        instance.updateFromEntityID(entityID, newEntity);
+        try {
+            instance.updateFromEntityID(entityID, newEntity, expectedEntityTag(ifMatch));
+        } catch (VersioningException e) {
+            return versionConflict(e);
+        }
         return Response.ok().build();
 
     }
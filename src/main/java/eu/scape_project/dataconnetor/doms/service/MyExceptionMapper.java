@@ -6,6 +6,7 @@ import eu.scape_project.dataconnetor.doms.exceptions.ConfigurationException;
 import eu.scape_project.dataconnetor.doms.exceptions.MyException;
 import eu.scape_project.dataconnetor.doms.exceptions.NotFoundException;
 import eu.scape_project.dataconnetor.doms.exceptions.ParsingException;
+import eu.scape_project.dataconnetor.doms.exceptions.TooLargeException;
 import eu.scape_project.dataconnetor.doms.exceptions.UnauthorizedException;
 
 import javax.ws.rs.core.Response;
@@ -17,30 +18,34 @@ public class MyExceptionMapper implements ExceptionMapper<MyException> {
 
     @Override
     public Response toResponse(MyException exception) {
+        return Response.status(toStatus(exception)).build();
+    }
+
+    /**
+     * @return the http status code reporting the exception
+     */
+    static int toStatus(MyException exception) {
         if (exception instanceof AlreadyExistsException) {
-            AlreadyExistsException alreadyExistsException = (AlreadyExistsException) exception;
-            return Response.status(Response.Status.CONFLICT).build();
+            return Response.Status.CONFLICT.getStatusCode();
         }
         if (exception instanceof CommunicationException) {
-            CommunicationException communicationException = (CommunicationException) exception;
-            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+            return Response.Status.INTERNAL_SERVER_ERROR.getStatusCode();
         }
         if (exception instanceof ConfigurationException) {
-            ConfigurationException configurationException = (ConfigurationException) exception;
-            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+            return Response.Status.INTERNAL_SERVER_ERROR.getStatusCode();
         }
         if (exception instanceof NotFoundException) {
-            NotFoundException notFoundException = (NotFoundException) exception;
-            return Response.status(Response.Status.NOT_FOUND).build();
+            return Response.Status.NOT_FOUND.getStatusCode();
         }
         if (exception instanceof ParsingException) {
-            ParsingException parsingException = (ParsingException) exception;
-            return Response.status(Response.Status.UNSUPPORTED_MEDIA_TYPE).build();
+            return Response.Status.UNSUPPORTED_MEDIA_TYPE.getStatusCode();
+        }
+        if (exception instanceof TooLargeException) {
+            return 413;
         }
         if (exception instanceof UnauthorizedException) {
-            UnauthorizedException unauthorizedException = (UnauthorizedException) exception;
-            return Response.status(Response.Status.FORBIDDEN).build();
+            return Response.Status.FORBIDDEN.getStatusCode();
         }
-        return Response.serverError().build();
+        return Response.Status.INTERNAL_SERVER_ERROR.getStatusCode();
     }
 }
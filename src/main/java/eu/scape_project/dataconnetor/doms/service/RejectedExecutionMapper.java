@@ -0,0 +1,23 @@
+package eu.scape_project.dataconnetor.doms.service;
+
+import eu.scape_project.dataconnetor.doms.ConfigUtils;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Reports work the webapp is too busy to do, such as when all the xml marshallers are in use, as 503 Service
+ * Unavailable, asking the client to retry later
+ */
+@Provider
+public class RejectedExecutionMapper implements ExceptionMapper<RejectedExecutionException> {
+
+    @Override
+    public Response toResponse(RejectedExecutionException exception) {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                       .header("Retry-After", ConfigUtils.getInt(Entity_AsyncService.RETRY_AFTER, 30))
+                       .build();
+    }
+}
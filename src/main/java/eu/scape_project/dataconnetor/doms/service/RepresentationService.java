@@ -2,20 +2,23 @@ package eu.scape_project.dataconnetor.doms.service;
 
 import eu.scape_project.dataconnetor.doms.EntityInterfaceFactory;
 import eu.scape_project.dataconnetor.doms.EntityManipulator;
-import eu.scape_project.dataconnetor.doms.XmlUtils;
 import eu.scape_project.dataconnetor.doms.exceptions.CommunicationException;
 import eu.scape_project.dataconnetor.doms.exceptions.ConfigurationException;
 import eu.scape_project.dataconnetor.doms.exceptions.NotFoundException;
 import eu.scape_project.dataconnetor.doms.exceptions.ParsingException;
+import eu.scape_project.dataconnetor.doms.exceptions.TooLargeException;
 import eu.scape_project.dataconnetor.doms.exceptions.UnauthorizedException;
 import eu.scape_project.dataconnetor.doms.exceptions.VersioningException;
 import eu.scape_project.model.IntellectualEntity;
 import eu.scape_project.model.Representation;
 
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import java.io.InputStream;
 import java.util.List;
@@ -58,11 +61,17 @@ public class RepresentationService extends AbstractService {
                                      CommunicationException,
                                      NotFoundException {
         EntityManipulator instance = EntityInterfaceFactory.getInstance(getCredentials());
-        IntellectualEntity entity = instance.readFromEntityID(entityID, null, false);
+        EntityManipulator.Snapshot snapshot = instance.readSnapshotFromEntityID(entityID, null);
+        EntityTag tag = entityTag(snapshot.getTag());
+        Response notModified = evaluatePreconditions(tag);
+        if (notModified != null) {
+            return notModified;
+        }
+        IntellectualEntity entity = instance.readFromSnapshot(snapshot, false);
 
         for (Representation representation : entity.getRepresentations()) {
             if (representation.getIdentifier().getValue().equals(representationID)) {
-                return Response.ok().entity(XmlUtils.toBytes(representation)).build();
+                return Response.ok().entity(XmlOutput.object(representation)).tag(tag).build();
             }
         }
         throw new NotFoundException();
@@ -83,6 +92,7 @@ public class RepresentationService extends AbstractService {
      A Representations' XML representation.
      * @param entityID the id of the Intellectual Entity to update
      * @param representationID the id of the Representation to update
+     * @param ifMatch the entity tag of the version of the Intellectual Entity the update is based on
      * @param contents
      * @return
      */
@@ -92,20 +102,27 @@ public class RepresentationService extends AbstractService {
             @PathParam("entity-id")
             String entityID,
             @PathParam("representation-id")
-            String representationID, InputStream contents) throws
+            String representationID,
+            @HeaderParam(HttpHeaders.IF_MATCH)
+            String ifMatch, InputStream contents) throws
                                                            ConfigurationException,
                                                            UnauthorizedException,
                                                            ParsingException,
                                                            CommunicationException,
-                                                           NotFoundException, VersioningException {
+                                                           NotFoundException,
+                                                           TooLargeException {
         EntityManipulator instance = EntityInterfaceFactory.getInstance(getCredentials());
         IntellectualEntity entity = instance.readFromEntityID(entityID, null, false);
         List<Representation> representations = entity.getRepresentations();
         for (int i = 0; i < representations.size(); i++) {
             Representation representation = representations.get(i);
             if (representation.getIdentifier().getValue().equals(representationID)) {
-                representations.add(i, XmlUtils.toRepresentation(contents));
-                instance.updateFromEntityID(entityID,entity);
+                representations.add(i, getMetsReader().readRepresentation(contents));
+                try {
+                    instance.updateFromEntityID(entityID, entity, expectedEntityTag(ifMatch));
+                } catch (VersioningException e) {
+                    return versionConflict(e);
+                }
                 return Response.ok().build();
             }
         }
@@ -0,0 +1,44 @@
+package eu.scape_project.dataconnetor.doms.service;
+
+import eu.scape_project.dataconnetor.doms.EntityInterfaceFactory;
+import eu.scape_project.dataconnetor.doms.RenderedEntityCache;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+@Path("/status")
+public class StatusService extends AbstractService {
+
+    /*
+    Retrieve the statistics of the data connector
+    One line per value: the name of the value, a tab and the value. The cache of rendered entities reports its
+    entries, its bytes, and its hits, misses and evictions since the webapp was started. Before any entity has been
+    read, there is no cache and nothing is reported for it.
+    Path:
+    /status
+    Method:
+    HTTP/1.1 GET
+    Produces:
+    The statistics
+    Content-Type:
+    text/plain
+     */
+    @GET
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response retrieve() {
+        StringBuilder status = new StringBuilder();
+        RenderedEntityCache cache = EntityInterfaceFactory.getRenderedEntityCache();
+        if (cache != null) {
+            status.append("renderedEntityCache.entries\t").append(cache.size()).append('\n');
+            status.append("renderedEntityCache.bytes\t").append(cache.getBytes()).append('\n');
+            status.append("renderedEntityCache.hits\t").append(cache.getHits()).append('\n');
+            status.append("renderedEntityCache.misses\t").append(cache.getMisses()).append('\n');
+            status.append("renderedEntityCache.evictions\t").append(cache.getEvictions()).append('\n');
+        }
+        return Response.ok().entity(status.toString()).header(HttpHeaders.CACHE_CONTROL, "no-cache").build();
+    }
+}
@@ -0,0 +1,93 @@
+package eu.scape_project.dataconnetor.doms.service;
+
+import eu.scape_project.dataconnetor.doms.ConfigUtils;
+import eu.scape_project.dataconnetor.doms.MetsReader;
+import eu.scape_project.dataconnetor.doms.RenderedEntityCache;
+import eu.scape_project.dataconnetor.doms.Spool;
+import eu.scape_project.dataconnetor.doms.XmlUtils;
+import eu.scape_project.dataconnetor.doms.exceptions.ParsingException;
+import eu.scape_project.model.IntellectualEntity;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Response entity that marshals the xml when the response is written. The xml is marshalled to a spool, in memory
+ * for small documents and to a temporary file for large ones, and only then copied to the client. The pooled
+ * marshaller is thus only held while marshalling, and not while a slow client reads the response.
+ */
+public abstract class XmlOutput implements StreamingOutput {
+
+    /**
+     * @param entity        the entity to serialize as METS
+     * @param useReferences whether to reference the metadata rather than wrap it
+     * @param fill          the cache fill to copy the METS to as it is written, or null
+     */
+    public static XmlOutput entity(final IntellectualEntity entity, final boolean useReferences,
+                                   final RenderedEntityCache.Fill fill) {
+        return new XmlOutput() {
+            @Override
+            protected void write0(OutputStream output) throws ParsingException {
+                if (fill == null) {
+                    XmlUtils.write(entity, useReferences, output);
+                    return;
+                }
+                XmlUtils.write(
+                        entity, useReferences, new FilterOutputStream(output) {
+                            @Override
+                            public void write(int b) throws IOException {
+                                out.write(b);
+                                fill.write(b);
+                            }
+
+                            @Override
+                            public void write(byte[] bytes, int offset, int length) throws IOException {
+                                out.write(bytes, offset, length);
+                                fill.write(bytes, offset, length);
+                            }
+                        });
+                fill.commit();
+            }
+        };
+    }
+
+    /**
+     * @param xml the jaxb object to marshal
+     */
+    public static XmlOutput object(final Object xml) {
+        return new XmlOutput() {
+            @Override
+            protected void write0(OutputStream output) throws ParsingException {
+                XmlUtils.write(xml, output);
+            }
+        };
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException, WebApplicationException {
+        Spool spool = new Spool(ConfigUtils.getInt(MetsReader.MEMORY_THRESHOLD, MetsReader.DEFAULT_MEMORY_THRESHOLD));
+        try {
+            try {
+                write0(spool);
+            } catch (ParsingException e) {
+                throw new WebApplicationException(e, Response.Status.UNSUPPORTED_MEDIA_TYPE);
+            }
+            try (InputStream contents = spool.open()) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = contents.read(buffer)) >= 0) {
+                    output.write(buffer, 0, read);
+                }
+            }
+        } finally {
+            spool.delete();
+        }
+    }
+
+    protected abstract void write0(OutputStream output) throws ParsingException;
+}
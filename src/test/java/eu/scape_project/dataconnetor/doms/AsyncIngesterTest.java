@@ -0,0 +1,168 @@
+package eu.scape_project.dataconnetor.doms;
+
+import dk.statsbiblioteket.doms.webservices.authentication.Credentials;
+import eu.scape_project.dataconnetor.doms.exceptions.AlreadyExistsException;
+import eu.scape_project.dataconnetor.doms.exceptions.CommunicationException;
+import eu.scape_project.model.Identifier;
+import eu.scape_project.model.IntellectualEntity;
+import eu.scape_project.model.LifecycleState;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+public class AsyncIngesterTest {
+
+    private static IntellectualEntity entity(String id) {
+        return new IntellectualEntity.Builder().identifier(new Identifier(id)).build();
+    }
+
+    @Test
+    public void testQueue() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        AsyncIngester ingester = new AsyncIngester(1, 1, 60 * 1000) {
+            @Override
+            protected void createNew(Credentials credentials, IntellectualEntity entity) throws Exception {
+                release.await();
+                if (entity.getIdentifier().getValue().equals("entity-2")) {
+                    throw new CommunicationException("failed");
+                }
+                if (entity.getIdentifier().getValue().equals("entity-4")) {
+                    throw new AlreadyExistsException("exists");
+                }
+            }
+        };
+        Credentials credentials = new Credentials("user", "pass");
+        Credentials other = new Credentials("other", "pass");
+        try {
+            ingester.submit(credentials, entity("entity-1"));
+            ingester.submit(credentials, entity("entity-2"));
+            try {
+                ingester.submit(credentials, entity("entity-2"));
+                Assert.fail("The same entity should not be accepted twice");
+            } catch (AlreadyExistsException e) {
+                //expected
+            }
+            try {
+                ingester.submit(credentials, entity("entity-3"));
+                Assert.fail("The ingest should be rejected when the queue is full");
+            } catch (RejectedExecutionException e) {
+                //expected
+            }
+            Assert.assertNull(ingester.getState(credentials, "entity-3"));
+            Assert.assertEquals(
+                    ingester.getState(credentials, "entity-1").getState(), LifecycleState.State.INGESTING);
+            Assert.assertNull(ingester.getState(other, "entity-1"));
+
+            release.countDown();
+            while (ingester.getPending() > 0) {
+                Thread.sleep(10);
+            }
+            Assert.assertNull(ingester.getState(credentials, "entity-1"));
+            Assert.assertEquals(
+                    ingester.getState(credentials, "entity-2").getState(), LifecycleState.State.INGEST_FAILED);
+            Assert.assertNull(ingester.getState(other, "entity-2"));
+
+            ingester.submit(credentials, entity("entity-4"));
+            while (ingester.getPending() > 0) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(
+                    ingester.getState(credentials, "entity-4").getState(), LifecycleState.State.INGEST_FAILED);
+        } finally {
+            ingester.shutdown();
+        }
+    }
+
+    @Test
+    public void testReplayWithReplayCredentials() throws Exception {
+        File directory = File.createTempFile("ingestJournal", "");
+        directory.delete();
+        Credentials credentials = new Credentials("user", "pass");
+        IngestJournal journal = new IngestJournal(directory, IngestJournal.DEFAULT_COMPACTION_THRESHOLD);
+        try {
+            for (String entityID : Arrays.asList("entity-1", "entity-2")) {
+                ByteArrayOutputStream mets = new ByteArrayOutputStream();
+                XmlUtils.write(entity(entityID), false, mets);
+                journal.accept(entityID, credentials, mets.toByteArray());
+            }
+        } finally {
+            journal.close();
+        }
+
+        final List<String> usernames = Collections.synchronizedList(new ArrayList<String>());
+        AsyncIngester ingester = new AsyncIngester(1, 10, 60 * 1000) {
+            @Override
+            protected void createNew(Credentials credentials, IntellectualEntity entity) throws Exception {
+                usernames.add(credentials.getUsername());
+                if (entity.getIdentifier().getValue().equals("entity-2")) {
+                    //Ingested before the restart, but not completed in the journal
+                    throw new AlreadyExistsException("exists");
+                }
+            }
+        };
+        try {
+            ingester.setJournal(new IngestJournal(directory, IngestJournal.DEFAULT_COMPACTION_THRESHOLD));
+            ingester.setReplayCredentials(new Credentials("replay", "replayPass"));
+            Assert.assertEquals(ingester.replay(), 2);
+            while (ingester.getPending() > 0) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(usernames, Arrays.asList("replay", "replay"));
+            Assert.assertNull(ingester.getState(credentials, "entity-2"));
+        } finally {
+            ingester.shutdown();
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testReplayWithoutCredentials() throws Exception {
+        File directory = File.createTempFile("ingestJournal", "");
+        directory.delete();
+        Credentials credentials = new Credentials("user", "pass");
+        IngestJournal journal = new IngestJournal(directory, IngestJournal.DEFAULT_COMPACTION_THRESHOLD);
+        try {
+            ByteArrayOutputStream mets = new ByteArrayOutputStream();
+            XmlUtils.write(entity("entity-1"), false, mets);
+            journal.accept("entity-1", credentials, mets.toByteArray());
+        } finally {
+            journal.close();
+        }
+
+        AsyncIngester ingester = new AsyncIngester(1, 10, 60 * 1000) {
+            @Override
+            protected void createNew(Credentials credentials, IntellectualEntity entity) throws Exception {
+                Assert.fail("The entity should not be ingested without credentials");
+            }
+        };
+        try {
+            ingester.setJournal(new IngestJournal(directory, IngestJournal.DEFAULT_COMPACTION_THRESHOLD));
+            Assert.assertEquals(ingester.replay(), 0);
+            Assert.assertEquals(
+                    ingester.getState(credentials, "entity-1").getState(), LifecycleState.State.INGEST_FAILED);
+        } finally {
+            ingester.shutdown();
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package eu.scape_project.dataconnetor.doms;
+
+import dk.statsbiblioteket.doms.central.connectors.EnhancedFedora;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DSCompositeModelCacheTest {
+
+    private final String scape_content_model = "scape:ContentModel_SCAPE";
+
+    @Test
+    public void testCached() throws Exception {
+        EnhancedFedora fedora = mock(EnhancedFedora.class);
+        when(
+                fedora.getXMLDatastreamContents(
+                        eq(scape_content_model), eq(DSCompositeModel.DS_COMPOSITE_MODEL), anyLong())).thenReturn(
+                MockFedora.getDsComp());
+        DSCompositeModelCache cache = new DSCompositeModelCache();
+
+        DSCompositeModel first = cache.get(fedora, Arrays.asList("info:fedora/" + scape_content_model));
+        DSCompositeModel second = cache.get(fedora, Arrays.asList(scape_content_model));
+
+        Assert.assertSame(first, second);
+        Assert.assertEquals(first.getDescriptive(), "SCAPE_DESCRIPTIVE");
+        verify(fedora, times(1)).getXMLDatastreamContents(
+                eq(scape_content_model), eq(DSCompositeModel.DS_COMPOSITE_MODEL), anyLong());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        EnhancedFedora fedora = mock(EnhancedFedora.class);
+        when(
+                fedora.getXMLDatastreamContents(
+                        eq(scape_content_model), eq(DSCompositeModel.DS_COMPOSITE_MODEL), anyLong())).thenReturn(
+                MockFedora.getDsComp());
+        DSCompositeModelCache cache = new DSCompositeModelCache();
+
+        cache.get(fedora, Arrays.asList(scape_content_model));
+        cache.invalidate("info:fedora/" + scape_content_model);
+        cache.get(fedora, Arrays.asList(scape_content_model));
+
+        verify(fedora, times(2)).getXMLDatastreamContents(
+                eq(scape_content_model), eq(DSCompositeModel.DS_COMPOSITE_MODEL), anyLong());
+    }
+}
@@ -4,28 +4,40 @@ import dk.statsbiblioteket.doms.central.connectors.BackendInvalidCredsException;
 import dk.statsbiblioteket.doms.central.connectors.BackendInvalidResourceException;
 import dk.statsbiblioteket.doms.central.connectors.BackendMethodFailedException;
 import dk.statsbiblioteket.doms.central.connectors.EnhancedFedora;
+import dk.statsbiblioteket.doms.central.connectors.fedora.structures.DatastreamProfile;
+import dk.statsbiblioteket.doms.central.connectors.fedora.structures.ObjectProfile;
 import eu.scape_project.dataconnetor.doms.exceptions.CommunicationException;
 import eu.scape_project.dataconnetor.doms.exceptions.ParsingException;
+import eu.scape_project.dataconnetor.doms.exceptions.VersioningException;
 import eu.scape_project.model.File;
 import eu.scape_project.model.Identifier;
 import eu.scape_project.model.IntellectualEntity;
+import eu.scape_project.model.LifecycleState;
 import eu.scape_project.model.Representation;
 import org.custommonkey.xmlunit.XMLAssert;
+import org.mockito.ArgumentCaptor;
 import org.custommonkey.xmlunit.XMLUnit;
 import org.testng.Assert;
 import org.testng.annotations.Test;
+import versions.VersionType;
+import versions.VersionsType;
 
+import java.io.ByteArrayInputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyList;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -116,6 +128,366 @@ public class EntityManipulatorTestMockedCentral {
 
     }
 
+    @Test
+    public void testReadParallel() throws Exception {
+        String pid = "uuid:testPid";
+        String scape_content_model = "scape:ContentModel_SCAPE";
+        List<String> collections = new ArrayList<>();
+
+        EnhancedFedora fedora = mock(EnhancedFedora.class);
+        mockFedora(
+                pid,
+                "entity-1",
+                "representation-1",
+                "file-1",
+                "entity 1 title",
+                "header_image",
+                "image/png",
+                "http://www.scape-project.eu/wp-content/themes/medani/images/scape_logo.png",
+                fedora,
+                "SCAPE_DESCRIPTIVE",
+                "SCAPE_LIFECYCLE",
+                "SCAPE_RIGHTS",
+                "SCAPE_PROVENANCE",
+                "SCAPE_SOURCE",
+                "SCAPE_REPRESENTATION_TECHNICAL",
+                "SCAPE_FILE_TECHNICAL",
+                "SCAPE_FILE_CONTENT",
+                scape_content_model);
+
+        IntellectualEntity expected = new EntityManipulator(collections, fedora, scape_content_model).read(
+                pid, null, true);
+
+        ExecutorService executor = ExecutorUtils.newBoundedExecutor("test", 4, 10);
+        try {
+            EntityManipulator entityManipulator = new EntityManipulator(collections, fedora, scape_content_model);
+            entityManipulator.setReadMode(ReadMode.PARALLEL, executor);
+            IntellectualEntity entity = entityManipulator.read(pid, null, true);
+
+            XMLUnit.setIgnoreWhitespace(true);
+            XMLAssert.assertXMLEqual(XmlUtils.toString(expected), XmlUtils.toString(entity));
+        } finally {
+            ExecutorUtils.shutdown(executor);
+        }
+    }
+
+    @Test
+    public void testReadExport() throws Exception {
+        String pid = "uuid:testPid";
+        String title = "entity 1 title";
+        String fileName = "header_image";
+        String mimeType = "image/png";
+        String fileUrl = "http://www.scape-project.eu/wp-content/themes/medani/images/scape_logo.png";
+        String scape_content_model = "scape:ContentModel_SCAPE";
+        List<String> collections = new ArrayList<>();
+
+        EnhancedFedora fedora = mock(EnhancedFedora.class);
+        mockFedora(
+                pid,
+                "entity-1",
+                "representation-1",
+                "file-1",
+                title,
+                fileName,
+                mimeType,
+                fileUrl,
+                fedora,
+                "SCAPE_DESCRIPTIVE",
+                "SCAPE_LIFECYCLE",
+                "SCAPE_RIGHTS",
+                "SCAPE_PROVENANCE",
+                "SCAPE_SOURCE",
+                "SCAPE_REPRESENTATION_TECHNICAL",
+                "SCAPE_FILE_TECHNICAL",
+                "SCAPE_FILE_CONTENT",
+                scape_content_model);
+
+        IntellectualEntity expected = new EntityManipulator(collections, fedora, scape_content_model).read(
+                pid, null, true);
+
+        //The export of the same object as the mocked fedora serves it datastream by datastream
+        byte[] foxml = new FoxmlBuilder(pid).label(title)
+                                            .identifiers(
+                                                    Arrays.asList(
+                                                            TypeUtils.formatEntityIdentifier(new Identifier("entity-1")),
+                                                            TypeUtils.formatRepresentationIdentifier(
+                                                                    new Identifier("representation-1")),
+                                                            TypeUtils.formatFileIdentifier(new Identifier("file-1"))))
+                                            .contentModel(scape_content_model)
+                                            .xmlDatastream("SCAPE_DESCRIPTIVE", MockFedora.getDescriptive(title))
+                                            .xmlDatastream("SCAPE_LIFECYCLE", MockFedora.getSimpleLifeCycle())
+                                            .xmlDatastream("SCAPE_RIGHTS", MockFedora.getSimpleRights())
+                                            .xmlDatastream("SCAPE_PROVENANCE", MockFedora.getSimpleProvenance())
+                                            .xmlDatastream("SCAPE_SOURCE", MockFedora.getSimpleSource())
+                                            .xmlDatastream(
+                                                    "SCAPE_REPRESENTATION_TECHNICAL", MockFedora.getEmptyTextMD())
+                                            .xmlDatastream("SCAPE_FILE_TECHNICAL", MockFedora.getEmptyTextMD())
+                                            .externalDatastream(
+                                                    "SCAPE_FILE_CONTENT", fileName, fileUrl, "unknown", mimeType)
+                                            .build();
+        FedoraExportClient exportClient = mock(FedoraExportClient.class);
+        when(exportClient.export(eq(pid), eq(false))).thenReturn(
+                FoxmlObject.parse(new ByteArrayInputStream(foxml), false));
+
+        EntityManipulator entityManipulator = new EntityManipulator(collections, fedora, scape_content_model);
+        entityManipulator.setReadMode(ReadMode.EXPORT, null);
+        entityManipulator.setExportClient(exportClient);
+        IntellectualEntity entity = entityManipulator.read(pid, null, true);
+
+        XMLUnit.setIgnoreWhitespace(true);
+        XMLAssert.assertXMLEqual(XmlUtils.toString(expected), XmlUtils.toString(entity));
+        verify(exportClient).export(eq(pid), eq(false));
+        verify(fedora, never()).getXMLDatastreamContents(eq(pid), eq("SCAPE_DESCRIPTIVE"), anyLong());
+
+        //The entity is read from the export that the snapshot was read from, without exporting the object again
+        EntityManipulator.Snapshot snapshot = entityManipulator.readSnapshotFromEntityID(pid, null);
+        entity = entityManipulator.readFromSnapshot(snapshot, true);
+        XMLAssert.assertXMLEqual(XmlUtils.toString(expected), XmlUtils.toString(entity));
+        verify(exportClient, times(2)).export(eq(pid), eq(false));
+    }
+
+    @Test
+    public void testReadLifecycle() throws Exception {
+        String pid = "uuid:testPid";
+        String scape_content_model = "scape:ContentModel_SCAPE";
+        List<String> collections = new ArrayList<>();
+
+        EnhancedFedora fedora = mock(EnhancedFedora.class);
+        mockFedora(
+                pid,
+                "entity-1",
+                "representation-1",
+                "file-1",
+                "entity 1 title",
+                "header_image",
+                "image/png",
+                "http://www.scape-project.eu/wp-content/themes/medani/images/scape_logo.png",
+                fedora,
+                "SCAPE_DESCRIPTIVE",
+                "SCAPE_LIFECYCLE",
+                "SCAPE_RIGHTS",
+                "SCAPE_PROVENANCE",
+                "SCAPE_SOURCE",
+                "SCAPE_REPRESENTATION_TECHNICAL",
+                "SCAPE_FILE_TECHNICAL",
+                "SCAPE_FILE_CONTENT",
+                scape_content_model);
+
+        EntityManipulator entityManipulator = new EntityManipulator(collections, fedora, scape_content_model);
+        LifecycleState lifecycleState = entityManipulator.readLifecycleFromEntityID(pid);
+
+        XMLUnit.setIgnoreWhitespace(true);
+        XMLAssert.assertXMLEqual(MockFedora.getSimpleLifeCycle(), XmlUtils.toString(lifecycleState));
+        verify(fedora, never()).getXMLDatastreamContents(eq(pid), eq("SCAPE_DESCRIPTIVE"), anyLong());
+        verify(fedora, never()).getXMLDatastreamContents(eq(pid), eq("DC"));
+    }
+
+    @Test
+    public void testReadMetadata() throws Exception {
+        String pid = "uuid:testPid";
+        String title = "entity 1 title";
+        String scape_content_model = "scape:ContentModel_SCAPE";
+        List<String> collections = new ArrayList<>();
+
+        EnhancedFedora fedora = mock(EnhancedFedora.class);
+        mockFedora(
+                pid,
+                "entity-1",
+                "representation-1",
+                "file-1",
+                title,
+                "header_image",
+                "image/png",
+                "http://www.scape-project.eu/wp-content/themes/medani/images/scape_logo.png",
+                fedora,
+                "SCAPE_DESCRIPTIVE",
+                "SCAPE_LIFECYCLE",
+                "SCAPE_RIGHTS",
+                "SCAPE_PROVENANCE",
+                "SCAPE_SOURCE",
+                "SCAPE_REPRESENTATION_TECHNICAL",
+                "SCAPE_FILE_TECHNICAL",
+                "SCAPE_FILE_CONTENT",
+                scape_content_model);
+
+        EntityManipulator entityManipulator = new EntityManipulator(collections, fedora, scape_content_model);
+        Object descriptive = entityManipulator.readMetadataFromEntityID(pid, null, null, null, null, "descriptive");
+
+        XMLUnit.setIgnoreWhitespace(true);
+        XMLAssert.assertXMLEqual(MockFedora.getDescriptive(title), XmlUtils.toString(descriptive));
+        verify(fedora, never()).getXMLDatastreamContents(eq(pid), eq("SCAPE_LIFECYCLE"), anyLong());
+        verify(fedora, never()).getXMLDatastreamContents(eq(pid), eq("SCAPE_RIGHTS"), anyLong());
+    }
+
+    @Test
+    public void testReadFromSnapshot() throws Exception {
+        String pid = "uuid:testPid";
+        String title = "entity 1 title";
+        String scape_content_model = "scape:ContentModel_SCAPE";
+        List<String> collections = new ArrayList<>();
+
+        EnhancedFedora fedora = mock(EnhancedFedora.class);
+        mockFedora(
+                pid,
+                "entity-1",
+                "representation-1",
+                "file-1",
+                title,
+                "header_image",
+                "image/png",
+                "http://www.scape-project.eu/wp-content/themes/medani/images/scape_logo.png",
+                fedora,
+                "SCAPE_DESCRIPTIVE",
+                "SCAPE_LIFECYCLE",
+                "SCAPE_RIGHTS",
+                "SCAPE_PROVENANCE",
+                "SCAPE_SOURCE",
+                "SCAPE_REPRESENTATION_TECHNICAL",
+                "SCAPE_FILE_TECHNICAL",
+                "SCAPE_FILE_CONTENT",
+                scape_content_model);
+
+        EntityManipulator entityManipulator = new EntityManipulator(collections, fedora, scape_content_model);
+        EntityManipulator.Snapshot snapshot = entityManipulator.readSnapshotFromEntityID(pid, null);
+        LifecycleState lifecycleState = entityManipulator.readLifecycleFromSnapshot(snapshot);
+        Object descriptive = entityManipulator.readMetadataFromSnapshot(snapshot, null, null, null, "descriptive");
+        IntellectualEntity entity = entityManipulator.readFromSnapshot(snapshot, true);
+
+        XMLUnit.setIgnoreWhitespace(true);
+        XMLAssert.assertXMLEqual(MockFedora.getSimpleLifeCycle(), XmlUtils.toString(lifecycleState));
+        XMLAssert.assertXMLEqual(MockFedora.getDescriptive(title), XmlUtils.toString(descriptive));
+        Assert.assertEquals(entity.getRepresentations().get(0).getTitle(), title);
+        Assert.assertFalse(snapshot.isVersionPinned());
+        //The profile the tag was computed from is reused by every read
+        verify(fedora, times(1)).getObjectProfile(eq(pid), anyLong());
+    }
+
+    @Test
+    public void testReadFileUri() throws Exception {
+        String pid = "uuid:testPid";
+        String fileUrl = "http://www.scape-project.eu/wp-content/themes/medani/images/scape_logo.png";
+        String scape_content_model = "scape:ContentModel_SCAPE";
+        List<String> collections = new ArrayList<>();
+
+        EnhancedFedora fedora = mock(EnhancedFedora.class);
+        mockFedora(
+                pid,
+                "entity-1",
+                "representation-1",
+                "file-1",
+                "entity 1 title",
+                "header_image",
+                "image/png",
+                fileUrl,
+                fedora,
+                "SCAPE_DESCRIPTIVE",
+                "SCAPE_LIFECYCLE",
+                "SCAPE_RIGHTS",
+                "SCAPE_PROVENANCE",
+                "SCAPE_SOURCE",
+                "SCAPE_REPRESENTATION_TECHNICAL",
+                "SCAPE_FILE_TECHNICAL",
+                "SCAPE_FILE_CONTENT",
+                scape_content_model);
+
+        IntellectualEntity entity = new EntityManipulator(collections, fedora, scape_content_model).read(
+                pid, null, true);
+        Representation representation = entity.getRepresentations().get(0);
+        String representationID = representation.getIdentifier().getValue();
+        String fileID = representation.getFiles().get(0).getIdentifier().getValue();
+
+        EntityManipulator entityManipulator = new EntityManipulator(collections, fedora, scape_content_model);
+        Assert.assertEquals(
+                entityManipulator.readFileUriFromEntityID(pid, null, representationID, fileID), URI.create(fileUrl));
+        Assert.assertEquals(
+                entityManipulator.readFileUriFromEntityID(pid, null, representationID, fileID), URI.create(fileUrl));
+
+        verify(fedora, times(2)).getObjectProfile(eq(pid), anyLong());
+        verify(fedora, never()).getXMLDatastreamContents(eq(pid), eq("SCAPE_FILE_TECHNICAL"), anyLong());
+    }
+
+    @Test
+    public void testEntityTag() throws Exception {
+        String pid = "uuid:testPid";
+        EnhancedFedora fedora = mock(EnhancedFedora.class);
+        DatastreamProfile versions = new DatastreamProfile();
+        versions.setID(EntityManipulator.SCAPE_VERSIONS);
+        versions.setChecksum("1");
+        ObjectProfile objectProfile = new ObjectProfile();
+        objectProfile.setPid(pid);
+        objectProfile.setContentModels(Arrays.asList("info:fedora/scape:ContentModel_SCAPE"));
+        objectProfile.setDatastreams(Arrays.asList(versions));
+        when(fedora.getObjectProfile(eq(pid), anyLong())).thenReturn(objectProfile);
+
+        EntityManipulator entityManipulator = new EntityManipulator(
+                new ArrayList<String>(), fedora, "scape:ContentModel_SCAPE");
+        String first = entityManipulator.readEntityTagFromEntityID(pid, null);
+        Assert.assertNotNull(first);
+        Assert.assertEquals(entityManipulator.readEntityTagFromEntityID(pid, null), first);
+
+        versions.setChecksum("2");
+        String second = entityManipulator.readEntityTagFromEntityID(pid, null);
+        Assert.assertFalse(first.equals(second));
+
+        //A new version in SCAPE_VERSIONS changes the tag, even with the same checksums
+        VersionsType versionsType = new VersionsType();
+        VersionType version = new VersionType();
+        version.setId(1);
+        version.setTimestamp(1000L);
+        versionsType.getVersion().add(version);
+        when(fedora.getXMLDatastreamContents(eq(pid), eq(EntityManipulator.SCAPE_VERSIONS), anyLong())).thenReturn(
+                VersionUtils.toXml(versionsType));
+        Assert.assertFalse(second.equals(entityManipulator.readEntityTagFromEntityID(pid, null)));
+
+        versions.setChecksum(null);
+        Assert.assertNull(entityManipulator.readEntityTagFromEntityID(pid, null));
+        versions.setChecksum("none");
+        Assert.assertNull(entityManipulator.readEntityTagFromEntityID(pid, null));
+        versions.setChecksum("DISABLED");
+        Assert.assertNull(entityManipulator.readEntityTagFromEntityID(pid, null));
+    }
+
+    @Test
+    public void testUpdateChanged() throws Exception {
+        String pid = "uuid:testPid";
+        String entityIdentifier = "entity-1";
+        EnhancedFedora fedora = mock(EnhancedFedora.class);
+        DatastreamProfile versions = new DatastreamProfile();
+        versions.setID(EntityManipulator.SCAPE_VERSIONS);
+        versions.setChecksum("1");
+        ObjectProfile objectProfile = new ObjectProfile();
+        objectProfile.setPid(pid);
+        objectProfile.setContentModels(Arrays.asList("info:fedora/scape:ContentModel_SCAPE"));
+        objectProfile.setDatastreams(Arrays.asList(versions));
+        when(fedora.getObjectProfile(eq(pid), anyLong())).thenReturn(objectProfile);
+        when(fedora.findObjectFromDCIdentifier(TypeUtils.formatEntityIdentifier(new Identifier(entityIdentifier)))).thenReturn(
+                Arrays.asList(pid));
+
+        EntityManipulator entityManipulator = new EntityManipulator(
+                new ArrayList<String>(), fedora, "scape:ContentModel_SCAPE");
+        String read = entityManipulator.readEntityTagFromEntityID(entityIdentifier, null);
+        versions.setChecksum("2");
+
+        IntellectualEntity entity = new IntellectualEntity.Builder().identifier(new Identifier(entityIdentifier))
+                                                                    .build();
+        try {
+            entityManipulator.updateFromEntityID(entityIdentifier, entity, read);
+            Assert.fail("The update of a changed entity should fail");
+        } catch (VersioningException e) {
+            Assert.assertFalse(e.isPreconditionMissing());
+        }
+        verify(fedora, never()).modifyDatastreamByValue(
+                anyString(), anyString(), anyString(), anyString(), anyList(), anyString());
+
+        entityManipulator.setRequireEntityTag(true);
+        try {
+            entityManipulator.updateFromEntityID(entityIdentifier, entity, null);
+            Assert.fail("The update without an entity tag should fail");
+        } catch (VersioningException e) {
+            Assert.assertTrue(e.isPreconditionMissing());
+        }
+    }
+
     @Test
     public void testCreateNew() throws Exception {
         String entityIdentifier = "entity-1";
@@ -259,8 +631,143 @@ public class EntityManipulatorTestMockedCentral {
 
     }
 
+    @Test
+    public void testCreateNewIngest() throws Exception {
+        String scape_descriptive = "SCAPE_DESCRIPTIVE";
+        String scape_lifecycle = "SCAPE_LIFECYCLE";
+        String scape_file_content = "SCAPE_FILE_CONTENT";
+        String scape_content_model = "scape:ContentModel_SCAPE";
+        String fileUrl = "http://www.scape-project.eu/wp-content/themes/medani/images/scape_logo.png";
+
+        EnhancedFedora fedora = mock(EnhancedFedora.class);
+        MockFedora.setupContentModels(
+                fedora,
+                scape_content_model,
+                scape_descriptive,
+                scape_lifecycle,
+                "SCAPE_RIGHTS",
+                "SCAPE_PROVENANCE",
+                "SCAPE_SOURCE",
+                "SCAPE_REPRESENTATION_TECHNICAL",
+                "SCAPE_FILE_TECHNICAL",
+                scape_file_content);
+        when(
+                fedora.getXMLDatastreamContents(
+                        eq(scape_content_model), eq(DSCompositeModel.DS_COMPOSITE_MODEL), anyLong())).thenReturn(
+                MockFedora.getDsComp());
+
+        String expectedPid = "uuid:" + UUID.randomUUID().toString();
+        FedoraIngestClient ingestClient = mock(FedoraIngestClient.class);
+        when(ingestClient.nextPid()).thenReturn(expectedPid);
+        when(ingestClient.ingest(eq(expectedPid), any(byte[].class), anyString())).thenReturn(expectedPid);
+
+        EntityManipulator entityManipulator = new EntityManipulator(
+                new ArrayList<String>(), fedora, scape_content_model);
+        entityManipulator.setIngestClient(ingestClient);
+
+        IntellectualEntity newEntity = MockFedora.buildNewEntity(
+                "entity-1",
+                "representation-1",
+                "file-1",
+                "entity 1 title",
+                "rep 1 title",
+                URI.create(fileUrl),
+                "image/png",
+                "header_image",
+                "SCAPE_FILE_TECHNICAL",
+                "SCAPE_REPRESENTATION_TECHNICAL");
+
+        Assert.assertEquals(entityManipulator.createNew(newEntity), expectedPid);
+
+        //The whole object is ingested at once, with the pid from the pid generator
+        verify(fedora, never()).newEmptyObject(anyList(), anyList(), anyString());
+        ArgumentCaptor<byte[]> foxml = ArgumentCaptor.forClass(byte[].class);
+        verify(ingestClient).ingest(eq(expectedPid), foxml.capture(), anyString());
+        FoxmlObject object = FoxmlObject.parse(new ByteArrayInputStream(foxml.getValue()), false);
+
+        XMLUnit.setIgnoreWhitespace(true);
+        XMLAssert.assertXMLEqual(
+                XmlUtils.toString(newEntity.getDescriptive()), object.getContent(scape_descriptive, null));
+        XMLAssert.assertXMLEqual(
+                XmlUtils.toString(newEntity.getLifecycleState()), object.getContent(scape_lifecycle, null));
+        Assert.assertTrue(
+                TypeUtils.getDCIdentifiers(object.getContent("DC", null), "scape")
+                         .containsAll(TypeUtils.formatIdentifiers(newEntity)));
+        boolean fileContent = false;
+        for (DatastreamProfile datastream : object.getProfile(null).getDatastreams()) {
+            if (datastream.getID().equals(scape_file_content)) {
+                Assert.assertEquals(datastream.getUrl(), fileUrl);
+                fileContent = true;
+            }
+        }
+        Assert.assertTrue(fileContent);
+
+        //The initial version is written after the ingest
+        ArgumentCaptor<String> versions = ArgumentCaptor.forClass(String.class);
+        verify(fedora).modifyDatastreamByValue(
+                eq(expectedPid), eq(EntityManipulator.SCAPE_VERSIONS), versions.capture(), anyList(),
+                anyString());
+        Assert.assertNotNull(VersionUtils.findVersionInScapeVersions(expectedPid, versions.getValue(), "1"));
+    }
+
+    @Test
+    public void testCreateNewIngestPurgedWhenVersionsFail() throws Exception {
+        String scape_content_model = "scape:ContentModel_SCAPE";
+
+        EnhancedFedora fedora = mock(EnhancedFedora.class);
+        when(
+                fedora.getXMLDatastreamContents(
+                        eq(scape_content_model), eq(DSCompositeModel.DS_COMPOSITE_MODEL), anyLong())).thenReturn(
+                MockFedora.getDsComp());
+        doThrow(BackendMethodFailedException.class).when(fedora).modifyDatastreamByValue(
+                anyString(), eq(EntityManipulator.SCAPE_VERSIONS), anyString(), anyList(), anyString());
+
+        String expectedPid = "uuid:" + UUID.randomUUID().toString();
+        FedoraIngestClient ingestClient = mock(FedoraIngestClient.class);
+        when(ingestClient.nextPid()).thenReturn(expectedPid);
+        when(ingestClient.ingest(eq(expectedPid), any(byte[].class), anyString())).thenReturn(expectedPid);
+
+        EntityManipulator entityManipulator = new EntityManipulator(
+                new ArrayList<String>(), fedora, scape_content_model);
+        entityManipulator.setIngestClient(ingestClient);
+
+        IntellectualEntity newEntity = MockFedora.buildNewEntity(
+                "entity-1",
+                "representation-1",
+                "file-1",
+                "entity 1 title",
+                "rep 1 title",
+                URI.create("http://www.scape-project.eu/wp-content/themes/medani/images/scape_logo.png"),
+                "image/png",
+                "header_image",
+                "SCAPE_FILE_TECHNICAL",
+                "SCAPE_REPRESENTATION_TECHNICAL");
+        try {
+            entityManipulator.createNew(newEntity);
+            Assert.fail("The ingest should fail when the versions cannot be written");
+        } catch (CommunicationException e) {
+            //expected
+        }
+        //The object without versions is removed, so the entity can be ingested again
+        verify(ingestClient).purge(eq(expectedPid), anyString());
+    }
+
     @Test
     public void testUpdate() throws Exception {
+        update(null);
+    }
+
+    @Test
+    public void testUpdateParallel() throws Exception {
+        ExecutorService executor = ExecutorUtils.newBoundedExecutor("test", 4, 10);
+        try {
+            update(executor);
+        } finally {
+            ExecutorUtils.shutdown(executor);
+        }
+    }
+
+    private void update(ExecutorService writeExecutor) throws Exception {
         String pid = "uuid:testPid";
         String entityIdentifier = "entity-1";
         String representationIdentifier = "representation-1";
@@ -341,6 +848,7 @@ public class EntityManipulatorTestMockedCentral {
 
 
         entityManipulator = new EntityManipulator(collections, fedora, scape_content_model);
+        entityManipulator.setWriteExecutor(writeExecutor, 3);
 
         entityManipulator.updateFromEntityID(entity.getIdentifier().getValue(), entity);
 
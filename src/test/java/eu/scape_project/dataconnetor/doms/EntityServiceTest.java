@@ -0,0 +1,179 @@
+package eu.scape_project.dataconnetor.doms;
+
+import com.sun.jersey.api.container.httpserver.HttpServerFactory;
+import com.sun.jersey.api.core.DefaultResourceConfig;
+import com.sun.jersey.spi.inject.SingletonTypeInjectableProvider;
+import com.sun.net.httpserver.HttpServer;
+import dk.statsbiblioteket.doms.central.connectors.EnhancedFedora;
+import dk.statsbiblioteket.doms.webservices.authentication.Credentials;
+import eu.scape_project.dataconnetor.doms.service.EntityService;
+import eu.scape_project.dataconnetor.doms.service.MyExceptionMapper;
+import eu.scape_project.dataconnetor.doms.service.StatusService;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import versions.ObjectFactory;
+import versions.VersionType;
+import versions.VersionsType;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.Provider;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.ArrayList;
+
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Requests the entity service over http, with the entity manipulator of the anonymous user reading a mocked fedora
+ */
+public class EntityServiceTest {
+
+    private static final String PID = "uuid:testPid";
+    private static final String TITLE = "entity 1 title";
+    private static final String CONTENT_MODEL = "scape:ContentModel_SCAPE";
+
+    private HttpServer server;
+    private String baseUrl;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        EnhancedFedora fedora = mock(EnhancedFedora.class);
+        MockFedora.setupContentModels(
+                fedora,
+                CONTENT_MODEL,
+                "SCAPE_DESCRIPTIVE",
+                "SCAPE_LIFECYCLE",
+                "SCAPE_RIGHTS",
+                "SCAPE_PROVENANCE",
+                "SCAPE_SOURCE",
+                "SCAPE_REPRESENTATION_TECHNICAL",
+                "SCAPE_FILE_TECHNICAL",
+                "SCAPE_FILE_CONTENT");
+        MockFedora.setIdentifiers(PID, "entity-1", "representation-1", "file-1", fedora);
+        MockFedora.setObjectProfile(
+                PID,
+                CONTENT_MODEL,
+                TITLE,
+                "header_image",
+                "image/png",
+                "http://www.scape-project.eu/wp-content/themes/medani/images/scape_logo.png",
+                fedora,
+                "SCAPE_DESCRIPTIVE",
+                "SCAPE_LIFECYCLE",
+                "SCAPE_RIGHTS",
+                "SCAPE_PROVENANCE",
+                "SCAPE_SOURCE",
+                "SCAPE_REPRESENTATION_TECHNICAL",
+                "SCAPE_FILE_TECHNICAL",
+                "SCAPE_FILE_CONTENT");
+        MockFedora.addEntityDatastreams(PID, TITLE, fedora, "SCAPE_DESCRIPTIVE", "SCAPE_LIFECYCLE");
+        MockFedora.addRepresentationDatastreams(
+                PID, fedora, "SCAPE_RIGHTS", "SCAPE_PROVENANCE", "SCAPE_SOURCE", "SCAPE_REPRESENTATION_TECHNICAL");
+        MockFedora.addFileDatastreams(PID, fedora, "SCAPE_FILE_TECHNICAL");
+
+        VersionsType versions = new ObjectFactory().createVersionsType();
+        VersionType version = new VersionType();
+        version.setId(1);
+        version.setTimestamp(System.currentTimeMillis() - 1000);
+        versions.getVersion().add(version);
+        when(fedora.getXMLDatastreamContents(eq(PID), eq(EntityManipulator.SCAPE_VERSIONS))).thenReturn(
+                VersionUtils.toXml(versions));
+
+        //The service reads as the anonymous user, as the request has no credentials
+        EntityInterfaceFactory.setInstance(
+                new Credentials("", ""), new EntityManipulator(new ArrayList<String>(), fedora, CONTENT_MODEL));
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        baseUrl = "http://localhost:" + port + "/";
+        server = HttpServerFactory.create(
+                baseUrl,
+                new DefaultResourceConfig(
+                        EntityService.class, StatusService.class, MyExceptionMapper.class, ServletRequest.class));
+        server.start();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        server.stop(0);
+        EntityInterfaceFactory.shutdown();
+    }
+
+    @Test
+    public void testRetrieveVersion() throws Exception {
+        HttpURLConnection connection = get("entity/" + PID + "/1");
+        Assert.assertEquals(connection.getResponseCode(), 200);
+        Assert.assertEquals(connection.getHeaderField("Cache-Control"), "private, max-age=31536000, immutable");
+        Assert.assertTrue(read(connection).contains(TITLE));
+
+        //The second read is served from the rendered entity cache
+        connection = get("entity/" + PID + "/1");
+        Assert.assertEquals(connection.getResponseCode(), 200);
+        Assert.assertEquals(connection.getHeaderField("Cache-Control"), "private, max-age=31536000, immutable");
+        Assert.assertTrue(read(connection).contains(TITLE));
+    }
+
+    @Test
+    public void testRetrieveNewest() throws Exception {
+        HttpURLConnection connection = get("entity/" + PID);
+        Assert.assertEquals(connection.getResponseCode(), 200);
+        Assert.assertEquals(connection.getHeaderField("Cache-Control"), "no-cache");
+        Assert.assertTrue(read(connection).contains(TITLE));
+    }
+
+    @Test
+    public void testStatus() throws Exception {
+        read(get("entity/" + PID + "/1"));
+        read(get("entity/" + PID + "/1"));
+
+        HttpURLConnection connection = get("status");
+        Assert.assertEquals(connection.getResponseCode(), 200);
+        long hits = -1;
+        for (String line : read(connection).split("\n")) {
+            String[] columns = line.split("\t");
+            if (columns[0].equals("renderedEntityCache.hits")) {
+                hits = Long.parseLong(columns[1]);
+            }
+        }
+        Assert.assertTrue(hits >= 1);
+    }
+
+    private HttpURLConnection get(String path) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setConnectTimeout(10000);
+        connection.setReadTimeout(10000);
+        return connection;
+    }
+
+    private static String read(HttpURLConnection connection) throws Exception {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (InputStream input = connection.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                result.write(buffer, 0, read);
+            }
+        }
+        return result.toString("UTF-8");
+    }
+
+    /**
+     * Outside a servlet container, the services get a request without credentials
+     */
+    @Provider
+    public static class ServletRequest extends SingletonTypeInjectableProvider<Context, HttpServletRequest> {
+        public ServletRequest() {
+            super(HttpServletRequest.class, mock(HttpServletRequest.class));
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package eu.scape_project.dataconnetor.doms;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+public class ExecutorUtilsTest {
+
+    @Test
+    public void testCallerRunsWhenFull() throws Exception {
+        ExecutorService executor = ExecutorUtils.newBoundedExecutor("test", 1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            Callable<String> blocked = new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    release.await();
+                    return Thread.currentThread().getName();
+                }
+            };
+            //One task runs on the thread and one waits in the queue, so the next runs on the submitting thread
+            executor.submit(blocked);
+            executor.submit(blocked);
+            Future<String> full = executor.submit(
+                    new Callable<String>() {
+                        @Override
+                        public String call() throws Exception {
+                            return Thread.currentThread().getName();
+                        }
+                    });
+            Assert.assertTrue(full.isDone());
+            Assert.assertEquals(full.get(), Thread.currentThread().getName());
+        } finally {
+            release.countDown();
+            ExecutorUtils.shutdown(executor);
+        }
+    }
+
+    @Test(expectedExceptions = RejectedExecutionException.class)
+    public void testRejectedWhenShutDown() throws Exception {
+        ExecutorService executor = ExecutorUtils.newBoundedExecutor("test", 1, 1);
+        ExecutorUtils.shutdown(executor);
+        executor.submit(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                });
+    }
+}
@@ -0,0 +1,38 @@
+package eu.scape_project.dataconnetor.doms;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ExpiringCacheTest {
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(2, 0);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        Assert.assertEquals(cache.get("a"), "1");
+        cache.put("c", "3");
+        Assert.assertEquals(cache.size(), 2);
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals(cache.get("a"), "1");
+        Assert.assertEquals(cache.get("c"), "3");
+    }
+
+    @Test
+    public void testExpires() throws Exception {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 50);
+        cache.put("a", "1");
+        Assert.assertEquals(cache.get("a"), "1");
+        Thread.sleep(100);
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 0);
+        cache.put("a", "1");
+        Assert.assertEquals(cache.remove("a"), "1");
+        Assert.assertNull(cache.get("a"));
+    }
+}
@@ -0,0 +1,55 @@
+package eu.scape_project.dataconnetor.doms;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.net.URI;
+
+public class FileUriCacheTest {
+
+    @Test
+    public void testScopes() throws Exception {
+        FileUriCache cache = new FileUriCache();
+        URI uri = URI.create("http://localhost/fedora/objects/uuid:1/datastreams/CONTENT/content");
+        cache.put("alice", "uuid:1", null, "r1", "f1", uri, cache.generation("uuid:1"));
+
+        Assert.assertEquals(cache.get("alice", "uuid:1", null, "r1", "f1"), uri);
+        Assert.assertNull(cache.get("bob", "uuid:1", null, "r1", "f1"));
+        Assert.assertNull(cache.get("alice", "uuid:1", "1", "r1", "f1"));
+        Assert.assertNull(cache.get("alice", "uuid:1", null, "r1", "f2"));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        FileUriCache cache = new FileUriCache();
+        URI uri = URI.create("http://localhost/fedora/objects/uuid:1/datastreams/CONTENT/content");
+        cache.put("alice", "uuid:1", null, "r1", "f1", uri, cache.generation("uuid:1"));
+        cache.put("bob", "uuid:1", "1", "r1", "f1", uri, cache.generation("uuid:1"));
+        cache.put("alice", "uuid:2", null, "r2", "f2", uri, cache.generation("uuid:2"));
+
+        cache.invalidate("uuid:1");
+
+        Assert.assertNull(cache.get("alice", "uuid:1", null, "r1", "f1"));
+        Assert.assertNull(cache.get("bob", "uuid:1", "1", "r1", "f1"));
+        Assert.assertEquals(cache.get("alice", "uuid:2", null, "r2", "f2"), uri);
+    }
+
+    @Test
+    public void testStaleGeneration() throws Exception {
+        FileUriCache cache = new FileUriCache();
+        URI uri = URI.create("http://localhost/fedora/objects/uuid:1/datastreams/CONTENT/content");
+        //The uri is resolved, then the object is changed before the uri is put
+        long generation = cache.generation("uuid:1");
+        cache.invalidate("uuid:1");
+        cache.put("alice", "uuid:1", null, "r1", "f1", uri, generation);
+        Assert.assertNull(cache.get("alice", "uuid:1", null, "r1", "f1"));
+
+        generation = cache.generation("uuid:1");
+        cache.invalidateAll();
+        cache.put("alice", "uuid:1", null, "r1", "f1", uri, generation);
+        Assert.assertNull(cache.get("alice", "uuid:1", null, "r1", "f1"));
+
+        cache.put("alice", "uuid:1", null, "r1", "f1", uri, cache.generation("uuid:1"));
+        Assert.assertEquals(cache.get("alice", "uuid:1", null, "r1", "f1"), uri);
+    }
+}
@@ -0,0 +1,49 @@
+package eu.scape_project.dataconnetor.doms;
+
+import dk.statsbiblioteket.doms.central.connectors.fedora.structures.DatastreamProfile;
+import dk.statsbiblioteket.doms.central.connectors.fedora.structures.ObjectProfile;
+import dk.statsbiblioteket.util.Bytes;
+import dk.statsbiblioteket.util.Checksums;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+public class FoxmlBuilderTest {
+
+    @Test
+    public void testBuild() throws Exception {
+        String descriptive = "<dc:dublin-core xmlns:dc=\"http://purl.org/dc/elements/1.1/\"><dc:title>t</dc:title></dc:dublin-core>";
+        byte[] foxml = new FoxmlBuilder("uuid:testPid").label("entity 1 title")
+                                                       .identifiers(Arrays.asList("scape-entity:entity-1"))
+                                                       .contentModel("scape:ContentModel_SCAPE")
+                                                       .xmlDatastream("SCAPE_DESCRIPTIVE", descriptive)
+                                                       .externalDatastream(
+                                                               "SCAPE_FILE_CONTENT",
+                                                               "header_image",
+                                                               "http://example.com/image.png?a=1&b=2",
+                                                               "unknown",
+                                                               "image/png")
+                                                       .build();
+
+        FoxmlObject object = FoxmlObject.parse(new ByteArrayInputStream(foxml), false);
+        ObjectProfile profile = object.getProfile(null);
+        Assert.assertEquals(profile.getPid(), "uuid:testPid");
+        Assert.assertEquals(profile.getLabel(), "entity 1 title");
+        Assert.assertEquals(profile.getContentModels(), Arrays.asList("info:fedora/scape:ContentModel_SCAPE"));
+        Assert.assertEquals(
+                TypeUtils.getDCIdentifiers(object.getContent("DC", null), "scape"),
+                Arrays.asList("scape-entity:entity-1"));
+        Assert.assertEquals(object.getContent("SCAPE_DESCRIPTIVE", null), descriptive);
+        for (DatastreamProfile datastream : profile.getDatastreams()) {
+            if (datastream.getID().equals("SCAPE_DESCRIPTIVE")) {
+                Assert.assertEquals(datastream.getChecksum(), Bytes.toHex(Checksums.md5(descriptive)).toLowerCase());
+            }
+            if (datastream.getID().equals("SCAPE_FILE_CONTENT")) {
+                Assert.assertEquals(datastream.getUrl(), "http://example.com/image.png?a=1&b=2");
+                Assert.assertEquals(datastream.getMimeType(), "image/png");
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package eu.scape_project.dataconnetor.doms;
+
+import dk.statsbiblioteket.doms.central.connectors.fedora.structures.DatastreamProfile;
+import dk.statsbiblioteket.doms.central.connectors.fedora.structures.ObjectProfile;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+public class FoxmlObjectTest {
+
+    private FoxmlObject parse(boolean allVersions) throws Exception {
+        InputStream foxml = Thread.currentThread().getContextClassLoader().getResourceAsStream("FOXML.xml");
+        try {
+            return FoxmlObject.parse(foxml, allVersions);
+        } finally {
+            foxml.close();
+        }
+    }
+
+    @Test
+    public void testProfile() throws Exception {
+        ObjectProfile profile = parse(false).getProfile(null);
+
+        Assert.assertEquals(profile.getLabel(), "entity 1 title");
+        Assert.assertEquals(profile.getContentModels(), Arrays.asList("info:fedora/scape:ContentModel_SCAPE"));
+        List<DatastreamProfile> datastreams = profile.getDatastreams();
+        Assert.assertEquals(datastreams.size(), 4);
+        for (DatastreamProfile datastream : datastreams) {
+            Assert.assertFalse(datastream.getID().equals("SCAPE_RIGHTS"));
+            if (datastream.getID().equals("SCAPE_FILE_CONTENT")) {
+                Assert.assertEquals(datastream.getLabel(), "header_image");
+                Assert.assertEquals(datastream.getMimeType(), "image/png");
+                Assert.assertEquals(
+                        datastream.getUrl(),
+                        "http://www.scape-project.eu/wp-content/themes/medani/images/scape_logo.png");
+            }
+        }
+    }
+
+    @Test
+    public void testContents() throws Exception {
+        FoxmlObject object = parse(false);
+
+        Assert.assertEquals(
+                TypeUtils.getDCIdentifiers(object.getContent("DC", null), "scape"), Arrays.asList(
+                "scape-entity:entity-1", "scape-representation:representation-1", "scape-file:file-1"));
+        Assert.assertTrue(object.getContent("SCAPE_DESCRIPTIVE", null).contains("new"));
+        Assert.assertNull(object.getContent("SCAPE_FILE_CONTENT", null));
+    }
+
+    @Test
+    public void testVersions() throws Exception {
+        long between = DatatypeConverter.parseDateTime("2013-10-01T12:00:00.000Z").getTimeInMillis();
+
+        Assert.assertTrue(parse(true).getContent("SCAPE_DESCRIPTIVE", between).contains("old"));
+        Assert.assertTrue(parse(true).getContent("SCAPE_DESCRIPTIVE", null).contains("new"));
+        Assert.assertNull(parse(false).getContent("SCAPE_DESCRIPTIVE", between));
+    }
+}
@@ -0,0 +1,44 @@
+package eu.scape_project.dataconnetor.doms;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class IdentifierCacheTest {
+
+    @Test
+    public void testBothWays() throws Exception {
+        IdentifierCache cache = new IdentifierCache();
+        cache.putIdentifiers("uuid:1", Arrays.asList("scape-entity:e1", "scape-representation:r1"));
+
+        Assert.assertEquals(cache.getPids("scape-entity:e1"), Arrays.asList("uuid:1"));
+        Assert.assertEquals(cache.getIdentifiers("uuid:1"), Arrays.asList("scape-entity:e1", "scape-representation:r1"));
+        Assert.assertNull(cache.getPids("scape-entity:e2"));
+    }
+
+    @Test
+    public void testMissing() throws Exception {
+        IdentifierCache cache = new IdentifierCache(10, 0, 50);
+        cache.putPids("scape-entity:e1", Collections.<String>emptyList());
+
+        Assert.assertTrue(cache.isMissing("scape-entity:e1"));
+        Assert.assertNull(cache.getPids("scape-entity:e1"));
+        Thread.sleep(100);
+        Assert.assertFalse(cache.isMissing("scape-entity:e1"));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        IdentifierCache cache = new IdentifierCache();
+        cache.putIdentifiers("uuid:1", Arrays.asList("scape-entity:e1"));
+        cache.putPids("scape-entity:e2", Collections.<String>emptyList());
+
+        cache.invalidate("uuid:1", Arrays.asList("scape-entity:e2"));
+
+        Assert.assertNull(cache.getIdentifiers("uuid:1"));
+        Assert.assertNull(cache.getPids("scape-entity:e1"));
+        Assert.assertFalse(cache.isMissing("scape-entity:e2"));
+    }
+}
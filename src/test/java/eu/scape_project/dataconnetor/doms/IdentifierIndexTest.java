@@ -0,0 +1,124 @@
+package eu.scape_project.dataconnetor.doms;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class IdentifierIndexTest {
+
+    private File directory;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        directory = File.createTempFile("identifierIndex", "");
+        directory.delete();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+        IdentifierIndex index = new IdentifierIndex(directory, 16);
+        try {
+            index.put("scape-entity:e1", "uuid:1");
+            index.put("scape-file:f1", "uuid:1");
+            index.put("scape-entity:e1", "uuid:2");
+
+            Assert.assertEquals(index.get("scape-entity:e1"), "uuid:2");
+            Assert.assertEquals(index.get("scape-file:f1"), "uuid:1");
+            Assert.assertNull(index.get("scape-entity:e2"));
+            Assert.assertEquals(index.size(), 2);
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void testGrowAndReopen() throws Exception {
+        IdentifierIndex index = new IdentifierIndex(directory, 16);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                index.put("scape-entity:e" + i, "uuid:" + i);
+            }
+        } finally {
+            index.close();
+        }
+
+        index = new IdentifierIndex(directory, 16);
+        try {
+            Assert.assertEquals(index.size(), 1000);
+            for (int i = 0; i < 1000; i++) {
+                Assert.assertEquals(index.get("scape-entity:e" + i), "uuid:" + i);
+            }
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void testLocked() throws Exception {
+        IdentifierIndex index = new IdentifierIndex(directory, 16);
+        try {
+            new IdentifierIndex(directory, 16);
+            Assert.fail("The index is already open");
+        } catch (IOException e) {
+            //expected
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void testRecoverAfterCrash() throws Exception {
+        IdentifierIndex index = new IdentifierIndex(directory, 16);
+        try {
+            for (int i = 0; i < 20; i++) {
+                index.put("scape-entity:e" + i, "uuid:" + i);
+            }
+        } finally {
+            index.close();
+        }
+
+        //As if the process died before the last record reached the disk, but after the slots did
+        RandomAccessFile indexFile = new RandomAccessFile(new File(directory, "identifiers.idx"), "rw");
+        try {
+            indexFile.seek(12);
+            indexFile.writeInt(1);
+        } finally {
+            indexFile.close();
+        }
+        RandomAccessFile dataFile = new RandomAccessFile(new File(directory, "identifiers.dat"), "rw");
+        try {
+            dataFile.setLength(dataFile.length() - 3);
+        } finally {
+            dataFile.close();
+        }
+
+        index = new IdentifierIndex(directory, 16);
+        try {
+            Assert.assertEquals(index.size(), 19);
+            for (int i = 0; i < 19; i++) {
+                Assert.assertEquals(index.get("scape-entity:e" + i), "uuid:" + i);
+            }
+            Assert.assertNull(index.get("scape-entity:e19"));
+            index.put("scape-entity:e19", "uuid:19");
+            Assert.assertEquals(index.get("scape-entity:e19"), "uuid:19");
+        } finally {
+            index.close();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package eu.scape_project.dataconnetor.doms;
+
+import dk.statsbiblioteket.doms.webservices.authentication.Credentials;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+public class IngestJournalTest {
+
+    private File directory;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        directory = File.createTempFile("ingestJournal", "");
+        directory.delete();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testAcceptCompleteReopen() throws Exception {
+        Credentials credentials = new Credentials("user", "pass");
+        IngestJournal journal = new IngestJournal(directory, IngestJournal.DEFAULT_COMPACTION_THRESHOLD, true);
+        try {
+            long first = journal.accept("entity-1", credentials, "<mets1/>".getBytes("UTF-8"));
+            journal.accept("entity-2", credentials, "<mets2/>".getBytes("UTF-8"));
+            journal.complete(first);
+        } finally {
+            journal.close();
+        }
+
+        journal = new IngestJournal(directory, IngestJournal.DEFAULT_COMPACTION_THRESHOLD, true);
+        try {
+            List<Long> pending = journal.getPending();
+            Assert.assertEquals(pending.size(), 1);
+            IngestJournal.Entry entry = journal.read(pending.get(0));
+            Assert.assertEquals(entry.getEntityID(), "entity-2");
+            Assert.assertEquals(entry.getUsername(), "user");
+            Assert.assertEquals(entry.getCredentials().getUsername(), "user");
+            Assert.assertEquals(entry.getCredentials().getPassword(), "pass");
+            Assert.assertEquals(new String(entry.getMets(), "UTF-8"), "<mets2/>");
+
+            long third = journal.accept("entity-3", credentials, "<mets3/>".getBytes("UTF-8"));
+            Assert.assertTrue(third > entry.getId());
+            journal.complete(third);
+            Assert.assertNull(journal.read(third));
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void testNoCredentials() throws Exception {
+        Credentials credentials = new Credentials("user", "secret");
+        IngestJournal journal = new IngestJournal(directory, IngestJournal.DEFAULT_COMPACTION_THRESHOLD);
+        try {
+            journal.accept("entity-1", credentials, "<mets1/>".getBytes("UTF-8"));
+            List<Long> pending = journal.getPending();
+            Assert.assertEquals(pending.size(), 1);
+            Assert.assertEquals(journal.read(pending.get(0)).getUsername(), "user");
+            Assert.assertNull(journal.read(pending.get(0)).getCredentials());
+        } finally {
+            journal.close();
+        }
+        //Neither the password nor anything derived from it is on disk
+        String contents = new String(Files.readAllBytes(new File(directory, "ingest.journal").toPath()), "ISO-8859-1");
+        Assert.assertFalse(contents.contains("secret"));
+        Assert.assertFalse(contents.contains(EntityInterfaceFactory.scope(credentials)));
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        Credentials credentials = new Credentials("user", "pass");
+        IngestJournal journal = new IngestJournal(directory, IngestJournal.DEFAULT_COMPACTION_THRESHOLD);
+        long size;
+        try {
+            journal.accept("entity-1", credentials, "<mets1/>".getBytes("UTF-8"));
+            size = journal.size();
+            journal.accept("entity-2", credentials, "<mets2/>".getBytes("UTF-8"));
+        } finally {
+            journal.close();
+        }
+        RandomAccessFile file = new RandomAccessFile(new File(directory, "ingest.journal"), "rw");
+        try {
+            file.setLength(file.length() - 3);
+        } finally {
+            file.close();
+        }
+
+        journal = new IngestJournal(directory, IngestJournal.DEFAULT_COMPACTION_THRESHOLD);
+        try {
+            List<Long> pending = journal.getPending();
+            Assert.assertEquals(pending.size(), 1);
+            Assert.assertEquals(journal.read(pending.get(0)).getEntityID(), "entity-1");
+            Assert.assertEquals(journal.size(), size);
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        Credentials credentials = new Credentials("user", "pass");
+        IngestJournal journal = new IngestJournal(directory, 1024);
+        try {
+            long kept = journal.accept("entity-kept", credentials, "<kept/>".getBytes("UTF-8"));
+            for (int i = 0; i < 100; i++) {
+                journal.complete(journal.accept("entity-" + i, credentials, "<mets/>".getBytes("UTF-8")));
+            }
+            Assert.assertTrue(journal.size() <= 1024);
+            List<Long> pending = journal.getPending();
+            Assert.assertEquals(pending.size(), 1);
+            Assert.assertEquals((long) pending.get(0), kept);
+            Assert.assertEquals(journal.read(kept).getEntityID(), "entity-kept");
+        } finally {
+            journal.close();
+        }
+
+        journal = new IngestJournal(directory, 1024);
+        try {
+            Assert.assertEquals(journal.getPending().size(), 1);
+            Assert.assertEquals(journal.read(journal.getPending().get(0)).getEntityID(), "entity-kept");
+        } finally {
+            journal.close();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package eu.scape_project.dataconnetor.doms;
+
+import eu.scape_project.dataconnetor.doms.exceptions.TooLargeException;
+import eu.scape_project.model.IntellectualEntity;
+import org.custommonkey.xmlunit.XMLAssert;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+
+public class MetsReaderTest {
+
+    private IntellectualEntity buildEntity() throws Exception {
+        return MockFedora.buildNewEntity(
+                "entity-1",
+                "representation-1",
+                "file-1",
+                "entity 1 title",
+                "rep 1 title",
+                URI.create("http://www.scape-project.eu/wp-content/themes/medani/images/scape_logo.png"),
+                "image/png",
+                "header_image",
+                "SCAPE_FILE_TECHNICAL",
+                "SCAPE_REPRESENTATION_TECHNICAL");
+    }
+
+    @Test
+    public void testReadEntity() throws Exception {
+        IntellectualEntity entity = buildEntity();
+
+        //Without a section limit, the document is unmarshalled straight from the stream
+        IntellectualEntity read = new MetsReader(100000, 0, 10).readEntity(XmlUtils.toBytes(entity, false));
+
+        XMLUnit.setIgnoreWhitespace(true);
+        XMLAssert.assertXMLEqual(XmlUtils.toString(entity), XmlUtils.toString(read));
+    }
+
+    @Test
+    public void testReadEntitySpooled() throws Exception {
+        IntellectualEntity entity = buildEntity();
+
+        //A section limit makes the reader check the document first, and a threshold of 10 bytes makes it spool the
+        //document to a temporary file
+        IntellectualEntity read = new MetsReader(0, 100000, 10).readEntity(XmlUtils.toBytes(entity, false));
+
+        XMLUnit.setIgnoreWhitespace(true);
+        XMLAssert.assertXMLEqual(XmlUtils.toString(entity), XmlUtils.toString(read));
+    }
+
+    @Test(expectedExceptions = TooLargeException.class)
+    public void testDocumentTooLarge() throws Exception {
+        new MetsReader(100, 0, 1024).readEntity(XmlUtils.toBytes(buildEntity(), false));
+    }
+
+    @Test(expectedExceptions = TooLargeException.class)
+    public void testSectionTooLarge() throws Exception {
+        new MetsReader(0, 5, 1024).readEntity(XmlUtils.toBytes(buildEntity(), false));
+    }
+
+    @Test
+    public void testReadMetadata() throws Exception {
+        String rights = MockFedora.getSimpleRights();
+
+        Object read = new MetsReader(0, 1000, 1024).readMetadata(new ByteArrayInputStream(rights.getBytes("UTF-8")));
+
+        XMLUnit.setIgnoreWhitespace(true);
+        XMLAssert.assertXMLEqual(rights, XmlUtils.toString(read));
+        try {
+            new MetsReader(0, 5, 1024).readMetadata(new ByteArrayInputStream(rights.getBytes("UTF-8")));
+            Assert.fail("The rights are more than 5 characters");
+        } catch (TooLargeException e) {
+            //expected
+        }
+        try {
+            new MetsReader(10, 0, 1024).readMetadata(new ByteArrayInputStream(rights.getBytes("UTF-8")));
+            Assert.fail("The rights are more than 10 bytes");
+        } catch (TooLargeException e) {
+            //expected
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package eu.scape_project.dataconnetor.doms;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class MultipartReaderTest {
+
+    @Test
+    public void testParts() throws Exception {
+        String body = "preamble\r\n"
+                      + "--b\r\n"
+                      + "Content-Type: application/xml\r\n"
+                      + "Content-Disposition: attachment; filename=\"one.xml\"\r\n"
+                      + "\r\n"
+                      + "<one/>\r\n"
+                      + "--b  \r\n"
+                      + "\r\n"
+                      + "two\r\n-b\r\n"
+                      + "--b--\r\n"
+                      + "epilogue";
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(body.getBytes("UTF-8")), "b");
+
+        MultipartReader.Part one = reader.nextPart();
+        Assert.assertEquals(one.getHeader("content-type"), "application/xml");
+        Assert.assertEquals(one.getHeader("Content-Disposition"), "attachment; filename=\"one.xml\"");
+        Assert.assertEquals(read(one.getInputStream()), "<one/>");
+
+        MultipartReader.Part two = reader.nextPart();
+        Assert.assertNull(two.getHeader("Content-Type"));
+        Assert.assertEquals(read(two.getInputStream()), "two\r\n-b");
+
+        Assert.assertNull(reader.nextPart());
+        Assert.assertNull(reader.nextPart());
+    }
+
+    @Test
+    public void testLargePartSkipped() throws Exception {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            large.append("\r\n-");
+        }
+        String body = "--boundary\r\n\r\n" + large + "\r\n--boundary\r\n\r\nlast\r\n--boundary--";
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(body.getBytes("UTF-8")), "boundary");
+
+        MultipartReader.Part first = reader.nextPart();
+        Assert.assertEquals(first.getInputStream().read(), '\r');
+        Assert.assertEquals(read(reader.nextPart().getInputStream()), "last");
+        Assert.assertNull(reader.nextPart());
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testMissingClosingDelimiter() throws Exception {
+        String body = "--b\r\n\r\ntruncated";
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(body.getBytes("UTF-8")), "b");
+        read(reader.nextPart().getInputStream());
+    }
+
+    private static String read(InputStream input) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[7];
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+            result.write(buffer, 0, read);
+        }
+        return result.toString("UTF-8");
+    }
+}
@@ -0,0 +1,97 @@
+package eu.scape_project.dataconnetor.doms;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class RenderedEntityCacheTest {
+
+    @Test
+    public void testEvictsLeastRecentlyUsedByBytes() throws Exception {
+        RenderedEntityCache cache = new RenderedEntityCache(40, 0);
+        cache.put("a", new RenderedEntityCache.Rendering("uuid:a", new byte[10], "tagA"));
+        cache.put("b", new RenderedEntityCache.Rendering("uuid:b", new byte[10], "tagB"));
+        cache.put("c", new RenderedEntityCache.Rendering("uuid:c", new byte[10], "tagC"));
+        Assert.assertNotNull(cache.get("a"));
+        cache.put("d", new RenderedEntityCache.Rendering("uuid:d", new byte[10], "tagD"));
+        cache.put("e", new RenderedEntityCache.Rendering("uuid:e", new byte[10], "tagE"));
+
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals(cache.get("a").getTag(), "tagA");
+        Assert.assertEquals(cache.getBytes(), 40);
+        Assert.assertEquals(cache.getHits(), 2);
+        Assert.assertEquals(cache.getMisses(), 1);
+        Assert.assertEquals(cache.getEvictions(), 1);
+    }
+
+    @Test
+    public void testTooLarge() throws Exception {
+        RenderedEntityCache cache = new RenderedEntityCache(40, 0);
+        cache.put("a", new RenderedEntityCache.Rendering("uuid:a", new byte[11], "tagA"));
+        Assert.assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        RenderedEntityCache cache = new RenderedEntityCache(100, 0);
+        cache.put(
+                RenderedEntityCache.key("scope", "uuid:a", null, true),
+                new RenderedEntityCache.Rendering("uuid:a", new byte[10], null));
+        cache.put(
+                RenderedEntityCache.key("scope", "uuid:a", "1", false),
+                new RenderedEntityCache.Rendering("uuid:a", new byte[10], null));
+        cache.put(
+                RenderedEntityCache.key("scope", "uuid:b", null, true),
+                new RenderedEntityCache.Rendering("uuid:b", new byte[10], null));
+
+        cache.invalidate("uuid:a");
+
+        Assert.assertEquals(cache.size(), 1);
+        Assert.assertEquals(cache.getBytes(), 10);
+        Assert.assertNotNull(cache.get(RenderedEntityCache.key("scope", "uuid:b", null, true)));
+    }
+
+    @Test
+    public void testImmutable() throws Exception {
+        RenderedEntityCache cache = new RenderedEntityCache(100, 50);
+        cache.put("newest", new RenderedEntityCache.Rendering("uuid:a", new byte[10], null));
+        cache.put("version", new RenderedEntityCache.Rendering("uuid:a", new byte[10], null, true));
+
+        cache.invalidate("uuid:a");
+        Assert.assertNull(cache.get("newest"));
+        Thread.sleep(100);
+        Assert.assertTrue(cache.get("version").isImmutable());
+    }
+
+    @Test
+    public void testFill() throws Exception {
+        RenderedEntityCache cache = new RenderedEntityCache(40, 0);
+        RenderedEntityCache.Fill fill = cache.fill("a", "uuid:a", "tagA", false, cache.generation("uuid:a"));
+        fill.write(new byte[6], 0, 6);
+        fill.write(1);
+        fill.commit();
+        Assert.assertEquals(cache.get("a").getBytes().length, 7);
+
+        fill = cache.fill("b", "uuid:b", "tagB", false, cache.generation("uuid:b"));
+        fill.write(new byte[11], 0, 11);
+        fill.commit();
+        Assert.assertNull(cache.get("b"));
+
+        Assert.assertNull(new RenderedEntityCache(0, 0).fill("c", "uuid:c", null, false, 0));
+    }
+
+    @Test
+    public void testStaleFillDropped() throws Exception {
+        RenderedEntityCache cache = new RenderedEntityCache(100, 0);
+        RenderedEntityCache.Fill fill = cache.fill("a", "uuid:a", "tagA", false, cache.generation("uuid:a"));
+        fill.write(new byte[10], 0, 10);
+        //The object is updated while the rendering is written
+        cache.invalidate("uuid:a");
+        fill.commit();
+        Assert.assertNull(cache.get("a"));
+
+        fill = cache.fill("a", "uuid:a", "tagA2", false, cache.generation("uuid:a"));
+        fill.write(new byte[10], 0, 10);
+        fill.commit();
+        Assert.assertEquals(cache.get("a").getTag(), "tagA2");
+    }
+}
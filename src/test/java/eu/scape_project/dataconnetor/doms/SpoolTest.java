@@ -0,0 +1,45 @@
+package eu.scape_project.dataconnetor.doms;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+public class SpoolTest {
+
+    @Test
+    public void testMemory() throws Exception {
+        Spool spool = new Spool(1024);
+        try {
+            spool.write("<small/>".getBytes("UTF-8"));
+            Assert.assertEquals(read(spool), "<small/>");
+        } finally {
+            spool.delete();
+        }
+    }
+
+    @Test
+    public void testFile() throws Exception {
+        Spool spool = new Spool(10);
+        try {
+            spool.write("<larger".getBytes("UTF-8"));
+            spool.write(" than=\"the threshold\"/>".getBytes("UTF-8"));
+            Assert.assertEquals(read(spool), "<larger than=\"the threshold\"/>");
+        } finally {
+            spool.delete();
+        }
+    }
+
+    private static String read(Spool spool) throws Exception {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (InputStream contents = spool.open()) {
+            byte[] buffer = new byte[4];
+            int read;
+            while ((read = contents.read(buffer)) >= 0) {
+                result.write(buffer, 0, read);
+            }
+        }
+        return result.toString("UTF-8");
+    }
+}
@@ -0,0 +1,81 @@
+package eu.scape_project.dataconnetor.doms;
+
+import dk.statsbiblioteket.util.Bytes;
+import dk.statsbiblioteket.util.Checksums;
+import eu.scape_project.model.IntellectualEntity;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class XmlUtilsTest {
+
+    @Test
+    public void testMd5() throws Exception {
+        IntellectualEntity entity = MockFedora.buildNewEntity(
+                "entity-1",
+                "representation-1",
+                "file-1",
+                "entity 1 title",
+                "rep 1 title",
+                URI.create("http://www.scape-project.eu/wp-content/themes/medani/images/scape_logo.png"),
+                "image/png",
+                "header_image",
+                "SCAPE_FILE_TECHNICAL",
+                "SCAPE_REPRESENTATION_TECHNICAL");
+        Object descriptive = entity.getDescriptive();
+
+        Assert.assertEquals(XmlUtils.md5(descriptive), Bytes.toHex(Checksums.md5(XmlUtils.toString(descriptive))));
+    }
+
+    @Test
+    public void testConcurrentMarshalling() throws Exception {
+        final IntellectualEntity entity = MockFedora.buildNewEntity(
+                "entity-1",
+                "representation-1",
+                "file-1",
+                "entity 1 title",
+                "rep 1 title",
+                URI.create("http://www.scape-project.eu/wp-content/themes/medani/images/scape_logo.png"),
+                "image/png",
+                "header_image",
+                "SCAPE_FILE_TECHNICAL",
+                "SCAPE_REPRESENTATION_TECHNICAL");
+        final String expected = XmlUtils.toString(entity);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(
+                        executor.submit(
+                                new Callable<Boolean>() {
+                                    @Override
+                                    public Boolean call() throws Exception {
+                                        for (int j = 0; j < 50; j++) {
+                                            IntellectualEntity copy = XmlUtils.toEntity(XmlUtils.toBytes(entity, false));
+                                            if (!copy.getIdentifier().getValue().equals(entity.getIdentifier().getValue())) {
+                                                return false;
+                                            }
+                                            if (!XmlUtils.toString(entity).equals(expected)) {
+                                                return false;
+                                            }
+                                        }
+                                        return true;
+                                    }
+                                }));
+            }
+            for (Future<Boolean> result : results) {
+                Assert.assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}